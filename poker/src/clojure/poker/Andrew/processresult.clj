@@ -39,12 +39,16 @@
   "Reads in a clojure data structure from a file. Automatically prepends the path
    src/clojure/poker/Andrew/results/ \\
    Use make-vector to read all data structures in the file, not just the first, into a 
-   vector."
+   vector.\\
+   Binary checkpoints (see ERL/checkpoint!) are read directly, without parsing printed output."
   [name & {:keys [make-vector?]}]
-  (read-string
-   (if make-vector?
-     (str "[" (slurp (str "src/clojure/poker/Andrew/results/" name)) "]")
-     (slurp (str "src/clojure/poker/Andrew/results/" name)))))
+  (let [filename (str "src/clojure/poker/Andrew/results/" name)]
+    (if-let [checkpoint (ERL/read-checkpoint filename)]
+      (if make-vector? [checkpoint] checkpoint)
+      (read-string
+       (if make-vector?
+         (str "[" (slurp filename) "]")
+         (slurp filename))))))
 
 (def output-structure
   "ERL output is structured like so:\\
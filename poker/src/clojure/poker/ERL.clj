@@ -6,8 +6,15 @@
             [poker.concurrent :as concurrent]
             [clojure.set :as set]
             [clojure.pprint :as pprint]
-            [clojure.string :as s])
-  (:import ai.djl.Device))
+            [clojure.string :as s]
+            [clojure.java.io :as io])
+  (:import ai.djl.Device
+           java.util.Random
+           java.util.SplittableRandom
+           poker.FitnessMatrix
+           poker.LexicaseSelector
+           poker.ResultCache
+           poker.Checkpoint))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 ;;;   Evolutionary Reinforcement Learning     ;;;
@@ -91,6 +98,163 @@
 ;;;    to implement truncation of game length as in https://arxiv.org/abs/1703.03864 for better CPU utilization
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 
+(defn match-result
+  "The result of a matchup as returned by play-match, given the net gains and number of actions 
+   of the matchup\\
+   -> {(:ind1 :ind2) (:net-gain) (:winner) (:action-count)}"
+  [ind1 ind2 net-gain action-count & {:keys [net-gain? update-error? action-count? winning-individual?]}]
+  (merge (when update-error? {:ind1 (update ind1
+                                            :error
+                                            #(assoc % (:id ind2) ((:id ind1) net-gain)))
+                              :ind2 (update ind2
+                                            :error
+                                            #(assoc % (:id ind1) ((:id ind2) net-gain)))})
+         (when net-gain? {:net-gain net-gain})
+         (when winning-individual? {:winner (if (> ((:id ind2) net-gain) 0)
+                                              ind2
+                                              ind1)})
+         (when action-count? {:action-count action-count})))
+
+;;;;;;;;;
+;;; Matchup result cache
+;;;
+;;; Hall of fame members are benchmarked against each other and against survivors
+;;; over many generations, and post-run analyses replay the same matchups. When the decks
+;;; of a matchup are given by a seed, its result is cached under a key made of everything 
+;;; that determines the matchup (see matchup-key), and versus and versus-group return the
+;;; cached result instead of playing the matchup again.
+;;;
+;;; A matchup on seeded decks also samples its actions from a generator seeded from the decks and
+;;; the players (see match-random), so that a cached result is the one playing the matchup again
+;;; would give.
+;;;
+;;; The cache is a ResultCache bounded to a number of entries, held in result-cache. If
+;;; it is opened with a file, every new entry is appended to the file, one EDN form per line,
+;;; and the file is reloaded and compacted the next time it is opened.
+;;;;;;;;;
+
+(def result-cache
+  "The ResultCache consulted by versus and versus-group, if any, and the writer of its file"
+  (atom nil))
+
+(defn open-result-cache!
+  "Sets up the matchup result cache with the given capacity. If filename is given, loads the 
+   entries cached in the file, rewrites it with only the retained entries, and appends every new 
+   entry to it\\
+   -> ResultCache"
+  [& {:keys [filename capacity]
+      :or {capacity 100000}}]
+  (let [cache (ResultCache. (int capacity))
+        file (when filename (io/file filename))]
+    (when (and file (.exists file))
+      (with-open [r (io/reader file)]
+        (doseq [line (line-seq r)]
+          (when-let [[k v] (try (read-string line)
+                                (catch Exception _ nil))]
+            (.put cache k v)))))
+    (when file
+      (with-open [w (io/writer file)]
+        (doseq [^objects entry (.entries cache)]
+          (.write w (pr-str [(aget entry 0) (aget entry 1)]))
+          (.write w "\n"))))
+    (when-let [{^java.io.Writer w :writer} @result-cache]
+      (.close w))
+    (reset! result-cache {:cache cache
+                          :writer (when file (io/writer file :append true))})
+    cache))
+
+(defn close-result-cache!
+  "Stops caching matchup results, closing the cache file"
+  []
+  (when-let [{^java.io.Writer w :writer} @result-cache]
+    (.close w))
+  (reset! result-cache nil))
+
+(defn matchup-key
+  "Key of a matchup in the result cache: the canonical seeds and mutation standard deviation 
+   of both players, the transformer parameters, and every argument of versus that changes the outcome. 
+   Only matchups played on decks given by a seed are cached\\
+   -> vector or nil"
+  [ind1 ind2 max-seq-length num-games & {:keys [decks stdev max-actions from-block? quantize? as-list?]
+                                         :or {stdev 0.005
+                                              max-actions ##Inf}}]
+  (when (number? decks)
+    (let [player (fn [ind] [(mapv long (:seeds ind))
+                            (double (or (:stdev ind) stdev))
+                            (:transformer-parameters ind)])]
+      [(player ind1)
+       (player ind2)
+       (transformer/current-parameters)
+       (long max-seq-length)
+       (long num-games)
+       (long decks)
+       (double max-actions)
+       (boolean from-block?)
+       (boolean quantize?)
+       (boolean as-list?)])))
+
+(defn cached-match
+  "The result of the matchup from the result cache, as play-match would return it, or nil\\
+   key - as returned by matchup-key"
+  [ind1 ind2 key & {:as opts}]
+  (when-let [{cache :cache} (and key @result-cache)]
+    (when-let [{[g1 g2] :net-gain
+                action-count :action-count} (.get ^ResultCache cache key)]
+      (apply match-result
+             ind1 ind2 {(:id ind1) g1 (:id ind2) g2} action-count
+             (mapcat identity opts)))))
+
+(defn cache-match!
+  "Caches the net gains and action count of a matchup played with net-gain? and action-count?
+   under key, and returns the result"
+  [ind1 ind2 key {net-gain :net-gain action-count :action-count :as result}]
+  (when-let [{cache :cache ^java.io.Writer w :writer} (and key net-gain action-count @result-cache)]
+    (let [v {:net-gain [(net-gain (:id ind1)) (net-gain (:id ind2))]
+             :action-count action-count}]
+      (.put ^ResultCache cache key v)
+      (when w
+        (locking w
+          (.write w (pr-str [key v]))
+          (.write w "\n")
+          (.flush w)))))
+  result)
+
+(defn match-random
+  "The generator from which a matchup on decks given by a seed samples its actions, seeded from 
+   the decks and the seeds of both players in order, or nil for other decks\\
+   -> Random"
+  [ind1 ind2 decks]
+  (when (number? decks)
+    (utils/random (hash [(long decks) (mapv long (:seeds ind1)) (mapv long (:seeds ind2))]))))
+
+(defn play-match
+  "Plays a matchup between two individuals already built by transformer/model-from-seeds or 
+   transformer/acquire-model. ind1 and ind2 are the individuals as given, i1 and i2 as built\\
+   On decks given by a seed, actions are sampled from match-random, so that the result only 
+   depends on the matchup\\
+   See versus for the optional arguments\\
+   -> {(:ind1 :ind2) (:net-gain) (:winner) (:action-count)}"
+  [ind1 ind2 i1 i2 manager num-games & {:keys [net-gain? update-error? as-list? action-count? winning-individual? decks max-actions]
+                                         :or {max-actions ##Inf}}]
+  ;;Individuals compete against each other
+  (let [{net-gain :net-gain
+         action-count :action-count} (binding [utils/*random* (match-random ind1 ind2 decks)]
+                                       (apply
+                                        headsup/iterate-games-reset
+                                        [(transformer/as-player i1) (transformer/as-player i2)]
+                                        manager
+                                        num-games
+                                        :max-actions max-actions
+                                        :as-list? as-list?
+                                        :max-seq-length (apply max 100 (map #(get % :max-seq-length 0) [i1 i2]))
+                                        (concat (when decks [:decks decks]))))]
+    ;;Return different information depending on optional arguments
+    (match-result ind1 ind2 net-gain action-count
+                  :net-gain? net-gain?
+                  :update-error? update-error?
+                  :action-count? action-count?
+                  :winning-individual? winning-individual?)))
+
 (defn versus
   "Returns the winning individual, the match results of the individuals, or the 
    individuals updated to contain the match results\\
@@ -106,47 +270,167 @@
    from-block? - whether to take perturbations by indexing into a preinstantiated block of random noise\\
    device - optionally specify device to house NDManager and NDArrays on\\
    gc? - whether to prompt JVM to collect garbage after creating transformer models\\
+   quantize? - whether to play both individuals with int8 weights (see transformer/quantize-individual)\\
+   shared - set of ids of individuals whose models are shared with concurrent matches instead of built for this match (see transformer/acquire-model)\\
+   If the result cache is open and decks is a seed, returns the cached result of a matchup that has already been played (see open-result-cache!)\\
    -> {(:ind1 :ind2) (:net-gain) (:winner) (:action-count)}"
-  [ind1 ind2 max-seq-length num-games & {:keys [manager net-gain? update-error? as-list? action-count? winning-individual? decks stdev max-actions from-block? device gc?]
+  [ind1 ind2 max-seq-length num-games & {:keys [manager net-gain? update-error? as-list? action-count? winning-individual? decks stdev max-actions from-block? device gc? quantize? shared]
                                          :or {stdev 0.005
                                               max-actions ##Inf}}]
-  (let [device (or device (utils/try-gpu))]
-    ;;Ensure autoclosing of NDManager
-    (with-open [manager (if manager
-                          (.newSubManager manager)
-                          (ndarray/new-base-manager device))]
-      ;;Make each individual's models from their seeds
-      (let [mask (ndarray/ndarray manager (ndarray/causal-mask [1 max-seq-length max-seq-length] -2))
-            i1 (transformer/model-from-seeds ind1 max-seq-length manager mask :stdev stdev :from-block? from-block?)
-            i2 (transformer/model-from-seeds ind2 max-seq-length manager mask :stdev stdev :from-block? from-block?)]
-        #_(println "versus post-model-from-seeds, pre-gc. heap size(GB): " (/ (.totalMemory (java.lang.Runtime/getRuntime)) 1000000000.))
-        (when gc? (System/gc))
-        ;;Ensure autoclosing of each individual's models
-        (with-open [_i1 (utils/make-closeable i1 transformer/close-individual)
-                    _i2 (utils/make-closeable i2 transformer/close-individual)]
-          ;;Individuals compete against each other
-          (let [{net-gain :net-gain
-                 action-count :action-count} (apply
-                                              headsup/iterate-games-reset
-                                              [(transformer/as-player i1) (transformer/as-player i2)]
-                                              manager
-                                              num-games
-                                              :max-actions max-actions
-                                              :as-list? as-list?
-                                              :max-seq-length (apply max 100 (map #(get % :max-seq-length 0) [i1 i2]))
-                                              (concat (when decks [:decks decks])))]
-            ;;Return different information depending on optional arguments
-            (merge (when update-error? {:ind1 (update ind1
-                                                      :error
-                                                      #(assoc % (:id ind2) ((:id ind1) net-gain)))
-                                        :ind2 (update ind2
-                                                      :error
-                                                      #(assoc % (:id ind1) ((:id ind2) net-gain)))})
-                   (when net-gain? {:net-gain net-gain})
-                   (when winning-individual? {:winner (if (> ((:id ind2) net-gain) 0)
-                                                        ind2
-                                                        ind1)})
-                   (when action-count? {:action-count action-count}))))))))
+  (let [key (when @result-cache
+              (matchup-key ind1 ind2 max-seq-length num-games
+                           :decks decks
+                           :stdev stdev
+                           :max-actions max-actions
+                           :from-block? from-block?
+                           :quantize? quantize?
+                           :as-list? as-list?))
+        flags {:net-gain? net-gain?
+               :update-error? update-error?
+               :action-count? action-count?
+               :winning-individual? winning-individual?}]
+    ;;Matchups that have already been played are not played again
+    (or (apply cached-match ind1 ind2 key (mapcat identity flags))
+        (let [device (or device (utils/try-gpu))]
+          ;;Ensure autoclosing of NDManager
+          (with-open [manager (if manager
+                                (.newSubManager manager)
+                                (ndarray/new-base-manager device))]
+            ;;Make each individual's models from their seeds
+            (let [mask (ndarray/ndarray manager (ndarray/causal-mask [1 max-seq-length max-seq-length] -2))
+                  shared? #(contains? shared (:id %))
+                  build #(if (shared? %)
+                           (transformer/acquire-model % max-seq-length :device device :stdev stdev :from-block? from-block? :quantize? quantize?)
+                           (transformer/model-from-seeds % max-seq-length manager mask :stdev stdev :from-block? from-block? :quantize? quantize?))
+                  close #(if (shared? %) transformer/release-model transformer/close-individual)
+                  i1 (build ind1)
+                  i2 (build ind2)]
+              #_(println "versus post-model-from-seeds, pre-gc. heap size(GB): " (/ (.totalMemory (java.lang.Runtime/getRuntime)) 1000000000.))
+              (when gc? (System/gc))
+              ;;Ensure autoclosing of each individual's models
+              (with-open [_i1 (utils/make-closeable i1 (close i1))
+                          _i2 (utils/make-closeable i2 (close i2))]
+                (cond-> (cache-match! ind1 ind2 key
+                                      (play-match ind1 ind2 i1 i2 manager num-games
+                                                  :net-gain? (or net-gain? key)
+                                                  :update-error? update-error?
+                                                  :as-list? as-list?
+                                                  :action-count? (or action-count? key)
+                                                  :winning-individual? winning-individual?
+                                                  :decks decks
+                                                  :max-actions max-actions))
+                  (not net-gain?) (dissoc :net-gain)
+                  (not action-count?) (dissoc :action-count)))))))))
+
+(defn versus-group
+  "Plays an individual against each of a list of opponents, building the individual once for all of
+   its matchups. Opponent models are shared with every other group on the node (see transformer/acquire-model),
+   so that each individual and each opponent is only built once per node.\\
+   symmetrical? - also play every matchup with the players in reversed positions\\
+   Matchups found in the result cache are not played again (see matchup-key)\\
+   Other optional arguments as in versus\\
+   -> [{(:net-gain) (:action-count)} ...] one result per matchup, as returned by versus"
+  [individual opponents max-seq-length num-games & {:keys [symmetrical? net-gain? as-list? action-count? decks stdev max-actions from-block? device gc? quantize?]
+                                                    :or {stdev 0.005
+                                                         max-actions ##Inf}}]
+  (let [key #(when @result-cache
+               (matchup-key %1 %2 max-seq-length num-games
+                            :decks decks
+                            :stdev stdev
+                            :max-actions max-actions
+                            :from-block? from-block?
+                            :quantize? quantize?
+                            :as-list? as-list?))
+        ;;for each opponent, its matchups with the individual first, and their cached results if any
+        matchups (mapv (fn [opponent]
+                         (mapv (fn [[ind1 ind2]]
+                                 [[ind1 ind2] (cached-match ind1 ind2 (key ind1 ind2)
+                                                            :net-gain? net-gain?
+                                                            :action-count? action-count?)])
+                               (cond-> [[individual opponent]]
+                                 symmetrical? (conj [opponent individual]))))
+                       opponents)]
+    (if (every? second (apply concat matchups))
+      ;;every matchup has already been played, so no model needs to be built
+      (into [] (comp cat (map second)) matchups)
+      (let [device (or device (utils/try-gpu))]
+        (with-open [manager (ndarray/new-base-manager device)]
+          (let [mask (ndarray/ndarray manager (ndarray/causal-mask [1 max-seq-length max-seq-length] -2))
+                i1 (transformer/model-from-seeds individual max-seq-length manager mask :stdev stdev :from-block? from-block? :quantize? quantize?)
+                play (fn [[ind1 i1] [ind2 i2]]
+                       (let [k (key ind1 ind2)]
+                         ;;game state of each matchup is freed as soon as it is over
+                         (with-open [m (.newSubManager manager)]
+                           (cond-> (cache-match! ind1 ind2 k
+                                                 (play-match ind1 ind2 i1 i2 m num-games
+                                                             :net-gain? (or net-gain? k)
+                                                             :as-list? as-list?
+                                                             :action-count? (or action-count? k)
+                                                             :decks decks
+                                                             :max-actions max-actions))
+                             (not net-gain?) (dissoc :net-gain)
+                             (not action-count?) (dissoc :action-count)))))]
+            (when gc? (System/gc))
+            (with-open [_i1 (utils/make-closeable i1 transformer/close-individual)]
+              (into []
+                    (mapcat (fn [opponent pairs]
+                              (if (every? second pairs)
+                                (mapv second pairs)
+                                (let [i2 (transformer/acquire-model opponent max-seq-length :device device :stdev stdev :from-block? from-block? :quantize? quantize?)]
+                                  (with-open [_i2 (utils/make-closeable i2 transformer/release-model)]
+                                    (into []
+                                          (map-indexed (fn [position [_ cached]]
+                                                         (or cached
+                                                             (if (zero? position)
+                                                               (play [individual i1] [opponent i2])
+                                                               (play [opponent i2] [individual i1])))))
+                                          pairs)))))
+                            opponents
+                            matchups)))))))))
+
+(defn action-estimate
+  "Given the results of a generation's matchups, estimates the action count of a matchup for schedule-groups
+   as the mean of the average action counts of the matchups of either player. Players without results,
+   such as new children, are taken to be average\\
+   -> IFn"
+  [results]
+  (let [counted (filter :action-count results)
+        average (if (seq counted) (utils/mean (map :action-count counted)) 1)
+        by-id (->> counted
+                   (mapcat (fn [{:keys [net-gain action-count]}]
+                             (map #(vector % action-count) (keys net-gain))))
+                   (group-by first)
+                   (into {} (map (fn [[id counts]] [id (utils/mean (map second counts))]))))]
+    (fn [ind opponent]
+      (/ (+ (by-id (:id ind) average) (by-id (:id opponent) average)) 2))))
+
+(defn schedule-groups
+  "Groups the matchups of a population against a benchmark by population individual, so that each group
+   can be played by versus-group. Groups are ordered by decreasing estimated cost, the number of actions 
+   estimated for all of their matchups, so that handing them out in order to whichever thread or MPI rank 
+   is free next balances the load (longest processing time first)\\
+   estimate - function of [individual opponent] to the estimated action count of a matchup (see action-estimate).
+   Defaults to 1\\
+   slots - number of threads the groups are played on. While there are fewer groups than slots, the costliest
+   group is split in two, so that no slot is left idle at the cost of building its individual once more\\
+   -> [{:individual :opponents :cost} ...]"
+  [pop bench & {:keys [symmetrical? estimate slots]}]
+  (let [estimate (or estimate (constantly 1))
+        group (fn [ind opponents]
+                {:individual ind
+                 :opponents opponents
+                 :cost (* (if symmetrical? 2 1)
+                          (transduce (map (partial estimate ind)) + opponents))})
+        by-cost (partial sort-by (comp - :cost))]
+    (loop [groups (->> pop
+                       (map (fn [ind] (group ind (filterv #(not= ind %) bench))))
+                       (filter (comp seq :opponents))
+                       (by-cost))]
+      (let [[{:keys [individual opponents]} & more] groups]
+        (if (and slots (< (count groups) slots) (next opponents))
+          (let [[a b] (split-at (quot (count opponents) 2) opponents)]
+            (recur (by-cost (concat [(group individual (vec a)) (group individual (vec b))] more))))
+          (into [] groups))))))
 
 #_(utils/initialize-random-block (int 1e7) 1)
 #_(ndarray/initialize-random-block (int 1e7) 1)
@@ -222,20 +506,82 @@
 
 #_(update-individual {:id :p0 :seeds [1 2 3]} {:p0 -2 :p1 2})
 
+(defn slots
+  "Map from the id of each individual to its index\\
+   -> {id slot}"
+  [individuals]
+  (zipmap (map :id individuals) (range)))
+
+(defn fitness-matrix
+  "Creates an empty FitnessMatrix for the matchups of a population against a benchmark\\
+   -> FitnessMatrix"
+  [pop benchmark]
+  (let [pop-slots (slots pop)
+        bench-slots (slots benchmark)]
+    (FitnessMatrix. (int-array (map #(get bench-slots (:id %) -1) pop))
+                    (int-array (map #(get pop-slots (:id %) -1) benchmark)))))
+
+(defn result-recorder
+  "Given a population, a benchmark and their FitnessMatrix, returns a function that records the
+   net gains of a matchup result in the matrix and returns the result. Safe to call concurrently
+   as matchups complete\\
+   -> IFn"
+  [pop benchmark ^FitnessMatrix fitness]
+  (let [pop-slots (slots pop)
+        bench-slots (slots benchmark)
+        gain #(double (if (map? %) (:mean %) %))]
+    (fn [{net-gain :net-gain :as result}]
+      (let [[[id1 g1] [id2 g2]] (seq net-gain)]
+        (cond (and (pop-slots id1) (bench-slots id2)) (.record fitness (int (pop-slots id1)) (int (bench-slots id2)) (gain g1))
+              (and (pop-slots id2) (bench-slots id1)) (.record fitness (int (pop-slots id2)) (int (bench-slots id1)) (gain g2))))
+      result)))
+
+(defn matrix-errors
+  "The per-opponent :error map of population slot p, or of benchmark slot b if p is nil, 
+   as merging the results of its matchups in either role would give. Only opponents that 
+   have been played are included\\
+   pop-ids/bench-ids - ids of the individuals in each population and benchmark slot\\
+   -> {id error}"
+  [^FitnessMatrix fitness pop-ids bench-ids p & [b]]
+  (let [p (or p (let [q (.popSlotOfBench fitness (int b))] (when (>= q 0) q)))
+        c (if p (.benchSlotOfPop fitness (int p)) b)
+        as-pop (when p
+                 (for [b (range (.benchSize fitness))
+                       :when (pos? (.games fitness (int p) (int b)))]
+                   [(nth bench-ids b) (.gain fitness (int p) (int b))]))
+        as-bench (when (>= c 0)
+                   (for [q (range (.popSize fitness))
+                         :when (pos? (.games fitness (int q) (int c)))]
+                     [(nth pop-ids q) (- (.gain fitness (int q) (int c)))]))]
+    (persistent! (reduce (fn [m [id e]] (assoc! m id (+ e (get m id 0))))
+                         (transient {})
+                         (concat as-pop as-bench)))))
+
 (defn process-results
   "Processes the results of benchmarking matches to update the population and 
-   benchmarking individuals, as well as return the number of actions taken for each matchup\\
-   -> {:pop :benchmark :results}"
-  [pop benchmark results]
-  {:pop (reduce (fn [p res]
-                  (map #(update-individual % (:net-gain res)) p))
+   benchmarking individuals, as well as return the number of actions taken for each matchup.\\
+   Results are recorded in a FitnessMatrix, unless one already filled with them is given. 
+   The returned individuals carry the matrix and their slot in their metadata, from which their errors 
+   are read (see total-error and errors). Their :error maps are left as they were.
+   The action counts of the results give the estimate for scheduling the next generation (see action-estimate)\\
+   -> {:pop :benchmark :action-counts :estimate :fitness}"
+  [pop benchmark results & {:keys [fitness]}]
+  (let [pop (vec pop)
+        benchmark (vec benchmark)
+        fitness (or fitness
+                    (let [f (fitness-matrix pop benchmark)]
+                      (run! (result-recorder pop benchmark f) results)
+                      f))
+        ids [(mapv :id pop) (mapv :id benchmark)]]
+    {:pop (mapv #(vary-meta %1 assoc :fitness fitness :slot %2 :ids ids)
                 pop
-                results)
-   :benchmark (reduce (fn [b res]
-                        (map #(update-individual % (:net-gain res)) b))
+                (range))
+     :benchmark (mapv #(vary-meta %1 assoc :fitness fitness :bench-slot %2 :ids ids)
                       benchmark
-                      results)
-   :action-counts (mapv :action-count results)})
+                      (range))
+     :action-counts (mapv :action-count results)
+     :estimate (action-estimate results)
+     :fitness fitness}))
 
 #_(process-results [{:id :p0 :seeds [1 2]}
                   {:id :p1 :seeds [1 3]}]
@@ -245,6 +591,42 @@
                   {:net-gain {:p1 1 :p2 2} :action-count 30}
                   {:net-gain {:p1 3 :p0 -1} :action-count 10}])
 
+(defn benchmark-grouped
+  "As benchmark, but plays all of the matchups of each population individual in one task (see versus-group 
+   and schedule-groups), so that each individual and benchmark individual is only built once per generation\\
+   -> {:pop :benchmark :action-counts :estimate :fitness}"
+  [pop bench max-seq-length num-games & {:keys [decks symmetrical? as-list? stdev max-actions from-block? quantize? estimate]
+                                             :or {stdev 0.005
+                                                  symmetrical? true
+                                                  max-actions ##Inf}}]
+  (let [pop (if (vector? pop) pop (into [] pop))
+        ;;a deck seed is passed on as is, so that matchups can be found in the result cache
+        decks (if (number? decks) decks (utils/process-decks decks num-games))
+        fitness (fitness-matrix pop bench)
+        record (result-recorder pop bench fitness)
+        groups (schedule-groups pop bench
+                                :symmetrical? symmetrical?
+                                :estimate estimate
+                                :slots (utils/num-processors))
+        results (->> groups
+                     (mapv (fn [{ind :individual opponents :opponents}]
+                             (concurrent/msubmit
+                              (mapv record
+                               (versus-group ind opponents max-seq-length num-games
+                                             :symmetrical? symmetrical?
+                                             :net-gain? true
+                                             :decks decks
+                                             :as-list? as-list?
+                                             :stdev stdev
+                                             :max-actions max-actions
+                                             :action-count? true
+                                             :from-block? from-block?
+                                             :quantize? quantize?
+                                             :device (utils/get-gpu (.indexOf pop ind)))))))
+                     (into [] (mapcat deref)))]
+    (transformer/release-shared-models!)
+    (process-results pop bench results :fitness fitness)))
+
 (defn benchmark
   "Given a population and a set of benchmark individuals possibly drawn
    from the population, plays each individual in the population against each
@@ -252,40 +634,63 @@
    If symmetrical? is true, then initializes a set of shared decks to be played
    for each matchup. Then each matchup is played twice, once \"normal\" and once
    with players in reversed positions, to reduce variance as much as possible\\
-   -> {:pop :benchmark :action-counts}"
-  [pop bench max-seq-length num-games & {:keys [decks symmetrical? as-list? stdev max-actions from-block?]
+   If grouped? is true (default), all matchups of a population individual are played in one task (see benchmark-grouped)\\
+   estimate - the estimated action count of a matchup, for ordering the groups (see action-estimate)\\
+   Results are recorded in a FitnessMatrix as each matchup completes (see process-results)\\
+   -> {:pop :benchmark :action-counts :estimate :fitness}"
+  [pop bench max-seq-length num-games & {:keys [decks symmetrical? as-list? stdev max-actions from-block? quantize? grouped? estimate]
                                              :or {stdev 0.005
                                                   symmetrical? true
+                                                  grouped? true
                                                   max-actions ##Inf}}]
-  (let [pop (if (vector? pop) pop (into [] pop))
-        decks (utils/process-decks decks num-games)
-        vs #(concurrent/msubmit
-             (time (versus %1 %2 max-seq-length num-games
-                     :net-gain? true
-                     :decks decks
-                     :as-list? as-list?
-                     :stdev stdev
-                     :max-actions max-actions
-                     :action-count? true
-                     :from-block? from-block?
-                     :device (utils/get-gpu (.indexOf pop %1)))))
-        ;;send off matchups to thread pool
-        res1 (doall
-              (for [ind1 pop
-                    ind2 bench :when (not (= ind1 ind2))]
-                (vs ind1 ind2)))
-        res2 (when symmetrical?
-               (doall
+  (if grouped?
+    (benchmark-grouped pop bench max-seq-length num-games
+                       :decks decks
+                       :symmetrical? symmetrical?
+                       :as-list? as-list?
+                       :stdev stdev
+                       :max-actions max-actions
+                       :from-block? from-block?
+                       :quantize? quantize?
+                       :estimate estimate)
+    (let [pop (if (vector? pop) pop (into [] pop))
+          decks (if (number? decks) decks (utils/process-decks decks num-games))
+          ;;benchmark models are built once per node and shared by all of their matchups
+          bench-ids (set (map :id bench))
+          ;;results are recorded in the fitness matrix as soon as each matchup completes
+          fitness (fitness-matrix pop bench)
+          record (result-recorder pop bench fitness)
+          vs #(concurrent/msubmit
+               (record
+                (time (versus %1 %2 max-seq-length num-games
+                        :net-gain? true
+                        :decks decks
+                        :as-list? as-list?
+                        :stdev stdev
+                        :max-actions max-actions
+                        :action-count? true
+                        :from-block? from-block?
+                        :quantize? quantize?
+                        :shared bench-ids
+                        :device (utils/get-gpu (.indexOf pop %1))))))
+          ;;send off matchups to thread pool
+          res1 (doall
                 (for [ind1 pop
                       ind2 bench :when (not (= ind1 ind2))]
-                  (vs ind2 ind1))))
-        ;;deref results of matchups
-        #_ (doall (for [r (concat res1 res2)]
-                   (do (deref r)
-                   (println "message received"))))
-        results (map deref (concat res1 res2))]
-    ;;process results and return the updated pop, benchmark, and action-counts
-    (process-results pop bench results)))
+                  (vs ind1 ind2)))
+          res2 (when symmetrical?
+                 (doall
+                  (for [ind1 pop
+                        ind2 bench :when (not (= ind1 ind2))]
+                    (vs ind2 ind1))))
+          ;;deref results of matchups
+          #_ (doall (for [r (concat res1 res2)]
+                     (do (deref r)
+                     (println "message received"))))
+          results (doall (map deref (concat res1 res2)))]
+      (transformer/release-shared-models!)
+      ;;process results and return the updated pop, benchmark, and action-counts
+      (process-results pop bench results :fitness fitness))))
 
 #_(time (benchmark [{:seeds [-1155869325], :id :p0}
                   {:seeds [431529176], :id :p1}
@@ -408,7 +813,7 @@
   (assert (not (and as-list? symmetrical?)) "Does not currently support reporting standard deviations for symmetrized competition")
   (let [challengers (get-challengers (count pop) round-robin-count)
         matches (mapcat #(map (partial vector (first %)) (rest %)) challengers)
-        decks (utils/process-decks decks num-games)
+        decks (if (number? decks) decks (utils/process-decks decks num-games))
         vs #(versus %1 %2 max-seq-length num-games
                     :net-gain? true
                     :decks decks
@@ -450,6 +855,47 @@
 #_(filter #(>= (second %) 45)
         (zipmap pop (map #(or (:p2 (:error %)) 0) pop)))
 
+(defn selection-seed
+  "Seed for the lexicase selections of a population, derived from the seeds of its individuals, so that
+   selection is reproducible without drawing from the random number generator of the generation\\
+   -> long"
+  [pop]
+  (long (hash (mapv :seeds pop))))
+
+(defn lexicase-selector
+  "Precomputes the errors of the population on each test case for lexicase selection (see LexicaseSelector)\\
+   The errors are read from the FitnessMatrix in the metadata of the individuals if they have one, 
+   with the benchmark slots as test cases. Otherwise from the :error maps against the individuals of 
+   benchmark-pop, or of pop if not provided, with 0 for opponents that have not been played\\
+   -> LexicaseSelector"
+  [pop & {:keys [benchmark-pop]}]
+  (let [fitness (and benchmark-pop
+                     (every? #(:slot (meta %)) pop)
+                     (:fitness (meta (first pop))))
+        errors (if fitness
+                 (let [^"[[D" errors (.errors ^FitnessMatrix fitness)]
+                   (into-array (Class/forName "[D") (map #(aget errors (int (:slot (meta %)))) pop)))
+                 (let [opponents (map :id (or benchmark-pop pop))]
+                   (into-array (Class/forName "[D")
+                               (map (fn [ind]
+                                      (double-array (map #(or (get (:error ind) %) 0) opponents)))
+                                    pop))))]
+    (LexicaseSelector. errors)))
+
+(defn- random-nth
+  "rand-nth drawing from random, or from the global generator without one"
+  [^Random random coll]
+  (if random
+    (nth (vec coll) (.nextInt random (count coll)))
+    (rand-nth coll)))
+
+(defn- random-shuffle
+  "shuffle drawing from random, or from the global generator without one"
+  [random coll]
+  (if random
+    (utils/shuffle coll random)
+    (shuffle coll)))
+
 (defn lexicase-selection
   "Epsilon lexicase selection using the individuals as test cases. Picks a random individual,
    and selects from the population by their match results against that individual\\
@@ -457,25 +903,37 @@
    money from the other\\
    If a set of benchmarking test case individuals has not been provided, uses population
    as test cases\\
+   If the population was benchmarked against benchmark-pop into a FitnessMatrix (see process-results),
+   reads the errors from the matrix instead of the :error maps (see lexicase-selector). The selection then
+   draws from random, a SplittableRandom, or from one seeded by selection-seed\\
+   random may also be a java.util.Random, from which every draw of the selection is made\\
    -> individual"
-  [pop & {:keys [benchmark-pop]}]
-  ;;Loop until the test cases are exhausted or only one individual remains
-  (loop [opponents (shuffle (map :id (or benchmark-pop pop)))
-         pop pop]
-    (cond (empty? opponents) (rand-nth pop)
-          (= 1 (count pop)) (first pop)
-          :else (recur (rest opponents)
-                       ;;Compute mean and mean absolute deviation of errors
-                       (let [errors (map #(or ((first opponents)
-                                               (:error %))
-                                              0)
-                                         pop)
-                             threshold (- (apply max errors) 
-                                          (mean-absolute-deviation errors))]
-                         ;;Take only the individuals which have errors differing from the best error by at most MAD
-                         (map first
-                              (filter #(>= (second %) threshold)
-                                      (zipmap pop errors))))))))
+  [pop & {:keys [benchmark-pop random]}]
+  (if (and benchmark-pop
+           (every? #(:slot (meta %)) pop)
+           (:fitness (meta (first pop))))
+    (let [pop (vec pop)]
+      (nth pop (.select (lexicase-selector pop :benchmark-pop benchmark-pop)
+                        (cond (instance? SplittableRandom random) random
+                              random (SplittableRandom. (.nextLong ^Random random))
+                              :else (SplittableRandom. (selection-seed pop))))))
+    ;;Loop until the test cases are exhausted or only one individual remains
+    (loop [opponents (random-shuffle random (map :id (or benchmark-pop pop)))
+           pop pop]
+      (cond (empty? opponents) (random-nth random pop)
+            (= 1 (count pop)) (first pop)
+            :else (recur (rest opponents)
+                         ;;Compute mean and mean absolute deviation of errors
+                         (let [errors (map #(or ((first opponents)
+                                                 (:error %))
+                                                0)
+                                           pop)
+                               threshold (- (apply max errors) 
+                                            (mean-absolute-deviation errors))]
+                           ;;Take only the individuals which have errors differing from the best error by at most MAD
+                           (map first
+                                (filter #(>= (second %) threshold)
+                                        (zipmap pop errors)))))))))
 
 #_(lexicase-selection [{:id :p0 :seeds [1 2] :error {:p3 1 :p4 0}}
                      {:id :p1 :seeds [1 2] :error {:p3 2 :p4 -1}}
@@ -486,8 +944,33 @@
 
 
 (defn total-error
+  "Sum of the match results of an individual, read from the FitnessMatrix in its 
+   metadata if it has one (see process-results)\\
+   -> float"
+  [individual]
+  (let [{fitness :fitness slot :slot} (meta individual)]
+    (if (and fitness slot)
+      (.totalError ^FitnessMatrix fitness (int slot))
+      (transduce (map second) + (:error individual)))))
+
+(defn errors
+  "Per-opponent match results of an individual from its last benchmark, read from the FitnessMatrix 
+   in its metadata if it has one (see process-results), or its :error map otherwise\\
+   -> {id error}"
   [individual]
-  (transduce (map second) + (:error individual)))
+  (let [{fitness :fitness slot :slot bench-slot :bench-slot [pop-ids bench-ids] :ids} (meta individual)]
+    (if fitness
+      (matrix-errors fitness pop-ids bench-ids slot bench-slot)
+      (:error individual))))
+
+(defn with-errors
+  "The individual with the results of its last benchmark as its :error map (see errors), 
+   as kept in the hall of fame and reports\\
+   -> individual"
+  [individual]
+  (if (:fitness (meta individual))
+    (assoc individual :error (errors individual))
+    individual))
 
 (defn tournament-selection
   [pop tournament-size]
@@ -538,9 +1021,10 @@
   (if (<= (rand) mutation-chance)
     (-> individual
       (dissoc :error)
+      (with-meta nil)
       (update :seeds conj (.nextInt random))
       (update :id #(keyword (str (name %) "-" id))))
-    (dissoc individual :error)))
+    (with-meta (dissoc individual :error) nil)))
 
 #_(mutate {:id :p0 :seeds [1 2] :errors {:p3 1 :p4 0}} 
           (utils/random) 
@@ -557,6 +1041,8 @@
   "Selects and mutates indivduals, producing the new generation 
    of individuals\\
    method - method to use for constructing the hof. parents = only parents. all = all individuals. k-best = only k highest winnings\\
+   With lexicase selection, the case matrix is built once and all parents are selected in parallel, 
+   seeded by selection-seed so that random is only used for mutation (see lexicase-selector)\\
    -> pop"
   [pop random & {:keys [method k selection benchmark-pop]
                  :or {method :parents
@@ -565,7 +1051,11 @@
   (assert (contains? #{:parents :all :k-best} method) "Method must be one of :parents, :all, or :k-best")
   (assert (or (not (= method :k-best)) k) "Must specify a k with the method :k-best")
   (let [pop (if (vector? pop) pop (into [] pop))
-        l (count pop)]
+        l (count pop)
+        selected (when (= lexicase-selection (selection-methods selection lexicase-selection))
+                   (mapv pop (.selectMany ^LexicaseSelector (lexicase-selector pop :benchmark-pop benchmark-pop)
+                                          (int l)
+                                          (selection-seed pop))))]
     (loop [new-pop (transient [])
            parents (transient #{})
            i 0]
@@ -573,22 +1063,25 @@
         [(persistent! new-pop)
          (condp = method
            :k-best (let [p (into #{}
-                         (take k)
+                         (comp (take k)
+                               (map #(with-meta % nil)))
                          (sort-by (fn [ind]
                                     (- (transduce (map (comp #(or (:mean %) %)
                                                              second))
                                                   +
                                                   (:error ind))))
-                                  pop))]
+                                  (map with-errors pop)))]
                      #_(println p)
                      p)
-           :all (into #{} pop)
+           :all (into #{} (map #(with-meta (with-errors %) nil)) pop)
            :parents (persistent! parents))]
-        (let [parent (apply (or (selection-methods selection) 
-                           lexicase-selection) pop
-                            (if benchmark-pop [:benchmark-pop benchmark-pop] []))]
+        (let [parent (if selected
+                       (selected i)
+                       (apply (or (selection-methods selection) 
+                                  lexicase-selection) pop
+                              (if benchmark-pop [:benchmark-pop benchmark-pop] [])))]
           (recur (conj! new-pop (mutate parent random i))
-                 (conj! parents parent)
+                 (conj! parents (with-meta (with-errors parent) nil))
                  (inc i)))))))
 
 
@@ -599,46 +1092,272 @@
                     {:id :p4, :error {:p1 -0.37, :p0 -0.505, :p2 1.36, :p3 -1.7}, :seeds [-594798593157429144]}]
                    (utils/random 1))
 
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;;;          Indexed hall of fame             ;;;
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+
+;;;;;;;;;
+;;; The hall of fame started out as a vector of sets of individuals, one set per generation. 
+;;; Updating an individual meant scanning every set for its id, and selecting from the last 
+;;; k generations meant shuffling all of their individuals, both of which grow with the length of the run.
+;;;
+;;; An indexed hall of fame is a map
+;;;   :generations - vector of vectors of individuals, one per generation
+;;;   :index       - {id [generation slot]}
+;;;   :sizes       - running total of the number of individuals up to and including each generation
+;;;   :wins        - {id number of opponents the individual has won chips from}
+;;;   :played      - {id number of opponents the individual has played}
+;;; so that an update is a lookup in the index, and win rates are maintained as errors are merged.
+;;;
+;;; Every change is also appended to an optional journal, one EDN form per line, kept in the metadata
+;;; of the hall of fame (see journal-hof). load-hof replays the journal to resume a run without reading
+;;; back the whole printed hall of fame.
+;;;
+;;; update-hof, select-from-hof, cull-hof and add-generation accept both representations, and 
+;;; hof-generations converts an indexed hall of fame back into a vector of sets.
+;;;;;;;;;
+
+(defn indexed-hof?
+  [hof]
+  (map? hof))
+
+(defn- journal!
+  "Appends an entry to the journal of the hall of fame, if it has one\\
+   -> hof"
+  [hof entry]
+  (when-let [^java.io.Writer w (:journal (meta hof))]
+    (locking w
+      (.write w (pr-str entry))
+      (.write w "\n")
+      (.flush w)))
+  hof)
+
+(defn- win-counts
+  "Number of opponents won against and played in an :error map\\
+   -> [wins played]"
+  [errors]
+  [(count (filter (comp pos? second) errors))
+   (count errors)])
+
+(defn- hof-conj-generation
+  [hof individuals]
+  (let [g (count (:generations hof))
+        individuals (vec individuals)]
+    (-> hof
+        (update :generations conj individuals)
+        (update :sizes conj (+ (peek (:sizes hof)) (count individuals)))
+        (update :index into (map-indexed #(vector (:id %2) [g %1])) individuals)
+        (update :wins into (map #(vector (:id %) (first (win-counts (:error %))))) individuals)
+        (update :played into (map #(vector (:id %) (second (win-counts (:error %))))) individuals))))
+
+(defn- hof-merge-errors
+  [hof {id :id errors :error}]
+  (if-let [[g i] (get-in hof [:index id])]
+    (let [old (get-in hof [:generations g i :error])
+          [wins played] (reduce (fn [[w p] [opp e]]
+                                  (let [before (get old opp)
+                                        after (+ (or before 0) e)]
+                                    [(+ w
+                                        (if (pos? after) 1 0)
+                                        (if (and before (pos? before)) -1 0))
+                                     (if before p (inc p))]))
+                                [(get-in hof [:wins id] 0) (get-in hof [:played id] 0)]
+                                errors)]
+      (-> hof
+          (update-in [:generations g i :error] #(merge-with + % errors))
+          (assoc-in [:wins id] wins)
+          (assoc-in [:played id] played)))
+    hof))
+
+(defn- hof-remove
+  [hof ids]
+  (let [ids (set ids)
+        generations (mapv (partial filterv #(not (ids (:id %)))) (:generations hof))]
+    (reduce hof-conj-generation
+            (with-meta {:generations [] :index {} :sizes [0] :wins {} :played {}}
+              (meta hof))
+            generations)))
+
+(defn indexed-hof
+  "Indexed hall of fame, empty or built from a hall of fame given as a vector of sets of individuals\\
+   -> hof"
+  [& [hof]]
+  (reduce hof-conj-generation
+          {:generations [] :index {} :sizes [0] :wins {} :played {}}
+          (if (indexed-hof? hof) (:generations hof) hof)))
+
+(defn hof-generations
+  "The hall of fame as a vector of sets of individuals, one per generation\\
+   -> [#{individual ...} ...]"
+  [hof]
+  (if (indexed-hof? hof)
+    (mapv set (:generations hof))
+    hof))
+
+(defn hof-individual
+  "The individual with the given id in an indexed hall of fame\\
+   -> individual"
+  [hof id]
+  (when-let [[g i] (get-in hof [:index id])]
+    (get-in hof [:generations g i])))
+
+(defn hof-winrate
+  "Proportion of its opponents that an individual of an indexed hall of fame has won chips from\\
+   -> float"
+  [hof id]
+  (let [played (get-in hof [:played id] 0)]
+    (if (zero? played)
+      0
+      (/ (get-in hof [:wins id] 0) played))))
+
+(defn journal-hof
+  "Attaches an append-only journal to a hall of fame. If the file is new, first writes the current
+   contents of the hall of fame to it, so that the journal alone is enough to restore it (see load-hof)\\
+   rewrite?: truncate the file and write the current contents of the hall of fame to it, as for a new file.
+   Used when a run resumes from a checkpoint, whose hall of fame may be behind the journal\\
+   -> hof"
+  [hof filename & {:keys [rewrite?]}]
+  (let [file (java.io.File. filename)
+        new? (or rewrite? (zero? (.length file)))
+        ;;a run killed mid-write leaves an incomplete last line, which load-hof skips
+        partial? (and (not new?)
+                      (with-open [f (java.io.RandomAccessFile. file "r")]
+                        (.seek f (dec (.length f)))
+                        (not= (int \newline) (.read f))))
+        hof (vary-meta (indexed-hof hof) assoc :journal (java.io.BufferedWriter. (java.io.FileWriter. file (not rewrite?))))]
+    (when partial?
+      (doto ^java.io.Writer (:journal (meta hof)) (.write "\n") (.flush)))
+    (when new?
+      (run! #(journal! hof [:generation %]) (:generations hof)))
+    hof))
+
+(defn close-hof
+  "Closes the journal of a hall of fame, if it has one, once the run is over\\
+   -> hof without a journal"
+  [hof]
+  (when-let [^java.io.Writer w (:journal (meta hof))]
+    (locking w
+      (.close w)))
+  (vary-meta hof dissoc :journal))
+
+(defn load-hof
+  "Replays a hall of fame journal (see journal-hof), ignoring an incomplete last line\\
+   -> hof"
+  [filename]
+  (with-open [r (io/reader filename)]
+    (reduce (fn [hof line]
+              (let [[op arg] (try (read-string line)
+                                  (catch Exception _ nil))]
+                (case op
+                  :generation (hof-conj-generation hof arg)
+                  :errors (reduce hof-merge-errors hof arg)
+                  :cull (hof-remove hof arg)
+                  hof)))
+            (indexed-hof)
+            (line-seq r))))
+
+(defn open-hof
+  "Restores the hall of fame from a journal file if it exists, or starts an empty one, 
+   and attaches the journal to it (see journal-hof). Without a file, returns an empty
+   indexed hall of fame without a journal\\
+   -> hof"
+  [filename & {:keys [hof]}]
+  (cond (nil? filename) (indexed-hof hof)
+        (.exists (io/file filename)) (journal-hof (load-hof filename) filename)
+        :else (journal-hof (indexed-hof hof) filename)))
+
+(defn add-generation
+  "Adds the individuals of a generation to the hall of fame\\
+   -> hof"
+  [hof individuals]
+  (if (indexed-hof? hof)
+    (let [individuals (vec individuals)]
+      (-> hof
+          (hof-conj-generation individuals)
+          (journal! [:generation individuals])))
+    (conj hof (set individuals))))
+
+(defn- hof-select-exp
+  "Selects n distinct individuals from an indexed hall of fame, one from each of the last 
+   ⌊exp^0⌋, ⌊exp^1⌋, ... generations, by drawing uniformly over the individuals of those 
+   generations through the running totals of generation sizes\\
+   -> #{individual ...}"
+  [hof n exp & [^Random random]]
+  (let [{sizes :sizes generations :generations} hof
+        num-gens (count generations)
+        locate (fn [k]
+                 ;;last generation starting at or before the k'th individual overall
+                 (loop [lo 0
+                        hi (dec num-gens)]
+                   (if (< lo hi)
+                     (let [mid (quot (+ lo hi 1) 2)]
+                       (if (<= (sizes mid) k)
+                         (recur mid hi)
+                         (recur lo (dec mid))))
+                     lo)))]
+    (loop [i 0
+           selected #{}]
+      (if (>= i n)
+        selected
+        (let [first-gen (max 0 (- num-gens (int (Math/pow exp i))))
+              start (sizes first-gen)
+              total (- (peek sizes) start)
+              pick (fn []
+                     (let [k (+ start (if random (.nextInt random (int total)) (rand-int total)))
+                           g (locate k)]
+                       (get-in generations [g (- k (sizes g))])))
+              ind (when (pos? total)
+                    (or (first (remove selected (repeatedly (min total 8) pick)))
+                        ;;mostly already selected, so fall back to a scan
+                        (first (remove selected (random-shuffle random (into [] cat (subvec generations first-gen)))))))]
+          (recur (inc i)
+                 (if ind (conj selected ind) selected)))))))
+
 (defn select-from-hof
   "Selects n individual from the hall of fame. \\
    method: method used to select individuals\\
    :exp = exponential. Selects 1 individual from the previous ⌊e⌋ generations, 1 from the 
    previous ⌊e^2⌋ generations, and so on\\
    :random = randomly selects n individuals from all individuals so far
-   :k-best selects the best individual by total chips won from each of the k previous generations"
-  [hof n & {:keys [method exp]
+   :k-best selects the best individual by total chips won from each of the k previous generations\\
+   random: java.util.Random to draw from instead of the global generator"
+  [hof n & {:keys [method exp random]
             :or {method :exp
                  exp Math/E}}]
-  (condp = method
-    :hardexp (loop [i 0
+  (if (and (indexed-hof? hof) (= method :exp))
+    (hof-select-exp hof n exp random)
+    (let [hof (hof-generations hof)]
+      (condp = method
+        :hardexp (loop [i 0
+                        selected #{}]
+                   (if (> (Math/exp i) (count hof))
+                     selected
+                     (recur (inc i)
+                            (->> hof
+                                 (take-last (int (Math/pow exp i)))
+                                 (first)
+                                 (into [])
+                                 (random-nth random)
+                                 (conj selected)))))
+        :exp (loop [i 0
                     selected #{}]
-               (if (> (Math/exp i) (count hof))
+               (if (>= i n)
                  selected
                  (recur (inc i)
-                        (->> hof
-                             (take-last (int (Math/pow exp i)))
-                             (first)
-                             (into [])
-                             (rand-nth)
-                             (conj selected)))))
-    :exp (loop [i 0
-                selected #{}]
-           (if (>= i n)
-             selected
-             (recur (inc i)
-                    (set/union
-                     selected
-                     (loop [p (shuffle (mapcat identity
-                                               (take-last (int (Math/pow exp i))
-                                                          hof)))]
-                       (cond (empty? p) #{}
-                             (selected (first p)) (recur (rest p))
-                             :else #{(first p)}))))))
-    :random (take n (shuffle (mapcat identity hof)))
-    :k-best (mapv (partial apply
-                           max-key
-                           #(transduce (map second) + (:error %)))
-                  (take-last n hof))))
+                        (set/union
+                         selected
+                         (loop [p (random-shuffle random
+                                                  (mapcat identity
+                                                          (take-last (int (Math/pow exp i))
+                                                                     hof)))]
+                           (cond (empty? p) #{}
+                                 (selected (first p)) (recur (rest p))
+                                 :else #{(first p)}))))))
+        :random (take n (random-shuffle random (mapcat identity hof)))
+        :k-best (mapv (partial apply
+                               max-key
+                               #(transduce (map second) + (:error %)))
+                      (take-last n hof))))))
 
 
 #_(select-from-hof
@@ -672,25 +1391,33 @@
 
 (defn update-hof
   "Update the hall of fame with the results of individuals serving as benchmarks
-   for the population to play against"
+   for the population to play against. Only the results of their last benchmark are added, 
+   read from its FitnessMatrix when they carry one (see errors)"
   [hof individuals]
-  (reduce (fn [h ind]
-            (let [find-id (fn [coll]
-                            (first (filter #(= (:id ind) (:id %)) coll)))
-                  [idx i] (first (keep-indexed
-                                  #(if-let [i (find-id %2)]
-                                     [%1 i]
-                                     nil)
-                                  h))]
-              (if (and idx i)
-                (assoc h
-                       idx
-                       (-> (h idx)
-                           (disj i)
-                           (conj (merge-errors i ind))))
-                h)))
-          hof
-          individuals))
+  (if (indexed-hof? hof)
+    (let [updates (into []
+                        (comp (filter #(get-in hof [:index (:id %)]))
+                              (map #(hash-map :id (:id %) :error (errors %))))
+                        individuals)]
+      (-> (reduce hof-merge-errors hof updates)
+          (journal! [:errors updates])))
+    (reduce (fn [h ind]
+              (let [find-id (fn [coll]
+                              (first (filter #(= (:id ind) (:id %)) coll)))
+                    [idx i] (first (keep-indexed
+                                    #(if-let [i (find-id %2)]
+                                       [%1 i]
+                                       nil)
+                                    h))]
+                (if (and idx i)
+                  (assoc h
+                         idx
+                         (-> (h idx)
+                             (disj i)
+                             (conj (merge-errors i {:error (errors ind)}))))
+                  h)))
+            hof
+            individuals)))
 
 #_(update-hof [] [{:seeds [-1666042088],
                  :id :p4,
@@ -762,13 +1489,24 @@
   [hof & {:keys [alpha cutoff]
           :or {cutoff 0.1}}]
   (assert (or alpha cutoff) "Must choose at least one method")
-  (if cutoff
+  (cond
+    (indexed-hof? hof)
+    (let [cull? (if cutoff
+                  #(<= (hof-winrate hof %) cutoff)
+                  #(<= (Math/pow alpha (dec (hof-winrate hof %))) (rand)))
+          ids (filterv cull? (keys (:index hof)))]
+      (if (seq ids)
+        (-> (hof-remove hof ids)
+            (journal! [:cull ids]))
+        hof))
+    cutoff
     (let [c (mapv (fn [coll]
                     (into #{}
                           (filter #(> (winrate %) cutoff)
                                   coll)))
                   hof)]
       c)
+    :else
     (let [prob #(Math/pow alpha (dec (winrate %)))]
       (mapv (fn [coll]
               (into #{} (filter #(> (prob %) (rand))) coll))
@@ -860,19 +1598,72 @@
    :benchmark benchmark})
 
 (defn report-generation
-  "Prints out the generation and the population at that generation"
-  [pop generation & {:keys [max-actions time-ms gen-output hof hof-output]}]
+  "Prints out the generation and the population at that generation\\
+   speculation: statistics of the speculative copies of tasks so far, see MPI/speculation\\
+   experiment: index of the experiment when several run side by side, see MPI/run-experiments"
+  [pop generation & {:keys [max-actions time-ms gen-output hof hof-output island experiment speculation]}]
   (pprint/pprint (merge {:generation generation
-                         :pop pop}
+                         :pop (mapv with-errors pop)}
+                        (when experiment {:experiment experiment})
+                        (when island {:island island})
+                        (when speculation {:speculation speculation})
                         (when max-actions {:max-actions max-actions})
                         (when time-ms {:time-ms time-ms})))
   (when gen-output (try (spit gen-output (with-out-str (report-generation pop generation
                                                                           :max-actions max-actions
                                                                           :time-ms time-ms)))
                         (catch Exception _)))
-  (when hof-output (try (spit hof-output (with-out-str (pprint/pprint hof)))
+  (when hof-output (try (spit hof-output (with-out-str (pprint/pprint (hof-generations hof))))
                         (catch Exception _))))
 
+(def report-writer
+  "Prints reports and writes output files in the background, one at a time and in the order they were made"
+  (agent nil :error-mode :continue))
+
+(defn report-generation!
+  "As report-generation, but in the background, so that the master can dispatch the next generation 
+   right away\\
+   -> nil"
+  [pop generation & argmap]
+  (send-off report-writer
+            (fn [_]
+              (apply report-generation pop generation argmap)))
+  nil)
+
+(def checkpoint-writer
+  "Writes checkpoints in the background, one at a time and in the order they were taken. A checkpoint
+   that fails to be written is reported on *err*, and the run carries on with the previous checkpoint on disk"
+  (agent nil :error-mode :continue))
+
+(defn checkpoint!
+  "Takes a checkpoint of the state of a run at the start of a generation and writes it to filename
+   in the background (see Checkpoint). The random number generator is copied immediately, so that
+   the run can carry on using it\\
+   -> nil"
+  [filename {:keys [generation pop hof random max-actions time-ms]}]
+  (let [state {:version Checkpoint/VERSION
+               :generation generation
+               :pop (mapv #(with-meta % nil) pop)
+               :hof (with-meta hof nil)
+               :random (when random (Checkpoint/copy random))
+               :max-actions max-actions
+               :time-ms time-ms}]
+    (send-off checkpoint-writer
+              (fn [_]
+                (try (Checkpoint/write (.toPath (io/file filename)) state)
+                     (catch Exception e
+                       (binding [*out* *err*]
+                         (println "Failed to write checkpoint" filename "of generation" generation ":" (str e)))))))
+    nil))
+
+(defn read-checkpoint
+  "Reads a checkpoint written by checkpoint!, or nil if there is no checkpoint at filename\\
+   -> {:generation :pop :hof :random :max-actions :time-ms}"
+  [filename]
+  (let [path (.toPath (io/file filename))]
+    (when (Checkpoint/isCheckpoint path)
+      (Checkpoint/read path))))
+
 (defn round-errors 
   [hof decimal-points]
   (let [map-hof (fn [f hof] (mapv f hof))
@@ -887,7 +1678,7 @@
                       (partial update-ind 
                                (partial round-errors 
                                         round))) 
-             hof)))
+             (hof-generations hof))))
 
 #_(round-errors [#{{:seeds [-807793372], 
                     :id :p2, 
@@ -923,14 +1714,15 @@
    pop - population\\
    hof - hall of fame\\
    prop-hof - proportion of individuals to take from the hof\\
-   method - method used to select individuals from hof"
-  [n pop hof prop-hof & {:keys [method exp]
+   method - method used to select individuals from hof\\
+   random - java.util.Random to draw from instead of the global generator"
+  [n pop hof prop-hof & {:keys [method exp random]
                          :or {method :exp
                               exp Math/E}}]
   (let [n-hof (Math/floor (* prop-hof n))
-        hof-bench (select-from-hof hof n-hof :method method :exp exp)]
+        hof-bench (select-from-hof hof n-hof :method method :exp exp :random random)]
     (concat (take (Math/ceil (- n (count hof-bench)))
-                  (shuffle pop))
+                  (random-shuffle random pop))
             hof-bench)))
 
 (defn initialize-pop
@@ -945,22 +1737,144 @@
                 :stdev stdev)
         (range n)))
 
-(defn ERL
-  "Main evolutionary reinforcement loop. \\
-   First prints the arguments passed to the function. \\
-   Then initializes pop-size individuals, and iterates through the generations\\
-   At each generation, it selects benchmark individuals from the population and hall of fame,
-   and benchmarks the population against the selected individuals to compute their fitness.\\
-   Then, parents are selected via lexicase selection and children are generated from parents.\\
-   Finally the population, the generation number, and the time taken to benchmark individuals in
-   ms is reported out.\\
-   Before starting the next cycle, the generation number is incremented, the hall of fame is updated 
-   with new parents and culled to remove consistently poor individuals, and the maximum number
-   of actions available to evaluate individuals is set to 2x the average number of actions taken to evaluate
-   the previous population. This allows for at least 50% CPU utilization.\\
-   After the last generation, the final population and the hall of fame are returned\\
-   -> {:last-pop :hof}"
-  [& {:keys [pop-size num-generations num-games benchmark-count random-seed max-seq-length stdev from-block? block-size prop-hof bench-method next-gen-method]
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;;;            Steady-state ERL               ;;;
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+
+;;;;;;;;;
+;;; Generational ERL waits for every matchup of a generation before selecting parents,
+;;; so the cores sit idle while the slowest matchups finish. In steady-state ERL there
+;;; is no generation barrier: a fixed number of evaluations are always in flight, each
+;;; playing one individual against its own set of opponents (see versus-group). 
+;;; Whenever an evaluation completes, the individual enters the pool, evicting the oldest
+;;; individual once the pool is full, and a parent is immediately selected from the pool
+;;; and mutated into the next individual to evaluate.
+;;;
+;;; Opponents are drawn from the pool and the hall of fame as in get-benchmark. The match 
+;;; results are added to the errors of the pool members and hall of fame members that were
+;;; played, so the hall of fame is updated as results come in. Every pop-size evaluations
+;;; count as a generation for reporting, and the parents selected during it enter the hall of fame.
+;;;
+;;; breed and incorporate only update the state, and are shared by the threaded loop below
+;;; and the MPI master (see MPI/steady-state-master).
+;;;;;;;;;
+
+(defn steady-state
+  "Initial state of steady-state evolution from an unevaluated population\\
+   The pool is a ring of up to pop-size individuals, and pool-index maps the id of each of them 
+   to its position in the ring (see incorporate)\\
+   -> {:pool :pool-index :unevaluated :initial :hof :parents :births :evaluations :action-counts}"
+  [pop & {:keys [hof]
+          :or {hof (indexed-hof)}}]
+  {:pool []
+   :pool-index {}
+   :unevaluated (vec pop)
+   :initial (vec pop)
+   :hof hof
+   :parents #{}
+   :births 0
+   :evaluations 0
+   :action-counts []})
+
+(defn played-opponents
+  "The opponents that the individuals have results against, as test cases for lexicase selection\\
+   -> [{:id} ...]"
+  [individuals]
+  (into [] (comp (mapcat (comp keys :error)) (distinct) (map #(hash-map :id %))) individuals))
+
+(defn breed
+  "Produces the next individual to evaluate, along with its opponents\\
+   The individuals of the initial population are evaluated first. Afterwards, a parent is selected
+   from the pool (or from the initial population while every evaluation is still in flight)
+   and mutated into a new individual\\
+   With lexicase selection, the test cases are the opponents the pool has actually played, 
+   which may be hall of fame members or individuals that have left the pool\\
+   Opponents are drawn from the pool and hall of fame by get-benchmark\\
+   Every random draw is made from random, so that a run is reproducible from its seed\\
+   -> [state {:individual :opponents}]"
+  [state random & {:keys [benchmark-count prop-hof bench-method bench-exp selection]
+                   :or {benchmark-count 5
+                        prop-hof 0.5
+                        bench-method :exp
+                        bench-exp Math/E
+                        selection :lexicase}}]
+  (let [{:keys [pool unevaluated initial hof births]} state
+        [individual state] (if (seq unevaluated)
+                             [(first unevaluated) (update state :unevaluated subvec 1)]
+                             (let [select (or (selection-methods selection) lexicase-selection)
+                                   parent (cond (empty? pool) (random-nth random initial)
+                                                (= select lexicase-selection) (lexicase-selection pool
+                                                                                                  :benchmark-pop (played-opponents pool)
+                                                                                                  :random random)
+                                                :else (select pool))]
+                               [(mutate parent random births)
+                                (-> state
+                                    (update :births inc)
+                                    (update :parents conj (dissoc (with-meta parent nil) :error)))]))
+        opponents (->> (get-benchmark (inc benchmark-count) (if (seq pool) pool initial) hof prop-hof
+                                      :method bench-method
+                                      :exp bench-exp
+                                      :random random)
+                       (remove #(= (:id %) (:id individual)))
+                       (take benchmark-count)
+                       (mapv #(dissoc % :error)))]
+    [state {:individual individual
+            :opponents opponents}]))
+
+(defn incorporate
+  "Adds an evaluated individual to the pool in place of the oldest individual once the pool has 
+   pop-size individuals, and adds the results of its matchups to the errors of the pool and hall 
+   of fame members it played against. Pool members are found through pool-index, so that only 
+   those that played are updated\\
+   results - [{:net-gain :action-count} ...] as returned by versus-group\\
+   -> state"
+  [state individual results & {:keys [pop-size]
+                               :or {pop-size 3}}]
+  (let [{:keys [pool pool-index evaluations]} state
+        net-gains (map :net-gain results)
+        pool (reduce (fn [pool net-gain]
+                       (reduce (fn [pool id]
+                                 (if-let [i (pool-index id)]
+                                   (update pool i update-individual net-gain)
+                                   pool))
+                               pool
+                               (keys net-gain)))
+                     pool
+                     net-gains)
+        ;;the oldest individual's place in the ring
+        slot (mod evaluations pop-size)
+        evicted (get pool slot)
+        opponents (for [net-gain net-gains
+                        id (keys net-gain)
+                        :when (not= id (:id individual))]
+                    (update-individual {:id id} net-gain))]
+    (-> state
+        (assoc :pool (assoc pool slot (reduce update-individual (dissoc individual :error) net-gains))
+               :pool-index (-> pool-index
+                               (dissoc (:id evicted))
+                               (assoc (:id individual) slot)))
+        (update :hof update-hof opponents)
+        (update :evaluations inc)
+        (update :action-counts into (map :action-count results)))))
+
+(defn end-generation
+  "Ends a steady-state generation: the parents selected since the previous generation enter
+   the hall of fame\\
+   -> state"
+  [state]
+  (-> state
+      (update :hof add-generation (:parents state))
+      (assoc :parents #{}
+             :action-counts [])))
+
+(defn steady-state-ERL
+  "Steady-state evolutionary loop (see breed and incorporate). Keeps concurrency evaluations in flight 
+   in the thread pool until pop-size * num-generations individuals have been evaluated, 
+   and reports every pop-size evaluations as a generation\\
+   max-actions defaults to ##Inf: there is no barrier for stragglers to hold up\\
+   hof-journal: as in ERL\\
+   -> {:last-pop :hall-of-fame}"
+  [& {:keys [pop-size num-generations num-games benchmark-count random-seed max-seq-length stdev from-block? block-size prop-hof bench-method selection max-actions quantize? concurrency hof-journal]
       :or {pop-size 3
            num-generations 1
            num-games 10
@@ -969,24 +1883,217 @@
            max-seq-length 20
            prop-hof 0.5
            bench-method :exp
-           next-gen-method :parents
+           selection :lexicase
            stdev 0.005
-           block-size 1e8}
+           block-size 1e8
+           max-actions ##Inf}
       :as argmap}]
   (println argmap)
-  (let [r (utils/random random-seed)]
+  (let [r (utils/random random-seed)
+        concurrency (or concurrency (utils/num-processors))
+        total (* pop-size num-generations)
+        completed (java.util.concurrent.LinkedBlockingQueue.)
+        evaluate (fn [{:keys [individual opponents]} deck-seed]
+                   (concurrent/msubmit
+                    (.put completed
+                          (try {:individual individual
+                                :results (versus-group individual opponents max-seq-length num-games
+                                                       :symmetrical? true
+                                                       :net-gain? true
+                                                       :decks deck-seed
+                                                       :stdev stdev
+                                                       :max-actions max-actions
+                                                       :action-count? true
+                                                       :from-block? from-block?
+                                                       :quantize? quantize?)}
+                               (catch Throwable e {:individual individual :exception e})))))
+        start (System/currentTimeMillis)]
     (when from-block? (ndarray/initialize-random-block (int block-size) r))
-    (loop [generation 0
-           pop (initialize-pop pop-size :r r :stdev stdev)
-           hof []
-           max-actions ##Inf]
+    (loop [state (steady-state (initialize-pop pop-size :r r :stdev stdev)
+                               :hof (open-hof hof-journal))
+           in-flight 0
+           started 0
+           t start]
+      (cond
+        ;;keep every thread busy
+        (and (< in-flight concurrency) (< started total))
+        (let [[state task] (breed state r
+                                  :benchmark-count benchmark-count
+                                  :prop-hof prop-hof
+                                  :bench-method bench-method
+                                  :selection selection)]
+          (evaluate task (.nextInt r))
+          (recur state (inc in-flight) (inc started) t))
+
+        (zero? in-flight)
+        (do (transformer/release-shared-models! :all? true)
+            {:last-pop (:pool state)
+             :hall-of-fame (round-errors (close-hof (:hof state)) 3)})
+
+        :else
+        (let [{individual :individual
+               results :results
+               e :exception} (.take completed)
+              _ (when e (throw e))
+              state (incorporate state individual results :pop-size pop-size)]
+          (if (zero? (mod (:evaluations state) pop-size))
+            (let [now (System/currentTimeMillis)]
+              (report-generation (:pool state) (dec (quot (:evaluations state) pop-size))
+                                 :max-actions max-actions
+                                 :time-ms (- now t))
+              (transformer/release-shared-models!)
+              (recur (end-generation state) (dec in-flight) started now))
+            (recur state (dec in-flight) started t)))))))
+
+#_(steady-state-ERL :pop-size 10 :num-generations 2 :benchmark-count 3)
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;;;            Island-model ERL               ;;;
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+
+;;;;;;;;;
+;;; In the island model, the population is split into islands, each of which runs its own
+;;; generational loop with its own benchmark, selection and hall of fame. Islands do not wait for
+;;; each other: every migration-interval generations an island sends the seeds of its best
+;;; individuals to the islands given by the migration topology, and at the end of every generation
+;;; it takes in whichever immigrants have arrived so far, in place of some of its children.
+;;;
+;;; Within one JVM, islands run in their own threads and share the thread pool, and migrants are
+;;; passed through a queue per island (see island-ERL). Under MPI, the ranks are split into one
+;;; communicator per island, and the lowest rank of each runs the master for that island 
+;;; (see MPI/role-by-rank).
+;;;
+;;; A migration is a map {:island :islands :interval :size :topology :send! :receive!}, where
+;;; (send! island emigrants) passes emigrants on to another island and (receive!) returns the
+;;; immigrants received since the last call, without blocking.
+;;;;;;;;;
+
+(defn migration-targets
+  "The islands to which island i of k sends its emigrants\\
+   topology: :ring, :bidirectional-ring, :complete, :random (one other island, drawn every migration),
+   or a function (fn [i k random]) -> [island ...]\\
+   -> [island ...]"
+  [topology i k random]
+  (->> (case topology
+         :ring [(inc i)]
+         :bidirectional-ring [(inc i) (dec i)]
+         :complete (range k)
+         :random (when (> k 1) [(+ i 1 (.nextInt random (dec k)))])
+         (topology i k random))
+       (map #(mod % k))
+       (remove #{i})
+       (distinct)
+       (vec)))
+
+(defn emigrants
+  "The n individuals of an evaluated population with the highest total error, 
+   reduced to their seeds\\
+   -> [{:id :seeds :stdev} ...]"
+  [pop n]
+  (->> pop
+       (sort-by total-error >)
+       (take n)
+       (mapv #(select-keys % [:id :seeds :stdev]))))
+
+(defn immigrate
+  "Replaces the last children of the next generation with immigrants to island, up to half of them.\\
+   Immigrants whose seeds are already on the island are dropped, and the others are renamed
+   so that the ids of their descendants cannot collide with those of the island's own individuals\\
+   -> pop"
+  [children immigrants island]
+  (let [children (vec children)
+        immigrants (->> immigrants
+                        (reduce (fn [[present kept] ind]
+                                  (if (present (:seeds ind))
+                                    [present kept]
+                                    [(conj present (:seeds ind)) (conj kept ind)]))
+                                [(into #{} (map :seeds) children) []])
+                        (second)
+                        (take (quot (count children) 2))
+                        (mapv #(update % :id (fn [id] (keyword (str (name id) "-m" island))))))]
+    (into (subvec children 0 (- (count children) (count immigrants)))
+          immigrants)))
+
+(defn migrate
+  "Sends emigrants from the evaluated population every interval generations, then lets in
+   the immigrants received so far (see immigrate)\\
+   migration - {:island :islands :interval :size :topology :send! :receive!}\\
+   -> pop"
+  [{:keys [island islands interval size topology send! receive!]
+    :or {interval 5
+         size 1
+         topology :ring}}
+   evaluated generation random children]
+  (when (zero? (mod (inc generation) interval))
+    (let [out (emigrants evaluated size)]
+      (run! #(send! % out) (migration-targets topology island islands random))))
+  (let [in (receive!)]
+    (if (seq in)
+      (immigrate children in island)
+      children)))
+
+(defn island-pop
+  "Prefixes the ids of a freshly initialized population with its island, so that
+   individuals are unique across islands\\
+   -> pop"
+  [pop island]
+  (mapv (fn [{id :id :as ind}]
+          (if (re-matches #"p\d+" (name id))
+            (assoc ind :id (keyword (str "i" island "-" (name id))))
+            ind))
+        pop))
+
+(defn island-file
+  "The file used by one island in place of filename\\
+   -> string"
+  [filename island]
+  (when filename (str filename "." island)))
+
+(defn generational-ERL
+  "Generational evolutionary loop (see ERL)\\
+   random - random number generator to use instead of one seeded from random-seed\\
+   island/migration - when running as one island of several, its index and migration (see migrate)\\
+   -> {:last-pop :hall-of-fame}"
+  [& {:keys [pop-size num-generations num-games benchmark-count random-seed random max-seq-length stdev from-block? prop-hof bench-method next-gen-method hof-journal checkpoint island migration]
+      :or {pop-size 3
+           num-generations 1
+           num-games 10
+           benchmark-count 5
+           random-seed 1
+           max-seq-length 20
+           prop-hof 0.5
+           bench-method :exp
+           next-gen-method :parents
+           stdev 0.005}}]
+  (let [r (or random (utils/random random-seed))
+        ;;the noise block is always initialized from the seed, and the run then resumes with the checkpointed generator
+        resumed (when checkpoint (read-checkpoint checkpoint))
+        r (or (:random resumed) r)]
+    (loop [generation (or (:generation resumed) 0)
+           pop (or (:pop resumed)
+                   (cond-> (initialize-pop pop-size :r r :stdev stdev)
+                     island (island-pop island)))
+           ;;the checkpoint is the only source: entries journaled after it are dropped
+           hof (if resumed
+                 (cond-> (:hof resumed) hof-journal (journal-hof hof-journal :rewrite? true))
+                 (open-hof hof-journal))
+           max-actions (or (:max-actions resumed) ##Inf)
+           estimate nil]
+      (when checkpoint
+        (checkpoint! checkpoint {:generation generation
+                                 :pop pop
+                                 :hof hof
+                                 :random r
+                                 :max-actions max-actions}))
       (if (= generation num-generations)
-        {:last-pop pop
-         :hall-of-fame (round-errors hof 3)}
+        (do (await checkpoint-writer)
+            {:last-pop pop
+             :hall-of-fame (round-errors (close-hof hof) 3)})
         (let [benchmark-pop (get-benchmark benchmark-count pop hof prop-hof :method bench-method)
               {{p :pop
                 b :benchmark
-                a :action-counts} :result
+                a :action-counts
+                e :estimate} :result
                t :time} (utils/get-time (benchmark pop
                                                    benchmark-pop
                                                    max-seq-length
@@ -994,18 +2101,103 @@
                                                    :symmetrical? true
                                                    :stdev stdev
                                                    :max-actions max-actions
-                                                   :from-block? from-block?))
-              [p h] (next-generation p r :method next-gen-method :benchmark-pop benchmark-pop)]
+                                                   :from-block? from-block?
+                                                   :estimate estimate))
+              [children h] (next-generation p r :method next-gen-method :benchmark-pop benchmark-pop)]
           (report-generation pop generation
                              :max-actions max-actions
-                             :time-ms t)
+                             :time-ms t
+                             :island island)
           (recur (inc generation)
-                 p
+                 (cond->> children
+                   migration (migrate migration p generation r))
                  (-> hof
                      (update-hof b)
                      ;;(cull-hof)
-                     (conj h))
-                 (* 2 (utils/mean a))))))))
+                     (add-generation h))
+                 (* 2 (utils/mean a))
+                 e))))))
+
+(defn island-ERL
+  "Runs islands copies of the generational loop in their own threads, each with pop-size individuals 
+   and seeded from random-seed + its index, migrating individuals between them through queues (see migrate).\\
+   hof-journal and checkpoint files are kept per island (see island-file)\\
+   -> {:last-pop :islands [{:last-pop :hall-of-fame} ...]}"
+  [& {:keys [islands migration-interval migration-size topology random-seed hof-journal checkpoint]
+      :or {random-seed 1
+           migration-interval 5
+           migration-size 1
+           topology :ring}
+      :as argmap}]
+  (let [mailboxes (vec (repeatedly islands #(java.util.concurrent.LinkedBlockingQueue.)))
+        migration (fn [i]
+                    {:island i
+                     :islands islands
+                     :interval migration-interval
+                     :size migration-size
+                     :topology topology
+                     :send! (fn [j out] (.put ^java.util.concurrent.LinkedBlockingQueue (mailboxes j) out))
+                     :receive! (fn []
+                                 (let [in (java.util.ArrayList.)]
+                                   (.drainTo ^java.util.concurrent.LinkedBlockingQueue (mailboxes i) in)
+                                   (into [] cat in)))})
+        ;;islands block on their own matchups, so they run outside of the thread pool
+        results (->> (range islands)
+                     (mapv (fn [i]
+                             (future
+                               (apply generational-ERL
+                                      (mapcat identity
+                                              (merge (dissoc argmap :islands)
+                                                     {:random-seed (+ random-seed i)
+                                                      :hof-journal (island-file hof-journal i)
+                                                      :checkpoint (island-file checkpoint i)
+                                                      :island i
+                                                      :migration (migration i)}))))))
+                     (mapv deref))]
+    {:last-pop (into [] (mapcat :last-pop) results)
+     :islands results}))
+
+(defn ERL
+  "Main evolutionary reinforcement loop. \\
+   First prints the arguments passed to the function. \\
+   Then initializes pop-size individuals, and iterates through the generations\\
+   At each generation, it selects benchmark individuals from the population and hall of fame,
+   and benchmarks the population against the selected individuals to compute their fitness.\\
+   Then, parents are selected via lexicase selection and children are generated from parents.\\
+   Finally the population, the generation number, and the time taken to benchmark individuals in
+   ms is reported out.\\
+   Before starting the next cycle, the generation number is incremented, the hall of fame is updated 
+   with new parents and culled to remove consistently poor individuals, and the maximum number
+   of actions available to evaluate individuals is set to 2x the average number of actions taken to evaluate
+   the previous population. This allows for at least 50% CPU utilization.\\
+   After the last generation, the final population and the hall of fame are returned\\
+   If steady-state? is true, runs steady-state evolution without generation barriers instead (see steady-state-ERL)\\
+   islands: number of islands of pop-size individuals to evolve side by side, exchanging the seeds of 
+   their migration-size best individuals every migration-interval generations over topology (see island-ERL, migrate)\\
+   hof-journal: file to which every change to the hall of fame is appended, and from which it is restored if it exists (see open-hof)\\
+   result-cache/result-cache-size: file and capacity of the matchup result cache (see open-result-cache!)\\
+   checkpoint: file to which a binary checkpoint is written at the start of every generation, and from which the run resumes if it exists (see checkpoint!)\\
+   -> {:last-pop :hof}"
+  [& {:keys [random-seed from-block? block-size steady-state? islands result-cache result-cache-size]
+      :or {random-seed 1
+           block-size 1e8}
+      :as argmap}]
+  (when result-cache
+    (open-result-cache! :filename result-cache
+                        :capacity (or result-cache-size 100000)))
+  (try
+    (let [argmap (dissoc argmap :steady-state? :result-cache :result-cache-size)]
+      (if steady-state?
+        (apply steady-state-ERL (mapcat identity argmap))
+        (let [r (utils/random random-seed)]
+          (println argmap)
+          (when from-block? (ndarray/initialize-random-block (int block-size) r))
+          (if (and islands (> islands 1))
+            (apply island-ERL (mapcat identity argmap))
+            (apply generational-ERL (mapcat identity (assoc (dissoc argmap :islands) :random r)))))))
+    (finally (await checkpoint-writer)
+             (when result-cache (close-result-cache!)))))
 
 
 #_(ERL :from-block? true)
+
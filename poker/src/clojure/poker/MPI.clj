@@ -1,6 +1,5 @@
 (ns poker.MPI
-  (:require [libpython-clj2.require :refer [require-python]]
-            [libpython-clj2.python :as py :refer [py. py.. py.-]]
+  (:require [libpython-clj2.python :as py :refer [py. py.. py.-]]
             [poker.ERL :as ERL]
             [poker.headsup :as headsup]
             [poker.concurrent :as concurrent]
@@ -8,10 +7,17 @@
             [poker.ndarray :as ndarray]
             [poker.transformer :as transformer]
             [poker.Andrew.processresult :as processresult]
-            [poker.slumbot :as slumbot]
+            [clojure.set :as set]
             [clojure.test :as t])
   (:import java.util.Random
-           java.lang.Runtime))
+           java.lang.Runtime
+           java.util.concurrent.BlockingQueue
+           java.util.concurrent.CompletableFuture
+           java.util.concurrent.ConcurrentHashMap
+           java.util.concurrent.LinkedBlockingQueue
+           java.util.function.BiConsumer
+           poker.Mailbox
+           poker.Transport))
 
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
@@ -59,9 +65,9 @@
 ;;; to worker threads, which await a signal from the master thread, evaluate the 
 ;;; fitness, send the result to the master thread, and await another task.
 ;;;
-;;; In master-slave communication, a tag of 0 indicates a task sent to the slave
-;;; or the result of a fitness evaluation sent to the master. A tag of 1 indicates
-;;; a termination message sent to the slave.
+;;; In master-slave communication, a tag of 1002 indicates a batch of tasks sent to the slave,
+;;; and a tag of 1003 a batch of results of fitness evaluations sent to the master. A tag of 1000 
+;;; indicates a termination message sent to the slave.
 ;;;
 ;;; I kept running into out of memory issues when using each hardware thread as an MPI
 ;;; thread. I assume there's some kind of overhead or lack of synchronization that MPI 
@@ -85,16 +91,30 @@
 ;; How to call evolutionary loop with default arguments:
 #_(ERL)
 ;; Use either of these two commands in a shell:
-;;mpiexec -n 10 -map-by socket:PE=5 lein run poker.MPI ERL
-;;srun --mpi pmix -n 10 --cpus-per-task 10 lein run poker.MPI ERL
+;;mpiexec -n 10 -map-by socket:PE=5 --mca mpi_yield_when_idle 1 lein run poker.MPI ERL
+;;OMPI_MCA_mpi_yield_when_idle=1 srun --mpi pmix -n 10 --cpus-per-task 10 lein run poker.MPI ERL
+;; The receive thread of every process blocks in MPI (see receiver). Open MPI busy-polls
+;; while blocked unless mpi_yield_when_idle is set, which would take a core from the
+;; evaluations. initialize-MPI sets it when the launch doesn't
+;; Without MPI, the same processes can be connected with sockets (see -main):
+;;lein run -m poker.MPI <rank> 10 5000 "{}" <master host>
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 
 
 ;;; MPI Import and Environment Variables ;;;
-(require-python '[mpi4py :as mpi])
-(py/set-attr! mpi/rc "initialize" false)
-(py/set-attr! mpi/rc "finalize" false)
-(require-python '[mpi4py.MPI])
+;;; mpi4py is imported on first use, so that processes connected
+;;; by the socket transport run without a python interpreter
+(def mpi4py
+  "The mpi4py.MPI module"
+  (delay (let [mpi (py/import-module "mpi4py")]
+           (py/set-attr! (py/get-attr mpi "rc") "initialize" false)
+           (py/set-attr! (py/get-attr mpi "rc") "finalize" false)
+           (py/import-module "mpi4py.MPI"))))
+
+(defn world-comm
+  "The MPI world communicator"
+  []
+  (py.- @mpi4py COMM_WORLD))
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 
 
@@ -105,14 +125,17 @@
 (defn close-MPI
   "Finalizes the MPI environment"
   []
-  (when (mpi4py.MPI/Is_initialized)
-    (mpi4py.MPI/Finalize)))
+  (when (py. @mpi4py Is_initialized)
+    (py. @mpi4py Finalize)))
 
 (defn initialize-MPI
-  "Initializes the MPI environment"
+  "Initializes the MPI environment. MPI is called from several threads 
+   (see receiver), so initialization requires full thread support.
+   Open MPI is made to yield while blocked in a receive, unless mpi_yield_when_idle is already set"
   []
-  (when-not (mpi4py.MPI/Is_initialized)
-    (mpi4py.MPI/Init)))
+  (when-not (py. @mpi4py Is_initialized)
+    (py. (py/get-attr (py/import-module "os") "environ") setdefault "OMPI_MCA_mpi_yield_when_idle" "1")
+    (py. @mpi4py Init_thread)))
 
 
 (defmacro with-MPI
@@ -122,6 +145,146 @@
         ~@body
         (finally (close-MPI))))
 
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;;;;;; Transport-independent Communication      ;;;;;;
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+
+;;;;;;;;;
+;;; The master and slaves talk through a communicator, which is either an MPI 
+;;; communicator driven through mpi4py, or a poker.Transport connecting JVM 
+;;; processes over sockets without python. Both address messages by rank and tag.
+;;; MPI messages are converted to and from python dicts, while the transport
+;;; sends clojure data as is in a compact binary encoding (see poker.Codec).
+;;;
+;;; Requests to send or receive a message are either MPI Requests or futures. The master's
+;;; own threads also return futures, so a future is handled the same wherever it comes from.
+;;;
+;;; Rather than polling their requests, the master and slave loops block on a queue
+;;; of completed requests. Futures put themselves on the queue when they complete
+;;; (see on-completion), and messages are received as futures (see receiver).
+;;;;;;;;;
+
+(defn transport?
+  "Whether comm is a socket transport rather than an MPI communicator"
+  [comm]
+  (instance? Transport comm))
+
+(defn comm-rank
+  [comm]
+  (if (transport? comm) (.rank ^Transport comm) (py. comm Get_rank)))
+
+(defn comm-size
+  [comm]
+  (if (transport? comm) (.size ^Transport comm) (py. comm Get_size)))
+
+(defn send-message
+  "Sends message to the process of rank dest with the given tag, without waiting for it to be received\\
+   -> request"
+  [comm message dest tag]
+  (if (transport? comm)
+    (.isend ^Transport comm (int dest) (int tag) message)
+    (py. comm isend (if (map? message) (py/->py-dict message) (py/->python message))
+         :dest dest
+         :tag tag)))
+
+(defn receive-message
+  "Posts a receive for the next message from the process of rank source with the given tag\\
+   -> request"
+  [comm source tag]
+  (if (transport? comm)
+    (.irecv ^Transport comm (int source) (int tag))
+    (py. comm irecv :source source :tag tag)))
+
+(defn received?
+  "Whether a request has completed"
+  [request]
+  (if (future? request)
+    (.isDone ^java.util.concurrent.Future request)
+    (py. request Get_status)))
+
+(defn complete-request
+  "Waits for a request to complete and returns its message. Messages received 
+   over MPI are returned as python objects converted to the jvm"
+  [request]
+  (if (future? request)
+    (deref request)
+    (py/->jvm (py. request wait))))
+
+(defn cancel-request
+  [request]
+  (if (future? request)
+    (future-cancel request)
+    (py. request cancel)))
+
+(defn on-completion
+  "Puts x on queue once future has completed, whether or not it succeeded\\
+   -> future"
+  [^CompletableFuture future ^BlockingQueue queue x]
+  (.whenComplete future (reify BiConsumer
+                          (accept [_ _ _] (.put queue x))))
+  future)
+
+(defn take-completed
+  "Blocks until queue is not empty, then takes everything in it\\
+   -> [x ...]"
+  [^BlockingQueue queue]
+  (let [x (.take queue)
+        more (java.util.ArrayList.)]
+    (.drainTo queue more)
+    (into [x] more)))
+
+(def stop-tag
+  "Tag of the message with which a process stops its own receiver"
+  1001)
+
+(defn receiver
+  "Receives the messages sent to this process as futures, without polling\\
+   (expect source tag) returns a CompletableFuture of the next message from source with tag.
+   Any number of messages may be expected, or arrive before being expected, for each source and tag\\
+   Over the socket transport, expect is a receive of the transport. MPI requests cannot notify
+   their completion, so over MPI a dedicated thread blocks in recv for messages from any source 
+   with any tag, and delivers them to a poker.Mailbox. close stops the thread. Open MPI only yields
+   the core of a blocked thread with mpi_yield_when_idle (see initialize-MPI)\\
+   -> {:expect :close}"
+  [comm]
+  (if (transport? comm)
+    {:expect #(receive-message comm %1 %2)
+     :close (fn [])}
+    (let [mailbox (Mailbox.)
+          thread (doto (Thread. ^Runnable
+                                (fn []
+                                  (loop []
+                                    (let [status (py. @mpi4py Status)
+                                          message (py. comm recv
+                                                       :source (py.- @mpi4py ANY_SOURCE)
+                                                       :tag (py.- @mpi4py ANY_TAG)
+                                                       :status status)
+                                          source (py. status Get_source)
+                                          tag (py. status Get_tag)]
+                                      (when-not (= tag stop-tag)
+                                        (.deliver mailbox (int source) (int tag) (py/->jvm message))
+                                        (recur))))))
+                   (.setDaemon true)
+                   (.start))]
+      {:expect #(.expect mailbox (int %1) (int %2))
+       :close (fn []
+                (send-message comm 1 (comm-rank comm) stop-tag)
+                (.join thread)
+                (.close mailbox (Exception. "Receiver closed")))})))
+
+(defn open-transport
+  "Connects the processes of a socket transport. Rank 0 listens at host:port for the other 
+   size-1 ranks, which connect to it there within timeout-ms. host is the address of the master,
+   and the master only accepts connections on that address\\
+   -> Transport"
+  [& {:keys [rank size host port timeout-ms]
+      :or {host "localhost"
+           port 5000
+           timeout-ms 600000}}]
+  (if (zero? rank)
+    (Transport/master host (int port) (int size))
+    (Transport/worker host (int port) (int rank) (int size) (long timeout-ms))))
+
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 ;;;              MPI code                ;;;
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
@@ -139,44 +302,67 @@
    Overriding argmaps passed down from MPI/ERL and ultimately from core/hotstart are supplied in the 
    :argmaps optional argument. These are merged together in order, with later argmaps overriding earlier
    argmaps, and passed to ERL/versus\\
-   -> {(:ind1 :ind2) (:net-gain) (:winner) (:action-count)} \\
+   A task with :opponents plays its only player against all of them (see ERL/versus-group), 
+   and returns the result of every matchup under :results\\
+   Individuals are built with transformer-parameters when given, so that experiments with different
+   transformers can share processes (see transformer/with-parameters)\\
+   -> {(:ind1 :ind2) (:net-gain) (:winner) (:action-count)} or {:results [...]}\\
    cf. ERL/versus"
-  [& {:keys [players max-actions deck-seed max-seq-length num-games stdev from-block? argmaps]}]
+  [& {:keys [players opponents symmetrical? max-actions deck-seed max-seq-length num-games stdev from-block? quantize? transformer-parameters argmaps]}]
   (assert (or (and players max-actions max-seq-length num-games)
               argmaps)
           (str "Must have all required parameters " players max-actions max-seq-length num-games))
-  #_(println "rank " (py. mpi4py.MPI/COMM_WORLD Get_rank) " evaluating task")
-  (apply ERL/versus
-         (first players)
-         (second players)
-         max-seq-length
-         num-games
-         (mapcat identity
-                 (into [] (merge
-                           {:net-gain? true
-                            :stdev stdev
-                            :decks deck-seed
-                            :max-actions max-actions
-                            :action-count? true
-                            :from-block? from-block?
-                            :gc? true}
-                           argmaps)))))
+  #_(println "rank " (get-rank) " evaluating task")
+  (transformer/with-parameters transformer-parameters
+    (if opponents
+      {:results (apply ERL/versus-group
+                       (first players)
+                       opponents
+                       max-seq-length
+                       num-games
+                       (mapcat identity
+                               (into [] (merge
+                                         {:net-gain? true
+                                          :stdev stdev
+                                          :decks deck-seed
+                                          :max-actions max-actions
+                                          :action-count? true
+                                          :from-block? from-block?
+                                          :quantize? quantize?
+                                          :gc? true
+                                          :symmetrical? symmetrical?}
+                                         argmaps))))}
+      (apply ERL/versus
+             (first players)
+             (second players)
+             max-seq-length
+             num-games
+             (mapcat identity
+                     (into [] (merge
+                               {:net-gain? true
+                                :stdev stdev
+                                :decks deck-seed
+                                :max-actions max-actions
+                                :action-count? true
+                                :from-block? from-block?
+                                :quantize? quantize?
+                                :gc? true}
+                               argmaps)))))))
 
 (defn process-result
   "Processes the result received either from MPI or from derefing a thread. 
    :rank - the rank of the process that's supposed to send the result\\
    If the rank is 0, that means it's the master MPI process's own threads sending
    the result, and the result is therefore a future, not an MPI Request\\
-   :result - the result to receive. Either a future or an MPI Request object\\
+   :result - the result to receive. Either a future or an MPI Request object. 
+   Results from other processes are converted to clojure data with keyword keys (see complete-request)\\
    -> {:net-gain :action-count}"
   [& {:keys [rank result]}]
   #_(println "process result from rank " rank)
   (assert (and rank result) (str "Must provide rank and result" rank result))
   (if (zero? rank)
     (deref result)
-    (-> (py. result wait)
-        (py/->jvm)
-        (utils/recursive-copy :to-keyword? true))))
+    (utils/recursive-copy (complete-request result) :to-keyword? true)))
 
 (defn test-result
   "Tests whether the future or Request result has been realized or sent\\
@@ -184,43 +370,38 @@
    See process-result"
   [& {:keys [rank result]}]
   (assert (and rank result) (str "Must provide rank and result" rank result))
-  (if (zero? rank)
-    (.isDone result)
-    (py. result Get_status)))
+  (received? result))
 
 (defn send-task
-  "Sends off a task to be executed in a thread of a process. Returns information
-   about the rank and thread, and a future to receive the results.\\
-   :comm - world communicator for MPI\\
+  "Sends off a task to be executed in a thread of the master process. Returns information
+   about the rank and thread, and a future to receive the results. Tasks for the threads
+   of slave processes are sent in batches instead (see dispatch!)\\
+   :comm - world communicator for MPI, or socket transport\\
    :task - fitness evaluation task to be sent to slave thread\\
-   :rank - the rank of the process in which the slave thread resides\\
+   :rank - the rank of the process in which the slave thread resides. Must be 0\\
    :thread - the index of the target thread in the target MPI process\\
    Doesn't correspond to an actual hardware thread. Used for keeping track 
    of how many tasks have been sent to each MPI process\\
    :args - arguments to be passed to the fitness evaluation task\\
+   :completed - queue on which {:rank :thread :result} is put once the result has arrived\\
    see ERL/versus, evaluate-task\\
    -> {:rank :thread :result}"
-  [& {:keys [comm task rank thread args]
+  [& {:keys [comm task rank thread args completed]
       :as argmap}]
   (assert (and comm task rank thread args) (str "Must provide task, rank, and thread" comm task rank thread args))
   #_(println "sending task to rank " rank " thread " thread)
   (assert (>= thread 0) "Thread cannot be negative")
-  
-  (let [send-request (when-not (zero? rank) (py. comm isend (py/->py-dict task)
-                                                 :dest rank
-                                                 :tag thread))]
-    {:rank rank
-     :thread thread
-     :result (if (zero? rank)
-               (concurrent/msubmit
+  (assert (zero? rank) "Tasks for slave processes are sent in batches, see dispatch!")
+  (let [result (concurrent/msubmit-completable
                 (utils/apply-map evaluate-task
                                  task
                                  args
                                  {:argmaps [args task]}))
-               (py. comm irecv
-                    :source rank
-                    :tag thread))
-     :send-request send-request}))
+        request {:rank rank
+                 :thread thread
+                 :result result}]
+    (when completed (on-completion result completed request))
+    request))
 
 #_(defn send-and-collect
     "Send off tasks to the threads given by their rank, and return a vector of 
@@ -245,31 +426,435 @@
    :args - arguments passed to fitness evaluation function\\
    :rank-threads - list of {:rank :thread} designating slave threads to which
    these tasks are being sent\\
-   :ranks, :threads - alternatively specify a list of ranks and a list of threads,
-   and send tasks to every combination of rank and thread\\
    :tasks - total tasks to be sent. Only actually sends as many tasks as the number
-   of slave threads specified by :rank-threads or :ranks and :threads\\
+   of slave threads specified by :rank-threads\\
+   :completed - see send-task\\
    -> [{:rank :thread :result} ...]\\
    cf. send-task"
-  ([comm args rank-threads tasks]
-   #_(when (seq rank-threads) (println "resend-tasks to " (map (fn [{rank :rank thread :thread}]
-                                                                 {:rank rank :thread thread})
-                                                               (take (count tasks) rank-threads))))
-   (let [results (mapv #(utils/apply-map send-task
-                           {:comm comm :args args}
-                           %1
-                           {:task %2})
-         rank-threads
-         tasks)]
-     (mapv #(when (:send-request %) (py. (:send-request %) wait)) results)
-     (mapv #(dissoc % :send-request) results)))
-  ([comm args ranks threads tasks]
-   (resend-tasks comm
-                 args
-                 (for [r ranks
-                       t threads]
-                   {:rank r :thread t})
-                 tasks)))
+  [comm args rank-threads tasks & {:keys [completed]}]
+  #_(when (seq rank-threads) (println "resend-tasks to " (map (fn [{rank :rank thread :thread}]
+                                                                {:rank rank :thread thread})
+                                                              (take (count tasks) rank-threads))))
+  (mapv #(utils/apply-map send-task
+                          {:comm comm :args args :completed completed}
+                          (select-keys %1 [:rank :thread])
+                          {:task %2})
+        rank-threads
+        tasks))
+
+;;;;;;;;;
+;;; Tasks for a slave process are sent in batches: one message holds the tasks of all of its 
+;;; threads that have become free, and the slave answers with the results of all of the
+;;; evaluations that finished together in one message. All batches to and from a process
+;;; share a tag, so they arrive in the order they were sent.
+;;;
+;;; Every slave keeps a table of the individuals the master has sent it, and the master keeps
+;;; a copy of each slave's table (see individual-tables). Tasks refer to individuals by id, and
+;;; an individual is only sent the first time a slave needs it, either in full, or as the id of
+;;; its parent and the seed of its mutation when the slave already knows the parent. Every task 
+;;; of a generation plays the same benchmark individuals, and children differ from their parents
+;;; by one seed, so that after the first batch of a generation tasks are mostly ids.
+;;;
+;;; Tables are pruned at every epoch, one per call to collect-fitness, down to the individuals used
+;;; in the previous epoch, which include the parents of the next generation. Master and slave
+;;; prune a table at the first batch of a new epoch, so that their copies stay the same.
+;;;
+;;; Every task carries the run of the dispatcher that sent it and its index, which its result
+;;; carries back. A speculative copy of a task may still be running when its collection ends
+;;; (see collect-fitness). Its slot stays out of the pool until it finishes, and its result is then
+;;; dropped (see hold-slots!).
+;;;
+;;; The slots of the threads of every process make up a worker pool (see worker-pool), which also
+;;; receives the results of every slave and routes them to the dispatcher of their run. Several
+;;; experiments can share one pool (see run-experiments). A collection only holds slots while their
+;;; tasks run, and the pool shares its free slots evenly between the collections waiting for them
+;;; (see share-slots!). Tasks and tables then also carry their experiment, and every slave keeps
+;;; one individual table and argmap per experiment.
+;;;;;;;;;
+
+(def task-tag
+  "Tag of batches of tasks sent to a slave"
+  1002)
+
+(def result-tag
+  "Tag of batches of results sent to the master"
+  1003)
+
+(def epochs
+  "Counter of the epochs of individual tables"
+  (atom 0))
+
+(def in-flight-tasks
+  "Number of tasks sent to each slave, by rank, whose results have not arrived yet. Kept across
+   worker pools, since speculative copies may still be running when a run ends"
+  (atom {}))
+
+(def speculation
+  "Statistics of the speculative copies of tasks over a run (see collect-fitness)\\
+   :tail-ms - total time from sending the last task of a collection to receiving its last result\\
+   :speculated - number of copies sent\\
+   :won - number of tasks whose first result came from a copy\\
+   :saved - by run of a collection, how much later than its end a copy overtaken by another copy finished. 
+   The collection would have lasted at least that much longer without speculation\\
+   :overtaken - the end of the collection of each overtaken copy still running, by [run index]"
+  (atom {:tail-ms 0 :speculated 0 :won 0 :saved {} :overtaken {}}))
+
+(defn record-overtaken!
+  "Records that an overtaken copy of the task of the given index in the collection of the given run has finished"
+  [run index]
+  (let [now (System/currentTimeMillis)]
+    (swap! speculation
+           (fn [{:keys [overtaken] :as s}]
+             (if-let [end (overtaken [run index])]
+               (-> s
+                   (update :overtaken dissoc [run index])
+                   (update-in [:saved run] (fnil max 0) (- now end)))
+               s)))))
+
+(defn speculation-report
+  "Summary of the statistics of speculative copies, with the tail time they saved in total\\
+   -> {:tail-ms :speculated :won :saved-ms}"
+  []
+  (let [{:keys [saved] :as s} @speculation]
+    (assoc (select-keys s [:tail-ms :speculated :won])
+           :saved-ms (reduce + 0 (vals saved)))))
+
+(def individual-tables
+  "The master's copy of the individual table of each slave, by [rank experiment], with the seeds of the 
+   individuals it knows. See next-epoch"
+  (atom {}))
+
+(defn next-epoch
+  "Moves an individual table {:epoch :known {id individual} :used #{id}} to epoch, keeping
+   only the individuals used in the previous epoch\\
+   -> table"
+  [table epoch]
+  (if (= epoch (:epoch table))
+    table
+    {:epoch epoch
+     :known (select-keys (:known table) (:used table))
+     :used #{}}))
+
+(defn encode-batch
+  "Encodes tasks as one batch for a slave whose individual table is table, replacing individuals
+   by their ids and defining those the slave doesn't know yet. Keys whose value is shared by all tasks
+   are sent once\\
+   -> [table {:epoch :individuals [{:id :seeds :stdev} or {:id :parent :seed :stdev} ...] :tasks [task ...] & shared}]\\
+   cf. decode-batch"
+  [table epoch tasks]
+  (let [table (next-epoch table epoch)
+        parents (set/map-invert (:known table))
+        shared (into {}
+                     (filter (fn [[k v]] (every? #(= v (get % k)) tasks)))
+                     (select-keys (first tasks) [:max-actions :deck-seed :symmetrical?]))
+        define (fn [[table definitions] {:keys [id seeds stdev]}]
+                 (let [table (update table :used conj id)
+                       parent (when (and (vector? seeds) (seq seeds))
+                                (parents (pop seeds)))]
+                   (cond (= seeds (get-in table [:known id])) [table definitions]
+                         parent [(-> table
+                                     (assoc-in [:known id] seeds)
+                                     (update :used conj parent))
+                                 (conj definitions {:id id :parent parent :seed (peek seeds) :stdev stdev})]
+                         :else [(assoc-in table [:known id] seeds)
+                                (conj definitions {:id id :seeds seeds :stdev stdev})])))
+        [table definitions] (reduce define
+                                    [table []]
+                                    (mapcat #(concat (:players %) (:opponents %)) tasks))]
+    [table
+     (assoc shared
+            :epoch epoch
+            :individuals definitions
+            :tasks (mapv #(cond-> (apply dissoc % (keys shared))
+                            true (update :players (partial mapv :id))
+                            (:opponents %) (update :opponents (partial mapv :id)))
+                         tasks))]))
+
+(declare release-slot!)
+
+(defn expect-results
+  "Expects the next batch of results from the slave of the given rank. When it arrives, each result
+   is put on the completed queue of the dispatcher of its run, or dropped if the collection of its run
+   has ended, giving the slot of the losing copy back to the pool (see hold-slots!). The next batch is
+   expected while the slave still has tasks in flight"
+  [{:keys [receiver ^ConcurrentHashMap routes expecting] :as pool} rank]
+  (let [batch ((:expect receiver) rank result-tag)]
+    (swap! expecting assoc rank batch)
+    (.whenComplete ^CompletableFuture batch
+                   (reify BiConsumer
+                     (accept [_ message e]
+                       (if e
+                         (run! #(.put ^BlockingQueue % {:rank rank :error e}) (.values routes))
+                         (let [results (:results (utils/recursive-copy message :to-keyword? true))]
+                           ;;a dispatcher drains its results when it stops routing (see end-speculation!)
+                           (doseq [[run results] (group-by :run results)]
+                             (when-not (locking routes
+                                         (some-> ^BlockingQueue (.get routes run)
+                                                 (doto (.put {:rank rank :results results}))))
+                               (run! #(do (record-overtaken! run (:index %))
+                                          (release-slot! pool {:rank rank :thread (:thread %)}))
+                                     results)))
+                           (when (pos? (get (swap! in-flight-tasks update rank - (count results)) rank))
+                             (expect-results pool rank)))))))
+    batch))
+
+(defn worker-pool
+  "The slots {:rank :thread} of a run: one per thread of every process, plus prefetch per process
+   whose tasks are queued behind its threads (see collect-fitness), with a receiver for the results
+   of the slaves. Slots are ordered thread by thread, so that any number of them is spread evenly
+   over the processes\\
+   ranks - number of processes. Defaults to the size of comm\\
+   -> {:comm :receiver :routes :expecting :size :slots}\\
+   cf. share-slots!, hold-slots!"
+  [comm & {:keys [prefetch ranks]
+           :or {prefetch 1}}]
+  (let [slots (vec (for [thread (range (+ (utils/num-processors) prefetch))
+                         rank (range (or ranks (comm-size comm)))]
+                     {:rank rank :thread thread}))
+        pool {:comm comm
+              :receiver (receiver comm)
+              :routes (ConcurrentHashMap.)
+              :expecting (atom {})
+              :size (count slots)
+              :slots (atom {:free slots :held {} :wanting {} :running #{}})}]
+    ;;results of copies still running since the last collection
+    (run! (fn [[rank n]] (when (pos? n) (expect-results pool rank)))
+          @in-flight-tasks)
+    pool))
+
+(defn share-slots!
+  "Gives the slots held by owner back to the pool, and takes up to n free slots in their place.
+   While another owner waits for slots and holds less than an even share of the pool, owner only gets
+   slots up to its own share. An owner that gets fewer than n slots waits for more, and {:wake true} is
+   put on its queue whenever slots are freed. With spare?, takes every free slot instead when no other
+   owner is waiting, for speculative copies (see assign-slots)\\
+   -> [{:rank :thread} ...]"
+  [{:keys [slots size]} owner held n queue & {:keys [spare?]}]
+  (locking slots
+    (let [state (-> @slots
+                    (update :free into held)
+                    (update-in [:held owner] (fnil - 0) (count held)))
+          others (dissoc (:wanting state) owner)
+          active (-> (set (keys others))
+                     (into (keep (fn [[o h]] (when (pos? h) o))) (:held state))
+                     (conj owner))
+          share (long (Math/ceil (/ size (count active))))
+          limit (if (some #(< (get-in state [:held %] 0) share) (keys others))
+                  (max 0 (- share (get-in state [:held owner])))
+                  n)
+          granted (vec (take (if (and spare? (empty? others))
+                               (count (:free state))
+                               (min n limit))
+                             (:free state)))
+          state (-> state
+                    (update :free #(vec (drop (count granted) %)))
+                    (update-in [:held owner] + (count granted))
+                    (update :held #(if (pos? (% owner)) % (dissoc % owner)))
+                    (update :wanting #(if (and queue (< (count granted) n))
+                                        (assoc % owner queue)
+                                        (dissoc % owner))))]
+      (reset! slots state)
+      ;;the other owners waiting may get some of the slots left
+      (when (and (seq (:free state)) (or (seq held) (seq granted)))
+        (run! #(.put ^BlockingQueue % {:wake true}) (vals (dissoc (:wanting state) owner))))
+      granted)))
+
+(defn hold-slots!
+  "Takes the slots held by owner out of the pool without freeing them, while the losing copies
+   running on them finish. Each slot goes back to the pool once its copy has finished (see release-slot!)"
+  [{:keys [slots]} owner held]
+  (locking slots
+    (swap! slots #(-> %
+                      (update-in [:held owner] (fnil - 0) (count held))
+                      (update :held (fn [h] (if (pos? (h owner)) h (dissoc h owner))))
+                      (update :running into held)))))
+
+(defn release-slot!
+  "Gives back to the pool a slot taken out by hold-slots!, once the copy running on it has finished.
+   Slots that are not running a losing copy are left as they are"
+  [{:keys [slots]} slot]
+  (locking slots
+    (when (contains? (:running @slots) slot)
+      (let [state (swap! slots #(-> %
+                                    (update :running disj slot)
+                                    (update :free conj slot)))]
+        (run! #(.put ^BlockingQueue % {:wake true}) (vals (:wanting state)))))))
+
+(defn close-pool
+  "Stops expecting results and closes the receiver of a worker pool"
+  [{:keys [receiver expecting]}]
+  (run! #(.cancel ^CompletableFuture % false) (vals @expecting))
+  ((:close receiver)))
+
+(defn dispatcher
+  "Sends tasks to the threads of a worker pool and collects their results as they finish.
+   Tasks for the master's own threads are submitted directly (see resend-tasks), and those for
+   the threads of a slave are sent as one batch per call to dispatch! (see encode-batch)\\
+   experiment - index of the experiment the tasks belong to, when several share the pool (see run-experiments)\\
+   -> {:pool :comm :args :experiment :completed :run :epoch :local}"
+  [pool args & {:keys [experiment]}]
+  (let [run (swap! epochs inc)
+        completed (LinkedBlockingQueue.)]
+    (.put ^ConcurrentHashMap (:routes pool) run completed)
+    {:pool pool
+     :comm (:comm pool)
+     :args args
+     :experiment experiment
+     :completed completed
+     :run run
+     :epoch (atom run)
+     :local (atom {})}))
+
+(defn new-epoch!
+  "Starts a new epoch of the individual tables of the slaves of a dispatcher"
+  [dispatcher]
+  (reset! (:epoch dispatcher) (swap! epochs inc)))
+
+(defn dispatch!
+  "Sends each task to a slot {:rank :thread}, with the tasks for the threads of a slave
+   in one batch. Only sends as many tasks as there are slots\\
+   -> number of tasks sent"
+  [{:keys [pool comm args experiment completed run epoch local]} slots tasks]
+  (let [assigned (map #(assoc (select-keys %1 [:rank :thread]) :task %2) slots tasks)]
+    (doseq [[rank assigned] (group-by :rank assigned)]
+      (if (zero? rank)
+        (doseq [[{{index :index} :task} request] (map vector
+                                                      assigned
+                                                      (resend-tasks comm args assigned (map #(dissoc (:task %) :index) assigned)))]
+          (when index (swap! local assoc index (:result request)))
+          (on-completion (:result request) completed (assoc request :index index)))
+        (let [[table batch] (encode-batch (get @individual-tables [rank experiment]) @epoch (map :task assigned))
+              ;;counted before sending, so that the results cannot arrive first
+              [in-flight] (swap-vals! in-flight-tasks update rank (fnil + 0) (count assigned))]
+          (swap! individual-tables assoc [rank experiment] table)
+          (when (zero? (get in-flight rank 0))
+            (expect-results pool rank))
+          (complete-request (send-message comm
+                                          (cond-> (-> batch
+                                                      (assoc :run run)
+                                                      (update :tasks #(mapv (fn [task {t :thread}]
+                                                                              (assoc task :thread t))
+                                                                            %
+                                                                            assigned)))
+                                            experiment (assoc :experiment experiment))
+                                          rank
+                                          task-tag)))))
+    (count assigned)))
+
+(defn completed-results
+  "Blocks until some of the tasks sent by dispatch! have finished, or until the pool has freed
+   slots for the dispatcher (see share-slots!). Results of tasks sent by earlier dispatchers have
+   been dropped by the pool (see expect-results)\\
+   -> [{:rank :thread :index :result} ...]"
+  [{:keys [completed]}]
+  (into []
+        (mapcat (fn [{:keys [rank thread index result results error]}]
+                  (cond error (throw (ex-info (str "Failed to receive results from rank " rank) {:rank rank} error))
+                        results (map #(-> % (dissoc :run) (assoc :rank rank)) results)
+                        result [{:rank rank
+                                 :thread thread
+                                 :index index
+                                 :result (process-result :rank rank :result result)}])))
+        (take-completed completed)))
+
+(defn close-dispatcher
+  "Stops routing results to a dispatcher. Results of its tasks that arrive later are dropped"
+  [{:keys [pool run]}]
+  (.remove ^ConcurrentHashMap (:routes pool) run))
+
+(defn assign-slots
+  "Assigns the free slots of a collection to the tasks left to send, in order. Once every task
+   has been sent, the remaining free slots get speculative copies of the oldest outstanding tasks
+   instead, each task running at most copies times and at most once per process\\
+   -> [state [{:rank :thread :index} ...]]\\
+   cf. collect-fitness"
+  [{:keys [free queue] :as state} copies now]
+  (let [fresh (map #(assoc %1 :index %2) free queue)
+        state (-> state
+                  (update :free #(vec (drop (count fresh) %)))
+                  (update :queue #(drop (count fresh) %))
+                  (update :outstanding into (map #(vector (:index %) {:sent now :slots [(dissoc % :index)]})) fresh))]
+    (if (or (seq (:queue state)) (< copies 2))
+      [state fresh]
+      (let [pick (fn [state slot]
+                   (some (fn [[index {:keys [slots]}]]
+                           (when (and (< (count slots) copies)
+                                      (not-any? #(= (:rank slot) (:rank %)) slots))
+                             index))
+                         (sort-by (comp :sent val) (:outstanding state))))
+            [state copied free] (reduce (fn [[state copied free] slot]
+                                          (if-let [index (pick state slot)]
+                                            [(update-in state [:outstanding index :slots] conj slot)
+                                             (conj copied (assoc slot :index index))
+                                             free]
+                                            [state copied (conj free slot)]))
+                                        [state [] []]
+                                        (:free state))]
+        [(-> state
+             (assoc :free free)
+             (update :speculated + (count copied)))
+         (into (vec fresh) copied)]))))
+
+(defn record-result
+  "Frees the slot of a finished task, and records its result unless another copy of the task
+   has already returned one. The other copies of the task still running are then losing\\
+   -> state\\
+   cf. collect-fitness"
+  [{:keys [results outstanding] :as state} {:keys [rank thread index result]}]
+  (let [slot {:rank rank :thread thread}
+        state (update state :free conj slot)]
+    (if (contains? results index)
+      ;;an overtaken copy
+      (update state :losing #(let [slots (vec (remove #{slot} (get-in % [index :slots])))]
+                               (if (seq slots)
+                                 (assoc-in % [index :slots] slots)
+                                 (dissoc % index))))
+      (let [slots (get-in outstanding [index :slots])
+            won? (not= slot (first slots))
+            losing (vec (remove #{slot} slots))]
+        (cond-> (-> state
+                    (assoc-in [:results index] result)
+                    (update :outstanding dissoc index))
+          won? (update :won inc)
+          (seq losing) (assoc-in [:losing index] {:slots losing
+                                                  :won? won?
+                                                  :winner rank}))))))
+
+(defn end-speculation!
+  "Adds the statistics of a collection to speculation, and keeps track of the copies overtaken
+   by a speculative copy that are still running, whose results will be dropped. The slots of the losing
+   copies are held until they finish, so that no other task is sent to a thread that is still busy.
+   Results that already reached the dispatcher give their slot back at once (see hold-slots!)\\
+   Stops routing results to the dispatcher"
+  [{:keys [pool run local completed] :as dispatcher} owner {:keys [drained losing speculated won]}]
+  (let [end (System/currentTimeMillis)
+        overtaken (filter (comp :won? val) losing)]
+    (swap! speculation #(-> %
+                            (update :tail-ms + (- end (or drained end)))
+                            (update :speculated + speculated)
+                            (update :won + won)
+                            (update :overtaken into (map (fn [[index _]] [[run index] end])) overtaken)))
+    ;;overtaken copies on the master's own threads
+    (doseq [[index {:keys [winner]}] overtaken
+            :let [future (@local index)]
+            :when (and future (not (zero? winner)))]
+      (.whenComplete ^CompletableFuture future (reify BiConsumer
+                                                 (accept [_ _ _] (record-overtaken! run index)))))
+    (hold-slots! pool owner (mapcat (comp :slots val) losing))
+    ;;later results of remote copies are dropped by the pool, which releases their slots
+    (doseq [{:keys [rank results]} (locking (:routes pool)
+                                     (close-dispatcher dispatcher)
+                                     (take-while some? (repeatedly #(.poll ^BlockingQueue completed))))
+            {:keys [thread index]} results]
+      (record-overtaken! run index)
+      (release-slot! pool {:rank rank :thread thread}))
+    ;;copies on the master's own threads
+    (doseq [[index {:keys [slots]}] losing
+            :let [slot (first (filter (comp zero? :rank) slots))
+                  future (@local index)]
+            :when (and slot future)]
+      (.whenComplete ^CompletableFuture future (reify BiConsumer
+                                                 (accept [_ _ _] (release-slot! pool slot)))))))
 
 (defn collect-fitness
   "Send off and collect the results of fitness evaluations from all slave threads,
@@ -277,64 +862,149 @@
    :comm - MPI world communicator\\
    :matches - vector [[individual1 individual2] ...] of matchups to be played\\
    :num-ranks - number of MPI processes in total\\
-   :max-actions - adaptive cap on the number of actions allowed per matchup for 
+   :max-actions - adaptive cap on the number of actions allowed per matchup for
    for higher CPU utilization\\
    :deck-seed - random seed to synchronize decks played between different matchups\\
    :symmetrical? - whether each matchup happens once normally and once with switched positions\\
    :args - overriding arguments to be passed to the fitness evaluation\\
+   :grouped? - whether matches are groups [{:individual :opponents} ...] as returned by ERL/schedule-groups.
+   Each group is sent as one task, in order, and the results of all of its matchups are returned\\
+   :pool - worker pool whose slots the tasks run on (see worker-pool). Without a pool, one is made
+   for the collection\\
+   :experiment - index of the experiment collecting, when several share the pool. The pool shares its
+   slots evenly between the experiments collecting at the same time (see share-slots!)\\
+   :prefetch - number of tasks queued on each process beyond its threads, so that its threads don't
+   wait for the master between tasks. A process that finishes its tasks faster gets more of them.
+   Only used without a pool\\
+   :copies - maximum number of copies of a task. Once every task has been sent, free threads run
+   copies of the oldest outstanding tasks on other processes, and the first result of a task is kept,
+   so that a slow process doesn't hold up the end of the collection. 1 disables speculation (see speculation)\\
+   :on-result - called with the result of each task as soon as it is first received, while
+   the remaining tasks are still being evaluated\\
    -> [{:net-gain :action-count} ...]"
-  [comm matches num-ranks max-actions deck-seed & {:keys [symmetrical? args]}]
-  (let [matches (mapv #(assoc {} :players %
-                              :max-actions max-actions
-                              :deck-seed deck-seed)
-                      (if symmetrical?
-                        (concat matches (map reverse matches))
-                        matches))]
+  [comm matches num-ranks max-actions deck-seed & {:keys [symmetrical? args grouped? pool experiment prefetch copies on-result]
+                                                   :or {prefetch 1
+                                                        copies 2}}]
+  (let [matches (if grouped?
+                  (mapv #(assoc {} :players [(:individual %)]
+                                :opponents (:opponents %)
+                                :symmetrical? (boolean symmetrical?)
+                                :max-actions max-actions
+                                :deck-seed deck-seed)
+                        matches)
+                  (mapv #(assoc {} :players %
+                                :max-actions max-actions
+                                :deck-seed deck-seed)
+                        (if symmetrical?
+                          (concat matches (map reverse matches))
+                          matches)))]
     #_(println "start collect. heap size(GB): " (/ (.totalMemory (java.lang.Runtime/getRuntime)) 1000000000.))
     #_(println "Collecting fitness. Ranks: " num-ranks " threads: " (utils/num-processors) "match count: " (count matches))
-    (loop [requests (resend-tasks comm args (range num-ranks) (range (utils/num-processors)) matches)
-           matches (drop (count requests) matches)
-           results []]
-      (if (empty? matches)
-        (do #_(println "matches empty. Waiting on: " (map #(dissoc % :result) (get (group-by (partial utils/apply-map test-result) requests) false)))
-         (into [] (concat results (map (partial utils/apply-map process-result) requests))))
-        (let [{finished true
-               unfinished false} (group-by (partial utils/apply-map test-result) requests)]
-          (recur (concat unfinished (resend-tasks comm args finished matches))
-                 (drop (count finished) matches)
-                 (doall (concat results (mapv (partial utils/apply-map process-result) finished)))))))))
+    ;; Block until some threads have finished, then send them the next tasks
+    (let [own-pool (when-not pool (worker-pool comm :ranks num-ranks :prefetch prefetch))
+          pool (or pool own-pool)
+          dispatcher (dispatcher pool args :experiment experiment)
+          owner (or experiment (:run dispatcher))
+          send! (fn [state]
+                  (let [now (System/currentTimeMillis)
+                        ;;freed slots go back to the pool, to be shared out again
+                        free (share-slots! pool owner (:free state) (count (:queue state)) (:completed dispatcher)
+                                           :spare? (> copies 1))
+                        [state assigned] (assign-slots (assoc state :free free) copies now)]
+                    (dispatch! dispatcher assigned (map #(assoc (matches (:index %)) :index (:index %)) assigned))
+                    ;;slots left without a task
+                    (when (seq (:free state))
+                      (share-slots! pool owner (:free state) 0 nil))
+                    (cond-> (assoc state :free [])
+                      (and (empty? (:queue state)) (nil? (:drained state))) (assoc :drained now))))]
+      (try
+        (let [state (loop [state (send! {:free []
+                                         :queue (range (count matches))
+                                         :outstanding {}
+                                         :results {}
+                                         :losing {}
+                                         :speculated 0
+                                         :won 0})]
+                      (if (= (count matches) (count (:results state)))
+                        state
+                        (let [finished (completed-results dispatcher)
+                              recorded (send! (reduce record-result state finished))]
+                          ;;only after the freed slots have been given their next tasks
+                          (when on-result
+                            (run! #(on-result ((:results recorded) %))
+                                  (distinct (remove (:results state) (map :index finished)))))
+                          (recur recorded))))]
+          (share-slots! pool owner (:free state) 0 nil)
+          (end-speculation! dispatcher owner state)
+          (cond->> (mapv (:results state) (range (count matches)))
+            grouped? (into [] (mapcat :results))))
+        (finally (close-dispatcher dispatcher)
+                 (share-slots! pool owner [] 0 nil)
+                 (when own-pool (close-pool own-pool)))))))
 
 (defn benchmark
   "Given a population and a set of benchmarking individuals, matches each population
    individual with each benchmark individual, collects the results of the matches, 
    and processes them to get the updated population and benchmark individuals\\
-   -> {:pop :benchmark :results}\\
+   grouped?: whether to send all matchups of a population individual as one task (see ERL/schedule-groups)\\
+   pool/experiment: worker pool to evaluate the matches on, and the experiment they belong to (see collect-fitness)\\
+   estimate: the estimated action count of a matchup, for ordering the groups (see ERL/action-estimate)\\
+   Results are recorded in the fitness matrix as they arrive, rather than once the last one has\\
+   -> {:pop :benchmark :action-counts :estimate :fitness}\\
    cf. ERL/process-results, ERL/benchmark"
-  [comm pop bench & {:keys [deck-seed  max-actions symmetrical? args]
+  [comm pop bench & {:keys [deck-seed  max-actions symmetrical? args grouped? pool experiment estimate]
                      :or {deck-seed 1
-                          max-actions ##Inf}}]
-  (let [matches (for [ind1 pop
-                      ind2 bench
-                      :when (not (= ind1 ind2))]
-                  [(dissoc ind1 :error)
-                   (dissoc ind2 :error)])]
+                          max-actions ##Inf
+                          grouped? true}}]
+  (let [strip #(dissoc % :error)
+        matches (if grouped?
+                  (mapv #(-> %
+                             (update :individual strip)
+                             (update :opponents (partial mapv strip)))
+                        (ERL/schedule-groups pop bench
+                                             :symmetrical? symmetrical?
+                                             :estimate estimate
+                                             :slots (if pool
+                                                      (:size pool)
+                                                      (* (comm-size comm) (utils/num-processors)))))
+                  (for [ind1 pop
+                        ind2 bench
+                        :when (not (= ind1 ind2))]
+                    [(strip ind1)
+                     (strip ind2)]))
+        fitness (ERL/fitness-matrix (vec pop) (vec bench))
+        record (ERL/result-recorder (vec pop) (vec bench) fitness)
+        results (collect-fitness comm
+                                 matches
+                                 (comm-size comm)
+                                 max-actions
+                                 deck-seed
+                                 :symmetrical? symmetrical?
+                                 :grouped? grouped?
+                                 :pool pool
+                                 :experiment experiment
+                                 :prefetch (:prefetch args 1)
+                                 :copies (:speculative-copies args 2)
+                                 :on-result (if grouped? #(run! record (:results %)) record)
+                                 :args args)]
+    ;;benchmark models shared by the master's own threads
+    (transformer/release-shared-models!)
     (ERL/process-results pop
                          bench
-                         (collect-fitness comm
-                                          matches
-                                          (py. comm Get_size)
-                                          max-actions
-                                          deck-seed
-                                          :symmetrical? symmetrical?
-                                          :args args))))
+                         results
+                         :fitness fitness)))
 
 
 (defn terminate-slaves
   "Terminates the slave MPI processes when the evolutionary loop is over."
   [comm num-ranks]
   (run! #(do #_(println "sending terminate message to rank " %)
-          (py. comm isend (py/->python 1) :dest % :tag 1000))
-        (range 1 num-ranks)))
+          (send-message comm 1 % 1000))
+        (range 1 num-ranks))
+  ;;the next slaves start with empty individual tables and no tasks
+  (reset! individual-tables {})
+  (reset! in-flight-tasks {})
+  (swap! speculation assoc :overtaken {}))
 
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
@@ -365,17 +1035,79 @@
          :time 0})))
 
 (defn start-hof
-  "Hot-start using the cached state of a previous ERL run. Reads in the previous
-   hall of fame"
-  [hof-input]
-  (cond hof-input (if (string? hof-input)
-                    (or (try (read-string (slurp hof-input))
-                             (catch Exception _ []))
-                        [])
-                    hof-input)
-        :else []))
+  "Hot-start using the cached state of a previous ERL run. Restores the hall of fame from
+   hof-journal if it exists, or else reads in the previous hall of fame from hof-input\\
+   -> indexed hall of fame (see ERL/open-hof)"
+  [hof-input & [hof-journal]]
+  (if (and hof-journal (.exists (java.io.File. ^String hof-journal)))
+    (ERL/open-hof hof-journal)
+    (ERL/open-hof hof-journal
+                  :hof (cond hof-input (if (string? hof-input)
+                                         (or (try (read-string (slurp hof-input))
+                                                  (catch Exception _ []))
+                                             [])
+                                         hof-input)
+                             :else []))))
 
 
+;;;;;;;;;
+;;; In island mode (see ERL/island-ERL) the world communicator is split into one
+;;; communicator per island, made of consecutive ranks. The lowest rank of each island
+;;; is its master, and the others are its slaves, so that master and slave run unchanged
+;;; within an island. Island masters exchange migrants over the world communicator,
+;;; on their own tag, and never wait for each other.
+;;;;;;;;;
+
+(def migration-tag
+  "Tag of migrant messages between island masters. Termination messages are tagged with 1000, 
+   and batches of tasks and results with task-tag and result-tag"
+  2000)
+
+(defn island-of-rank
+  "The island to which the MPI process of the given rank belongs, out of islands islands
+   spread over size processes\\
+   -> int"
+  [rank size islands]
+  (quot (* rank islands) size))
+
+(defn island-master
+  "World rank of the master of an island (see island-of-rank)\\
+   -> int"
+  [island size islands]
+  (long (Math/ceil (/ (* island size) islands))))
+
+(defn island-migration
+  "Migration between the master of an island and the masters of the other islands over the 
+   world communicator. A receive for migrants is always posted, and is cancelled by close!\\
+   -> {:island :islands :interval :size :topology :send! :receive! :close!}\\
+   cf. ERL/migrate"
+  [world island islands & {:keys [migration-interval migration-size topology]
+                           :or {migration-interval 5
+                                migration-size 1
+                                topology :ring}}]
+  (let [size (py. world Get_size)
+        post #(py. world irecv :source (py.- @mpi4py ANY_SOURCE) :tag migration-tag)
+        request (atom (post))
+        individual (fn [{id "id" seeds "seeds" stdev "stdev"}]
+                     {:id (keyword id) :seeds (vec seeds) :stdev stdev})]
+    {:island island
+     :islands islands
+     :interval migration-interval
+     :size migration-size
+     :topology topology
+     :send! (fn [target emigrants]
+              (py. world isend (py/->py-dict {:emigrants emigrants})
+                   :dest (island-master target size islands)
+                   :tag migration-tag))
+     :receive! (fn []
+                 (loop [immigrants []]
+                   (if (py. @request Get_status)
+                     (let [{emigrants "emigrants"} (py/->jvm (py. @request wait))]
+                       (reset! request (post))
+                       (recur (into immigrants (map individual) emigrants)))
+                     immigrants)))
+     :close! #(py. @request cancel)}))
+
 (defn master
   "Code executed by the main MPI process with rank=0\\
    Controls EA loop and delegates the evaluation of fitnesses
@@ -385,8 +1117,12 @@
    Sends the following messages to the slave threads:\\
    Evaluate fitness of two opponents\\
    Stop evaluation early and return result\\
-   Notify slaves that ERL loop is over"
-  [comm & {:keys [pop-size num-generations benchmark-count random-seed stdev hot-start hof-output hof-input gen-output gen-input bench-method bench-exp next-gen-method prop-hof terminate-slaves?]
+   Notify slaves that ERL loop is over\n
+   When comm is the communicator of one island, island is its index and migration exchanges
+   individuals with the masters of the other islands (see island-migration, ERL/migrate)\n
+   Fitness evaluations run on pool, or on a worker pool of its own. When experiment is the index
+   of an experiment sharing the pool with others, reports are labelled with it (see run-experiments)"
+  [comm & {:keys [pop-size num-generations benchmark-count random-seed stdev hot-start hof-output hof-input hof-journal checkpoint gen-output gen-input bench-method bench-exp next-gen-method prop-hof terminate-slaves? island migration pool experiment prefetch]
            :or {pop-size 3
                 num-generations 1
                 benchmark-count 5
@@ -396,35 +1132,59 @@
                 next-gen-method :parents
                 stdev 0.005
                 prop-hof 0.5
-                terminate-slaves? true}
+                terminate-slaves? true
+                prefetch 1}
            :as argmap}]
   #_(println "Master argmap: " argmap)
-  (assert (mpi4py.MPI/Is_initialized) "MPI must be initialized for master thread to run")
-  (let [r (if (int? random-seed) (utils/random random-seed) random-seed)
-        gen (start-gen hot-start gen-input pop-size r stdev)]
+  (assert (or (transport? comm) (py. @mpi4py Is_initialized)) "MPI must be initialized for master thread to run")
+  (let [own-pool (when-not pool (worker-pool comm :prefetch prefetch))
+        pool (or pool own-pool)
+        args (dissoc argmap :pool)
+        resumed (when checkpoint (ERL/read-checkpoint checkpoint))
+        r (or (:random resumed)
+              (if (int? random-seed) (utils/random random-seed) random-seed))
+        gen (or resumed (start-gen hot-start gen-input pop-size r stdev))]
     (loop [generation (:generation gen)
-           pop (:pop gen)
-           hof (start-hof hof-input)
+           pop (cond-> (:pop gen)
+                 island (ERL/island-pop island))
+           ;;the checkpoint is the only source: entries journaled after it are dropped
+           hof (if resumed
+                 (cond-> (:hof resumed) hof-journal (ERL/journal-hof hof-journal :rewrite? true))
+                 (start-hof hof-input hof-journal))
            max-actions (:max-actions gen)
-           t (:time-ms gen)]
-      ;; Report on the status of each generation
-      (ERL/report-generation pop generation
-                             :max-actions max-actions
-                             :time-ms t
-                             :gen-output gen-output
-                             :hof-output hof-output
-                             :hof hof)
-      (System/gc)
+           t (:time-ms gen)
+           estimate nil]
+      ;; Report on the status of each generation while the next one is evaluated
+      (ERL/report-generation! pop generation
+                              :max-actions max-actions
+                              :time-ms t
+                              :gen-output gen-output
+                              :hof-output hof-output
+                              :hof hof
+                              :island island
+                              :experiment experiment
+                              :speculation (speculation-report))
+      (when checkpoint
+        (ERL/checkpoint! checkpoint {:generation generation
+                                     :pop pop
+                                     :hof hof
+                                     :random r
+                                     :max-actions max-actions
+                                     :time-ms t}))
       (if (= generation num-generations)
         ;;Terminate slave MPI processes and return final result
-        (do (when terminate-slaves? (terminate-slaves comm (py. comm Get_size)))
+        (do (when own-pool (close-pool own-pool))
+            (when terminate-slaves? (terminate-slaves comm (comm-size comm)))
+            (when migration ((:close! migration)))
+            (await ERL/report-writer ERL/checkpoint-writer)
             {:last-pop pop
-             :hall-of-fame hof #_(ERL/round-errors hof 3)})
+             :hall-of-fame (ERL/hof-generations (ERL/close-hof hof)) #_(ERL/round-errors hof 3)})
         ;;Fitness evaluation using benchmarking individuals
         (let [benchmark-pop (ERL/get-benchmark benchmark-count pop hof prop-hof :method bench-method :exp bench-exp)
               {{p :pop
                 b :benchmark
-                a :action-counts} :result
+                a :action-counts
+                e :estimate} :result
                t :time} (utils/get-time
                          (benchmark comm
                                     pop
@@ -432,17 +1192,128 @@
                                     :deck-seed (.nextInt r)
                                     :max-actions max-actions
                                     :symmetrical? true
-                                    :args argmap))
+                                    :pool pool
+                                    :experiment experiment
+                                    :estimate estimate
+                                    :args args))
               ;; Selection, mutation, and updating errors of individuals in the hall of fame
-              [p h] (ERL/next-generation p r :method next-gen-method :benchmark-pop benchmark-pop)]
+              [children h] (ERL/next-generation p r :method next-gen-method :benchmark-pop benchmark-pop)]
           ;; Recur with updated population, hall of fame, max-actions, and time-taken
           (recur (inc generation)
-                 p
+                 ;; Exchange individuals with the other islands without waiting for them
+                 (cond->> children
+                   migration (ERL/migrate migration p generation r))
                  (-> hof
                      (ERL/update-hof b)
-                     (conj h))
+                     (ERL/add-generation h))
                  (* 2 (utils/mean a))
-                 t))))))
+                 t
+                 e))))))
+
+;;;;;;;;;
+;;; In steady-state mode (see ERL/steady-state-ERL) the master keeps a task in
+;;; flight on every thread of every MPI process. Each task is one individual played
+;;; against its opponents. As soon as a thread returns its result, the individual is
+;;; incorporated and a newly bred individual is sent to that same thread.
+;;;;;;;;;
+
+(defn steady-state-master
+  "Steady-state counterpart of master: evaluates pop-size * num-generations individuals, 
+   reporting and caching every pop-size evaluations as a generation\\
+   cf. ERL/breed, ERL/incorporate"
+  [comm & {:keys [pop-size num-generations benchmark-count random-seed stdev hot-start hof-output hof-input hof-journal gen-output gen-input bench-method bench-exp selection prop-hof terminate-slaves? max-actions]
+           :or {pop-size 3
+                num-generations 1
+                benchmark-count 5
+                random-seed 1
+                bench-method :exp
+                bench-exp Math/E
+                selection :lexicase
+                stdev 0.005
+                prop-hof 0.5
+                terminate-slaves? true
+                max-actions ##Inf}
+           :as argmap}]
+  (assert (or (transport? comm) (py. @mpi4py Is_initialized)) "MPI must be initialized for master thread to run")
+  (let [r (if (int? random-seed) (utils/random random-seed) random-seed)
+        gen (start-gen hot-start gen-input pop-size r stdev)
+        total (* pop-size (- num-generations (:generation gen)))
+        pool (worker-pool comm :prefetch 0)
+        dispatcher (dispatcher pool argmap)
+        ;;every thread of every process, for the whole run
+        slots (share-slots! pool (:run dispatcher) [] (:size pool) nil)
+        slot-key (juxt :rank :thread)
+        task (fn [{:keys [individual opponents]}]
+               {:players [individual]
+                :opponents opponents
+                :symmetrical? true
+                :max-actions max-actions
+                :deck-seed (.nextInt r)})]
+    ;; requests maps the slots that are evaluating an individual to that individual
+    (loop [state (ERL/steady-state (:pop gen) :hof (start-hof hof-input hof-journal))
+           free slots
+           requests {}
+           started 0
+           generation (:generation gen)
+           t (System/currentTimeMillis)]
+      (cond
+        ;;keep every thread busy, with one batch of tasks per process
+        (and (seq free) (< started total))
+        (let [slots (take (- total started) free)
+              [state tasks] (reduce (fn [[state tasks] _]
+                                      (let [[state task] (ERL/breed state r
+                                                                    :benchmark-count benchmark-count
+                                                                    :prop-hof prop-hof
+                                                                    :bench-method bench-method
+                                                                    :bench-exp bench-exp
+                                                                    :selection selection)]
+                                        [state (conj tasks task)]))
+                                    [state []]
+                                    slots)]
+          (dispatch! dispatcher slots (map task tasks))
+          (recur state
+                 (drop (count slots) free)
+                 (into requests (map #(vector (slot-key %1) (:individual %2)) slots tasks))
+                 (+ started (count slots))
+                 generation
+                 t))
+
+        (empty? requests)
+        (do (close-dispatcher dispatcher)
+            (close-pool pool)
+            (when terminate-slaves? (terminate-slaves comm (comm-size comm)))
+            (await ERL/report-writer)
+            (transformer/release-shared-models! :all? true)
+            {:last-pop (:pool state)
+             :hall-of-fame (ERL/hof-generations (ERL/close-hof (:hof state)))})
+
+        :else
+        (let [finished (completed-results dispatcher)
+              state (reduce #(ERL/incorporate %1
+                                              (requests (slot-key %2))
+                                              (:results (:result %2))
+                                              :pop-size pop-size)
+                            state
+                            finished)
+              boundary? (and (seq finished)
+                             (not= (quot (:evaluations state) pop-size)
+                                   (quot (- (:evaluations state) (count finished)) pop-size)))
+              now (System/currentTimeMillis)]
+          (when boundary?
+            (ERL/report-generation! (:pool state) generation
+                                    :max-actions max-actions
+                                    :time-ms (- now t)
+                                    :gen-output gen-output
+                                    :hof-output hof-output
+                                    :hof (:hof state))
+            (transformer/release-shared-models!)
+            (new-epoch! dispatcher))
+          (recur (if boundary? (ERL/end-generation state) state)
+                 (into (vec free) (map #(select-keys % [:rank :thread])) finished)
+                 (apply dissoc requests (map slot-key finished))
+                 started
+                 (if boundary? (inc generation) generation)
+                 (if boundary? now t)))))))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 ;;        Slave MPI Process       ;;
@@ -463,143 +1334,176 @@
 ;;      await next message        ;;
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 
-(defn process-message
-  "Converts a python dict message containing the
-   details of the fitness evaluation task received from
-   the main MPI process into a clojure object"
+(defn keyword-keys
+  "Converts a message received from the master into clojure data with keyword keys. 
+   Messages received over MPI are python dicts with string keys, and those received over
+   the socket transport are already clojure data"
   [message]
-  (let [{[{id1 "id" seeds1 "seeds" std1 "stdev"}
-          {id2 "id" seeds2 "seeds" std2 "stdev"}] "players"
-         max-actions "max-actions"
-         deck-seed "deck-seed"} message]
-    #_(println "rank " (py. mpi4py.MPI/COMM_WORLD Get_rank) "processing message " id1 id2)
-    {:players [{:id (keyword id1) :seeds seeds1 :std std1}
-               {:id (keyword id2) :seeds seeds2 :std std2}]
-     :max-actions max-actions
-     :deck-seed deck-seed}))
-
-
-
-(defn thread-to-messages
-  "Sends results for each thread in results, and returns
-   Ireceives awaiting future tasks for each thread in results\\ 
-   [{:thread :result}] -> [{:thread :message} ...]"
-  [comm results]
-  #_(println "rank " (py. mpi4py.MPI/COMM_WORLD Get_rank) "sent results of threads " (mapv :thread results) "to master")
-  (assert (seqable? results) (str "not seq results " results))
-  ;; Send evaluation results back to main MPI process
-  (mapv #(do (assert (>= (:thread %) 0) "Thread cannot be negative")
-             (py. comm isend (py/->py-dict (:result %))
-                  :dest 0
-                  :tag (:thread %)))
-        results)
-  ;; Await new tasks from main MPI process
-  (mapv (fn [{t :thread}]
-          (assert (>= t 0) "Thread cannot be negative")
-          #_(println "rank " (py. mpi4py.MPI/COMM_WORLD Get_rank) " awaiting message on thread " t)
-          {:thread t
-           :message (py. comm irecv
-                         :source 0
-                         :tag t)})
-        results))
-
-(defn message-to-thread
-  "Submits received fitness evaluation tasks to the ExecutorService and
-   returns futures awaiting the evaluation results\\
-   [{:thread :message} ...] -> [{:thread :result} ...]"
-  [messages & {:keys [args]}]
-  (assert (and args (map? args)) "Must supply argmap")
-  ;; Get message, convert to a jvm object, parse and convert to 
-  ;; clojure format with keyword keys, combine argument maps, and 
-  ;; submit for evaluation
-  (let [submit #(concurrent/msubmit
-                 (->> (py. % wait)
-                      (py/->jvm)
-                      (process-message)
-                      (utils/apply-map
-                       evaluate-task
-                       {:net-gain? true
-                        :action-count? true
-                        :gc? true}
-                       args)))]
-    #_(println "rank " (py. mpi4py.MPI/COMM_WORLD Get_rank)
-               " sent futures to threads given the messages " messages)
-    (let [m (mapv (fn [{t :thread
-                        m :message}]
-                    {:thread t
-                     :result (submit m)})
-                  messages)]
-      #_(println "MESSAGE TO THREAD " m)
-      m)))
+  (cond (instance? java.util.Map message) (into {} (map (fn [[k v]] [(keyword k) (keyword-keys v)])) message)
+        (instance? java.util.List message) (mapv keyword-keys message)
+        :else message))
 
+(defn decode-batch
+  "Decodes a batch of tasks received from the master into tasks for evaluate-task, adding the
+   individuals it defines to the individual table of the slave\\
+   -> [table [task ...]]\\
+   cf. encode-batch"
+  [table batch]
+  (let [{:keys [epoch individuals tasks] :as batch} (keyword-keys batch)
+        shared (dissoc batch :epoch :individuals :tasks)
+        define (fn [table {:keys [id seeds parent seed stdev]}]
+                 (let [id (keyword id)
+                       parent (some-> parent keyword)
+                       seeds (if parent
+                               (conj (get-in table [:known parent :seeds]) seed)
+                               (vec seeds))]
+                   (cond-> (-> table
+                               (assoc-in [:known id] {:id id :seeds seeds :stdev stdev})
+                               (update :used conj id))
+                     parent (update :used conj parent))))
+        table (reduce define (next-epoch table epoch) individuals)
+        table (update table :used into (map keyword) (mapcat #(concat (:players %) (:opponents %)) tasks))
+        individual #(get-in table [:known (keyword %)])]
+    #_(println "rank " (get-rank) "decoding batch of " (count tasks) " tasks")
+    [table
+     (mapv (fn [{:keys [players opponents] :as task}]
+             (cond-> (assoc (merge shared task) :players (mapv individual players))
+               ;;grouped task, see ERL/versus-group
+               opponents (assoc :opponents (mapv individual opponents))))
+           tasks)]))
 
+(defn submit-tasks
+  "Submits fitness evaluation tasks to the ExecutorService. Each evaluation result 
+   is put on queue when it is ready. A task of an experiment is evaluated with the argmap
+   of that experiment in experiments rather than args (see run-experiments)\\
+   [task ...] -> [{:thread :result} ...]"
+  [tasks & {:keys [args queue experiments]}]
+  (assert (and args (map? args)) "Must supply argmap")
+  (mapv (fn [{t :thread index :index run :run experiment :experiment :as task}]
+          (let [result (concurrent/msubmit-completable
+                        (utils/apply-map evaluate-task
+                                         {:net-gain? true
+                                          :action-count? true
+                                          :gc? true}
+                                         (if experiment (nth experiments experiment) args)
+                                         (dissoc task :thread :index :run :experiment)))]
+            (on-completion result queue {:thread t :index index :run run :result result})
+            {:thread t
+             :result result}))
+        tasks))
 
 (defn slave
   "Code executed by a worker MPI process with rank>0\\
    Computes fitness functions and then queries the main thread
    for more work\n
    Accepts the following messages from the master thread:\\
-   tag 0: compute fitness of two opponents\\
-   tag 1: Stop waiting for tasks and exit loop\n
+   tag 1002: batch of tasks for some of its threads (see decode-batch)\\
+   tag 1000: Stop waiting for tasks and exit loop\n
    Sends the following messages to the master thread:\\
-   tag 0: Fitness evaluation results"
-  [comm & {:keys [args]}]
+   tag 1003: batch of the fitness evaluation results of the threads that finished together\n
+   Received batches and finished evaluations are put on a single queue, on which
+   the slave blocks while it has nothing to do (see receiver)\n
+   experiments: argmaps of the experiments sharing the run, by index, when there are several. The slave
+   keeps an individual table per experiment (see run-experiments)"
+  [comm & {:keys [args experiments]}]
   (assert (and comm args) "Cannot be passed nil parameters")
-  (assert (mpi4py.MPI/Is_initialized) "MPI must be initialized for slave thread to run")
+  (assert (or (transport? comm) (py. @mpi4py Is_initialized)) "MPI must be initialized for slave thread to run")
   (System/gc)
-  ;;Wait for a signal (fitness evaluation task / termination signal) from the main MPI process
-  (let [get-status #(py. (:message %) Get_status)
-        rank (py. comm Get_rank)]
-    (loop [messages (mapv (fn [t]
-                            {:thread t
-                             :message (py. comm irecv :source 0 :tag t)})
-                          (range (utils/num-processors)))
-           threads []
-           terminate (py. comm irecv :source 0 :tag 1000)]
+  ;;Wait for a signal (fitness evaluation tasks / termination signal) from the main MPI process
+  (let [rank (comm-rank comm)
+        receiver (receiver comm)
+        queue (LinkedBlockingQueue.)
+        expect-batch #(let [batch ((:expect receiver) 0 task-tag)]
+                        (on-completion batch queue {:batch batch}))]
+    (expect-batch)
+    (on-completion ((:expect receiver) 0 1000) queue {:terminate true})
+    (try
+      (loop [in-flight 0
+             tables {}]
+        (let [events (take-completed queue)
+              finished (filter :result events)]
+          (if (some :terminate events)
             ;;Terminate waiting loop and proceed to MPI finalization
-      (cond (py. terminate Get_status) (do #_(println "rank " (py. comm Get_rank) " terminating with message " (py. terminate wait))
-                                        (mapv #(py. (:message %) cancel) messages)
-                                           (py. terminate cancel)
-                                           nil)
-            ;;Parse received message and send off fitness evaluation into a thread
-            (some get-status messages) (do (let [{received true
-                                                  unreceived false} (group-by get-status messages)]
-                                             #_(println "rank " rank " received messages from master " received)
-                                             (recur unreceived
-                                                    (into threads (message-to-thread received :args args))
-                                                    terminate)))
-            ;;Send derefed result of thread evaluation to master and await more messages
-            (some #(.isDone (:result %)) threads) (do #_(println "process " rank "realized futures on threads " (mapv :thread (filter #(.isDone (:result %)) threads)))
-                                                   (let [{realized true
-                                                          unrealized false} (group-by #(.isDone (:result %)) threads)
-                                                         results (mapv #(update % :result deref) realized)]
-                                                     #_(println "rank " rank " realized results from futures: " results)
-                                                     (recur (into messages (thread-to-messages comm results))
-                                                            unrealized
-                                                            terminate)))
-            ;;Received nothing, so do nothing
-            :else (recur messages threads terminate)))))
+            (do #_(println "rank " rank " terminating")
+                nil)
+            ;;Parse received batches and send off fitness evaluations into threads
+            (let [[tables tasks] (reduce (fn [[tables tasks] {batch :batch}]
+                                           (let [batch (keyword-keys (complete-request batch))
+                                                 experiment (:experiment batch)
+                                                 [table more] (decode-batch (get tables experiment {:known {} :used #{}}) batch)]
+                                             (expect-batch)
+                                             [(assoc tables experiment table) (into tasks more)]))
+                                         [tables []]
+                                         (filter :batch events))
+                  in-flight (+ (- in-flight (count finished)) (count tasks))]
+              (submit-tasks tasks :args args :queue queue :experiments experiments)
+              (when (seq finished)
+                #_(println "rank " rank " realized results on threads " (mapv :thread finished))
+                ;;free benchmark models shared by grouped tasks once the node is idle
+                (when (zero? in-flight) (transformer/release-shared-models!))
+                ;;Send derefed results of thread evaluations to master in one batch
+                (complete-request
+                 (send-message comm
+                               {:results (mapv (fn [{:keys [thread index run result]}]
+                                                 {:thread thread :index index :run run :result @result})
+                                               finished)}
+                               0
+                               result-tag)))
+              (recur in-flight tables)))))
+      (finally ((:close receiver))))))
+
+(defn island-args
+  "The arguments of the master of an island: its own output, hot-start and checkpoint files
+   (see ERL/island-file), random seed, and migration\\
+   -> argmap"
+  [argmap world island islands]
+  (-> (reduce #(update %1 %2 ERL/island-file island)
+              argmap
+              [:hof-output :hof-input :hof-journal :gen-output :gen-input :checkpoint])
+      (update :random-seed #(+ (or % 1) island))
+      (assoc :island island
+             :migration (utils/apply-map island-migration world island islands argmap))))
 
 (defn role-by-rank
-  "Assigns role of master or slave to MPI processes depending on their rank"
-  [argmap param-output]
-  (let [comm mpi4py.MPI/COMM_WORLD
-        rank (py. comm Get_rank)]
-        ;Rank 0 process is master thread
-    (if (= 0 rank)
-      (do (println (dissoc argmap :hot-start))
-          (when param-output (try (spit param-output (with-out-str (println argmap)))
-                                  (catch Exception _)))
-          #_(when hot-start (run! println hot-start))
-              ;pass on parameters to master process
-          (apply master comm (mapcat identity (into [] argmap))))
-          ;All other processes are slave threads
-      (slave comm :args argmap))
-    #_(println "Finalizing rank " rank)))
+  "Assigns role of master or slave to MPI processes depending on their rank\\
+   world - communicator of all processes. Defaults to the MPI world communicator\\
+   With more than one island, each island of consecutive ranks gets its own communicator,
+   master and slaves (see island-of-rank). Islands require MPI"
+  [argmap param-output & [world]]
+  (let [world (or world (world-comm))
+        world-rank (comm-rank world)
+        islands (:islands argmap)
+        island (when (and islands (> islands 1))
+                 (assert (not (transport? world)) "Islands require MPI")
+                 (assert (>= (comm-size world) islands) "Need at least one MPI process per island")
+                 (island-of-rank world-rank (comm-size world) islands))
+        comm (if island (py. world Split island world-rank) world)
+        rank (comm-rank comm)]
+    ;;every process caches the matchups played by its own threads
+    (when-let [filename (:result-cache argmap)]
+      (ERL/open-result-cache! :filename (str filename "." world-rank)
+                              :capacity (or (:result-cache-size argmap) 100000)))
+    (try
+          ;Rank 0 process is master thread
+      (if (= 0 rank)
+        (do (println (dissoc argmap :hot-start))
+            (when (and param-output (zero? world-rank))
+              (try (spit param-output (with-out-str (println argmap)))
+                   (catch Exception _)))
+            #_(when hot-start (run! println hot-start))
+                ;pass on parameters to master process
+            (apply (if (:steady-state? argmap) steady-state-master master)
+                   comm
+                   (mapcat identity (into [] (cond-> argmap
+                                               island (island-args world island islands))))))
+            ;All other processes are slave threads
+        (slave comm :args argmap))
+      (finally (when (:result-cache argmap) (ERL/close-result-cache!))))
+    #_(println "Finalizing rank " world-rank)))
 
 (defn get-rank
   []
-  (py. mpi4py.MPI/COMM_WORLD Get_rank))
+  (comm-rank (world-comm)))
 
 (defn ERL
   "Main function assigning the master-slave roles to MPI processes
@@ -618,6 +1522,9 @@
    block-size: Number of floats in the pre-instantiated block of random noise. The larger the size of the block,
    the more independent mutations indexed by different integers will be\\
    hof-output/hof-input: output/input files for caching hall of fame members\\
+   hof-journal: append-only journal of the hall of fame, restored from on hot-starts in preference to hof-input. See ERL/open-hof\\
+   result-cache/result-cache-size: file prefix and capacity of the matchup result cache of each MPI process. See ERL/open-result-cache!\\
+   checkpoint: binary checkpoint written by the master at the start of every generation, from which hot-starts resume in preference to gen-input and hof-input. See ERL/checkpoint!\\
    gen-output/gen-input: output/input files for caching information about the current generation\\
    param-output/param-input: output/input files for caching hyperparameter information\\
    bench-method: Method to use for selecting benchmark individuals from the hall of fame. See ERL/get-benchmark\\
@@ -625,10 +1532,18 @@
    prop-hof: The proportion of benchmark individuals that will come from the hall of fame. See ERL/get-benchmark
    as opposed to the current population\\
    transformer-parameters: optional parameters to specify the transformer model architecture\\
+   transport: {:rank :size :host :port} connects the processes with sockets instead of MPI, 
+   without a python interpreter (see open-transport, -main). Overrides with-MPI?\\
+   prefetch/speculative-copies: tasks queued on each process beyond its threads, and maximum number of copies of a task
+   run at the end of a generation. See collect-fitness\\
+   steady-state?: evolve without generation barriers, keeping every thread of every process busy. See steady-state-master\\
+   islands: number of islands to split the MPI processes into, each evolving pop-size individuals with its own master
+   and exchanging the seeds of their migration-size best individuals every migration-interval generations over topology.
+   Output, input and checkpoint files get the island as a suffix. See role-by-rank, ERL/migrate\\
    -> Reports out each generation\\
    -> caches information in files for resuming evolution\\
    -> returns the final population and hall-of-fame."
-  [& {:keys [pop-size num-generations benchmark-count random-seed num-games max-seq-length stdev from-block? block-size hot-start hof-output hof-input gen-output gen-input param-output param-input bench-method bench-exp next-gen-method prop-hof transformer-parameters with-MPI? terminate-slaves?]
+  [& {:keys [pop-size num-generations benchmark-count random-seed num-games max-seq-length stdev from-block? block-size hot-start hof-output hof-input gen-output gen-input param-output param-input bench-method bench-exp next-gen-method prop-hof transformer-parameters with-MPI? terminate-slaves? steady-state? hof-journal result-cache result-cache-size checkpoint islands migration-interval migration-size topology transport prefetch speculative-copies]
       :or {pop-size 3
            num-generations 1
            benchmark-count 5
@@ -654,10 +1569,38 @@
     ;;Pre-instantiate large block of gaussian noise
     (when from-block? (ndarray/initialize-random-block (int block-size) random-seed :ndarray? true :manager m))
     (when transformer-parameters (transformer/set-parameters transformer-parameters))
-    ;Open and close MPI environment
-    (if with-MPI?
-      (with-MPI (role-by-rank argmap param-output))
-      (role-by-rank argmap param-output))))
+    ;Open and close MPI environment, or connect to the other processes over sockets
+    (cond transport (with-open [comm (utils/apply-map open-transport transport)]
+                      (role-by-rank argmap param-output comm))
+          with-MPI? (with-MPI (role-by-rank argmap param-output))
+          :else (role-by-rank argmap param-output))))
+
+(defn -main
+  "Runs one process of an ERL run over the socket transport. For example, to run 4 processes 
+   on one machine, with the master listening on port 5000:\\
+   lein run -m poker.MPI 0 4 5000 & lein run -m poker.MPI 1 4 5000 & ... \\
+   argmap: optional EDN map of arguments to ERL, which should be the same for every process\\
+   host: address of the master process, on which the master listens. Defaults to localhost,
+   so every process must be given it to run on several machines"
+  [rank size port & [argmap host]]
+  (utils/apply-map ERL
+                   (if argmap (read-string argmap) {})
+                   {:transport (merge {:rank (parse-long rank)
+                                       :size (parse-long size)
+                                       :port (parse-long port)}
+                                      (when host {:host host}))}))
+
+(defn local-workers
+  "Starts the worker processes of a socket transport run of size processes on this machine, 
+   for testing. The current process then runs the master with 
+   (ERL :transport {:rank 0 :size size :port port} ...) and the same argmap\\
+   -> [Process ...]"
+  [size port & [argmap]]
+  (mapv #(-> (ProcessBuilder. ["lein" "run" "-m" "poker.MPI"
+                               (str %) (str size) (str port) (pr-str (or argmap {}))])
+             (.inheritIO)
+             (.start))
+        (range 1 size)))
 
 
 (defn hot-start
@@ -706,6 +1649,63 @@
                                              :num-games inter-games)})))))
 
 
+(defn experiment-args
+  "The arguments of one of several experiments run side by side: output, hot-start and checkpoint
+   files used by another experiment as well get the index of the experiment as a suffix (see ERL/island-file)\\
+   -> argmap"
+  [ERL-argmaps index]
+  (let [argmap (nth ERL-argmaps index)
+        shared? (fn [k] (< 1 (count (filter #(and (k argmap) (= (k argmap) (k %))) ERL-argmaps))))]
+    (reduce #(cond-> %1 (shared? %2) (update %2 ERL/island-file index))
+            argmap
+            [:hof-output :hof-input :hof-journal :gen-output :gen-input :checkpoint])))
+
+(defn run-experiments
+  "Runs several ERL experiments side by side on the same processes, rather than one after the
+   other as multi-ERL does, so that small experiments don't leave most of the processes idle.
+   Rank 0 runs the master of every experiment on its own thread, and their fitness evaluations
+   share one worker pool, whose slots are shared evenly between the experiments evaluating at
+   the same time (see share-slots!). Every other process is a slave of all of the experiments\\
+   ERL-argmaps: arguments of each experiment, as for ERL. Each experiment keeps its own transformer-parameters
+   (see transformer/with-parameters), and its own output files (see experiment-args). The block of gaussian 
+   noise is shared, and seeded by the first experiment with from-block?. Experiments cannot be steady-state
+   or split into islands\\
+   transport: as for ERL. Without it, the experiments run over MPI\\
+   prefetch: tasks queued on each process beyond its threads. See worker-pool\\
+   -> [{:last-pop :hall-of-fame} ...] in the order of ERL-argmaps on rank 0, nil on the other ranks"
+  [ERL-argmaps & {:keys [transport prefetch]
+                  :or {prefetch 1}}]
+  (assert (not-any? :steady-state? ERL-argmaps) "Experiments sharing a worker pool must be generational")
+  (assert (not-any? #(some-> (:islands %) (> 1)) ERL-argmaps) "Experiments sharing a worker pool cannot use islands")
+  (let [argmaps (mapv #(experiment-args ERL-argmaps %) (range (count ERL-argmaps)))
+        m (ndarray/new-base-manager)
+        run (fn [comm]
+              (if (zero? (comm-rank comm))
+                (let [pool (worker-pool comm :prefetch prefetch)
+                      masters (mapv (fn [index {:keys [transformer-parameters] :as argmap}]
+                                      (future
+                                        (transformer/with-parameters transformer-parameters
+                                          (println {:experiment index :args (dissoc argmap :hot-start)})
+                                          (utils/apply-map (partial master comm)
+                                                           argmap
+                                                           {:pool pool
+                                                            :experiment index
+                                                            :terminate-slaves? false}))))
+                                    (range)
+                                    argmaps)]
+                  (try (mapv deref masters)
+                       (finally (close-pool pool)
+                                (terminate-slaves comm (comm-size comm)))))
+                (slave comm :args (first argmaps) :experiments argmaps)))]
+    ;;Pre-instantiate large block of gaussian noise
+    (when-let [{:keys [block-size random-seed]} (first (filter :from-block? argmaps))]
+      (ndarray/initialize-random-block (int (or block-size 1e8)) (or random-seed 1) :ndarray? true :manager m))
+    (if transport
+      (with-open [comm (utils/apply-map open-transport transport)]
+        (run comm))
+      (with-MPI (run (world-comm))))))
+
+
 (defn single-experiment
   [ERL-argmap & {:keys [num-games-internal num-games-slumbot]
                  :or {num-games-internal 5000
@@ -719,20 +1719,20 @@
                                :error)]
       (if (zero? (get-rank))
         (do (println {:results (dissoc results :last-pop)})
-            #_(println {:intra-run (collect-fitness mpi4py.MPI/COMM_WORLD
+            #_(println {:intra-run (collect-fitness (world-comm)
                                                   (let [inds (map-indexed best-of-gen (:hall-of-fame results))]
                                                     (for [ind1 inds
                                                           ind2 inds :while (not (= ind1 ind2))]
                                                       [(dissoc ind1 :error) (dissoc ind2 :error)]))
-                                                  (py. mpi4py.MPI/COMM_WORLD Get_size)
+                                                  (comm-size (world-comm))
                                                   ##Inf
                                                   nil
                                                   :args (assoc (:default-pmap ERL-argmap)
                                                                :num-games num-games-internal
                                                                :as-list? true))})
-            #_(terminate-slaves mpi4py.MPI/COMM_WORLD (py. mpi4py.MPI/COMM_WORLD Get_size))
+            #_(terminate-slaves (world-comm) (comm-size (world-comm)))
             (println (last (map-indexed best-of-gen (:hall-of-fame results))))
-            (println {:slumbot-results (:net-gain (slumbot/transformer-vs-slumbot (assoc (last (map-indexed best-of-gen (:hall-of-fame results)))
+            (println {:slumbot-results (:net-gain ((requiring-resolve 'poker.slumbot/transformer-vs-slumbot) (assoc (last (map-indexed best-of-gen (:hall-of-fame results)))
                                                                                          :id :client)
                                                                                   num-games-slumbot
                                                                                   (:max-seq-length (:default-pmap ERL-argmap))
@@ -741,8 +1741,8 @@
         nil #_(role-by-rank (:default-pmap ERL-argmap) nil)))))
 
 (defn test-mpi []
-  (mpi4py.MPI/Init)
-  (let [comm mpi4py.MPI/COMM_WORLD
+  (py. @mpi4py Init)
+  (let [comm (world-comm)
         rank (py/call-attr comm "Get_rank")]
     "if rank == 0:
     data = {'a': 7, 'b': 3.14}
@@ -756,15 +1756,15 @@ elif rank == 1:
           :else (do (println "receiving data " rank)
                          (let [d (py/py. comm irecv :source 0 :tag 11)]
                            (println rank " received data " (py. d wait))))))
-  (mpi4py.MPI/Finalize))
+  (py. @mpi4py Finalize))
 
 (defn mpitest []
-  (mpi4py.MPI/Init)
-  (println (py/call-attr mpi4py.MPI/COMM_WORLD "Get_rank"))
-  (mpi4py.MPI/Finalize)
-  (mpi4py.MPI/Init)
-  (println (py/call-attr mpi4py.MPI/COMM_WORLD "Get_rank"))
-  (mpi4py.MPI/Finalize))
+  (py. @mpi4py Init)
+  (println (py/call-attr (world-comm) "Get_rank"))
+  (py. @mpi4py Finalize)
+  (py. @mpi4py Init)
+  (println (py/call-attr (world-comm) "Get_rank"))
+  (py. @mpi4py Finalize))
 
 
 
@@ -1,6 +1,8 @@
 (ns poker.concurrent
   (:import java.util.concurrent.ExecutorService
-           java.util.concurrent.Executors))
+           java.util.concurrent.Executors
+           java.util.concurrent.CompletableFuture
+           java.util.function.Supplier))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 ;;; Overview:
@@ -24,6 +26,12 @@
 ;;; no arguments, and returns a future that can be derefed to obtain the result. 
 ;;; The submitted runnable is added to the global ExecutorService's task queue
 ;;; and is picked up by threads in the pool when available
+;;;
+;;; submit-completable and msubmit-completable return a CompletableFuture instead,
+;;; so that callers can be notified of completion rather than polling isDone
+;;;
+;;; Like clojure futures, submitted jobs run with the dynamic bindings of the submitting
+;;; thread, such as the transformer parameters (see transformer/with-parameters)
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 
 
@@ -38,7 +46,7 @@
    -> Future"
   [f]
   (.submit service
-           ^Callable f))
+           ^Callable (bound-fn* f)))
 
 (defmacro msubmit
   "Macro version of submit that executes the body as a no argument
@@ -47,6 +55,22 @@
   [f]
   `(submit (fn [] ~f)))
 
+(defn submit-completable
+  "As submit, but returns a CompletableFuture to which completion
+   callbacks can be attached\\
+   -> CompletableFuture"
+  [f]
+  (let [f (bound-fn* f)]
+    (CompletableFuture/supplyAsync (reify Supplier
+                                     (get [_] (f)))
+                                   service)))
+
+(defmacro msubmit-completable
+  "Macro version of submit-completable\\
+   -> CompletableFuture"
+  [f]
+  `(submit-completable (fn [] ~f)))
+
 
 (defn parse-time-unit
   "Parse a string as a time unit. Possible values:\\
@@ -324,6 +324,31 @@
   [ndlist]
   (reduce #(.addAll %1 %2) ndlist))
 
+(defn first-NDList
+  "Function that takes a list of NDLists and returns the first NDList\\
+   -> IFn"
+  [list-ndlist]
+  (.get list-ndlist 0))
+
+(defn add-shapes
+  "Shape-only counterpart of add-NDArrays. Takes a list of Shape[] with one shape each
+   and returns the shape of their elementwise sum, which is accumulated in place into the first\\
+   List<Shape[]> -> Shape[]"
+  [list-shapes]
+  (into-array Shape [(first (.get list-shapes 0))]))
+
+(defn concat-shapes
+  "Shape-only counterpart of concat-NDArrays\\
+   List<Shape[]> -> Shape[]"
+  [list-shapes]
+  (into-array Shape (mapcat seq list-shapes)))
+
+(defn first-shapes
+  "Shape-only counterpart of first-NDList\\
+   List<Shape[]> -> Shape[]"
+  [list-shapes]
+  (.get list-shapes 0))
+
 
 #_(with-open [m (new-base-manager)]
     (let [l1 (ndlist m float-array [[1 2] [3 4]])
@@ -6,19 +6,28 @@
    [clojure.pprint :as pprint]
    [clojure.core.matrix :as m]
    [clojure.test :as t]
-   [poker.concurrent :as concurrent])
+   [poker.concurrent :as concurrent]
+   [cheshire.core :as json]
+   [clojure.java.shell :as shell])
   (:import poker.TransformerDecoderBlock
+           poker.Embedding
            poker.UnembedBlock
            poker.SinglePositionEncoding
            poker.LinearEmbedding
            poker.PositionalEncoding
            poker.SeparateParallelBlock
+           poker.IdentityBlock
            poker.TransformerTranslator
+           poker.ClonedParameterStore
+           poker.QuantizedParameterStore
+           poker.PopulationTransformer
            poker.ParallelEmbedding
            ai.djl.engine.Engine
            ai.djl.Model
            ai.djl.ndarray.NDArray
            ai.djl.ndarray.NDList
+           ai.djl.ndarray.NDArrays
+           ai.djl.ndarray.NDManager
            ai.djl.ndarray.index.NDIndex
            poker.Indexing
            ai.djl.ndarray.types.DataType
@@ -31,8 +40,11 @@
            ai.djl.training.initializer.Initializer
            ai.djl.training.initializer.XavierInitializer
            java.util.function.Function
+           java.util.IdentityHashMap
+           ai.djl.ndarray.NDResource
            java.lang.Class
-           java.util.Random))
+           java.util.Random
+           ai.djl.repository.zoo.Criteria))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 ;;;   Models and auxiliary methods    ;;;
@@ -75,7 +87,8 @@
 ;;;
 ;;; The architecture of the transformer is stored as an argument map
 ;;; in the transformer-parameters volatile. To change it, call (set-parameters)
-;;; with the desired argmap. 
+;;; with the desired argmap. To use other parameters on one thread only, and on
+;;; the tasks it submits, wrap the code in (with-parameters). 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
@@ -316,19 +329,34 @@
 ;;see parallel-embedding
 
 
+(def combining-functions
+  "The combining functions used by separate-parallel-block, by tag, with their shape-only counterparts
+   so that shape inference during initialization does not allocate dummy NDArrays. Vars are used, so that
+   redefining a function keeps its shape function\\
+   {tag {:function List<NDList> -> NDList :shape-function List<Shape[]> -> Shape[]}}"
+  {:add {:function #'ndarray/add-NDArrays :shape-function #'ndarray/add-shapes}
+   :concat {:function #'ndarray/concat-NDArrays :shape-function #'ndarray/concat-shapes}
+   :first {:function #'ndarray/first-NDList :shape-function #'ndarray/first-shapes}})
+
 (defn separate-parallel-block
   "Creates a parallel block that process separate inputs in parallel and then combines them to 
    form a final NDArray output.\\
-   function: List<NDList> -> NDList function to combine parallel outputs at the end\\
+   function: List<NDList> -> NDList function to combine parallel outputs at the end, or the tag of
+   one of combining-functions\\
    numInputs: list of the number of NDArray inputs to each parallel block\\
    blocks: The parallel blocks to apply separately to each set of input NDArrays. 
    Each block should correspond to an element of numInputs. \\
+   With a tag, output shapes are inferred without allocating NDArrays\\
    -> Block"
   [function numInputs & blocks]
-  (let [function (if (instance? Function function)
+  (let [{:keys [shape-function] :as combining} (when (keyword? function) (combining-functions function))
+        _ (assert (or combining (not (keyword? function))) (str "Unknown combining function " function))
+        function (or (:function combining) function)
+        function (if (instance? Function function)
                    function
                    (utils/make-function function))
         p (SeparateParallelBlock. function)]
+    (when shape-function (.setShapeFunction p (utils/make-function shape-function)))
     (.setNumInputs p (map int numInputs))
     (when (seq blocks) (.addAll p blocks))
     p))
@@ -433,13 +461,24 @@
 
 
 
+(defn invalidate-reverse!
+  "Given a block, clears the cached transposed weights of every embedding in the block tree.
+   Must be called after parameters are modified in place so that weight-tied unembedding
+   sees the new values\\
+   -> block"
+  [block]
+  (when (instance? Embedding block)
+    (.invalidateReverse ^Embedding block))
+  (run! invalidate-reverse! (.values (.getChildren block)))
+  block)
+
 (defn set-parameter!
   "Given a block, the name of a parameter, and an array of the values in the parameter,
    sets the values of that parameter to the values in the array.\\
    Block, String, java array -> Block"
   [block pname pvalues]
   (.set (.getArray (.get (.getParameters block) pname)) pvalues)
-  block)
+  (invalidate-reverse! block))
 
 (defn get-pnames
   "Given a block, returns a vector of the names of the parameters in the block\\
@@ -519,7 +558,7 @@
                      arr
                      (float-array arr))))
           (map first params))
-    nnet))
+    (invalidate-reverse! nnet)))
 
 (defn add-parameters!
   "Given a neural net and a map of {parameter-name float-array}, where the float-array or vector
@@ -536,7 +575,7 @@
                                (parameter-map %)
                                (.getShape arr)))))
           (map first params))
-    nnet))
+    (invalidate-reverse! nnet)))
 
 #_(with-open [m (ndarray/new-base-manager)]
     (let [l (linear 4)]
@@ -795,12 +834,12 @@
                                                                    %1
                                                                    :num-positions max-seq-length)))
                                                d-pe))
-        input-layer (separate-parallel-block ndarray/concat-NDArrays
+        input-layer (separate-parallel-block :concat
                                              [3 1];;3 inputs and 1 mask
-                                             (separate-parallel-block ndarray/add-NDArrays
+                                             (separate-parallel-block :add
                                                                       [2 1];;2 embeddings and 1 position
                                                                       embedding pos-encoding)
-                                             (lambda-block identity))
+                                             (IdentityBlock.))
         core-layer (apply sequential-block
                           (repeatedly num-layers #(transformer-decoder-block
                                                    d-model
@@ -811,7 +850,7 @@
                                                    :activation-function activation-function
                                                    :dropout-probability dropout-probability)))
         output-layer (separate-parallel-block
-                      #(.get % 0);;get the only NDList in the List<NDList>
+                      :first;;get the only NDList in the List<NDList>
                       [1];;only take the first input, ignore the mask.
                       (unembed-block embedding))
         model (sequential-block input-layer core-layer output-layer)]
@@ -879,20 +918,39 @@
               :d-pe [16 16 16 16];;
               :max-seq-length 100}))
 
+(def ^:dynamic *parameters*
+  "Transformer parameters bound by with-parameters, in place of transformer-parameters, so that 
+   experiments with different transformers can run side by side in one process"
+  nil)
+
+(defn current-parameters
+  "The transformer parameters in effect on the current thread\\
+   -> argmap"
+  []
+  (or *parameters* @transformer-parameters))
+
 
 (defn current-transformer
   "The current transformer model being evolved. Subject to change based on 
    computing constraints, meta-evolution, and ablation studies.\\
+   initializer: optionally override the initializer of the weights\\
+   parameters: optionally override the transformer-parameters to build the transformer with\\
+   component-map?: whether to return a map of {component-name component-block} instead (see transformer)\\
+   batch-size: the batch size B of the shapes used to initialize the model. Parameter shapes do not
+   depend on B and every block accepts any batch size at inference time (see batch-inputs)\\
    -> Block"
-  [manager]
+  [manager & {:keys [initializer parameters component-map? batch-size]
+              :or {batch-size 1}}]
   (apply transformer manager
          (into-array Shape
                      (map ndarray/shape
-                          [[1 256 onehot/state-length];;state
-                           [1 256 onehot/action-length];;action
-                           [1 512 4];;position
-                           [1 512 512]]));;mask
-         (mapcat identity (into [] @transformer-parameters))))
+                          [[batch-size 256 onehot/state-length];;state
+                           [batch-size 256 onehot/action-length];;action
+                           [batch-size 512 4];;position
+                           [batch-size 512 512]]));;mask
+         (mapcat identity (into [] (cond-> (or parameters (current-parameters))
+                                     initializer (assoc :initializer initializer)
+                                     component-map? (assoc :component-map? true))))))
 
 
 
@@ -928,6 +986,19 @@
   (vreset! initial-parameter-map (parameter-map))
   (System/gc))
 
+(def parameter-maps
+  "Initial parameter maps of the transformer parameters bound by with-parameters\\
+   {transformer-parameters parameter-map}"
+  (atom {}))
+
+(defn current-parameter-map
+  "The initial parameter map of the transformer parameters in effect on the current thread"
+  []
+  (if (and *parameters* (not= *parameters* @transformer-parameters))
+    (or (@parameter-maps *parameters*)
+        ((swap! parameter-maps assoc *parameters* (parameter-map)) *parameters*))
+    @initial-parameter-map))
+
 #_(with-open [manager (ndarray/new-base-manager)
               model (Model/newInstance "transformer")]
     (let [s (into-array Shape [(ndarray/shape [1 2 3])])
@@ -948,8 +1019,8 @@
    -> individual"
   [individual]
   (.close (:manager individual))
-  (.close (:model individual))
-  (dissoc individual :manager :model :mask))
+  (when-let [model (:model individual)] (.close model))
+  (dissoc individual :manager :model :mask :parameter-store))
 
 (defn initialize-individual
   "Creates an individual of the form {model mask manager max-seq-length id (stdev)} 
@@ -1094,7 +1165,7 @@
          :parameter-map
          (let [indices (:parameter-seeds individual)]
            (loop [to-return (transient {})
-                  p @initial-parameter-map
+                  p (current-parameter-map)
                   i 0]
              (if (empty? p)
                (persistent! to-return)
@@ -1119,7 +1190,7 @@
                                                            +
                                                            random))
                                               (count value))]))
-               @initial-parameter-map)))
+               (current-parameter-map))))
 
 (defn expand-param-seeds
   "Given an individual, expands its parameter seeds into a set of parameter weights
@@ -1150,6 +1221,26 @@
            :manager m
            :mask mask)))
 
+(defn add-seed-noise!
+  "Given the parameter NDArrays of a model in the order returned by get-parameters, the seeds of 
+   an individual's mutations, and the standard deviation(s) of the mutations, adds the block of
+   random noise indexed by each seed to the parameters in place. The indices of each parameter 
+   are offset by the sizes of the parameters before it\\
+   -> nil"
+  [params indices stdev]
+  (loop [params params
+         indices indices
+         stdev (if (number? stdev)
+                 (repeat (count params) stdev)
+                 stdev)]
+    (when-not (empty? params)
+      (when (< (rand) (/ 1 1000)) (System/gc))
+      (doall (for [i indices]
+               (ndarray/add-indexed (first params) i :stdev (first stdev))))
+      (recur (rest params)
+             (map (partial + (.size (first params))) indices)
+             (rest stdev)))))
+
 (defn make-model2
   "Given an individual, creates a transformer model from its parameter-map\\
    Also removes the parameter map\\
@@ -1158,18 +1249,10 @@
   (let [model (Model/newInstance (str "transformer " (:id individual)))
         m (.newSubManager manager)]
     (.setBlock model ((:nn-factory individual) m))
-    (loop [params (map second (get-parameters (.getBlock model)))
-           indices (:parameter-seeds individual)
-           stdev (if (number? (:stdev individual))
-                   (repeat (count params) (:stdev individual))
-                   (:stdev individual))]
-      (when-not (empty? params)
-        (when (< (rand) (/ 1 1000)) (System/gc))
-        (doall (for [i indices]
-                 (ndarray/add-indexed (first params) i :stdev (first stdev))))
-        (recur (rest params)
-               (map (partial + (.size (first params))) indices)
-               (rest stdev))))
+    (add-seed-noise! (map second (get-parameters (.getBlock model)))
+                     (:parameter-seeds individual)
+                     (:stdev individual))
+    (invalidate-reverse! (.getBlock model))
     (assoc individual
            :model model
            :manager m
@@ -1181,32 +1264,193 @@
                            :id :p0
                            :max-seq-length 7))
 
+(defn recording-initializer
+  "Wraps an initializer so that every array it creates is appended to the draws volatile,
+   recording the order in which random weights are drawn during initialization\\
+   -> Initializer"
+  [^Initializer initializer draws]
+  (reify Initializer
+    (initialize [_ manager shape datatype]
+      (let [arr (.initialize initializer manager shape datatype)]
+        (vswap! draws conj arr)
+        arr))))
+
+(defn build-skeleton
+  "Builds and initializes a transformer with the given transformer-parameters once, recording 
+   which parameters are drawn by the weight initializer and in which order. Clones of the skeleton 
+   share its blocks and only allocate their own parameter arrays.\\
+   -> {:block :components :transformer-parameters :manager :initializer :draws [[Parameter Shape DataType] ...] :parameters [Parameter ...] :noise-order [Parameter ...]}"
+  [parameters]
+  (let [manager (ndarray/new-base-manager)
+        draws (volatile! [])
+        ;;Initialization consumes the engine's random number generator, which clones seed and replay
+        components (locking (Engine/getInstance)
+                     (current-transformer manager
+                                          :initializer (recording-initializer default-xavier-initializer draws)
+                                          :parameters parameters
+                                          :component-map? true))
+        block (:model components)
+        noise-order (map second (get-parameters block :as-array? false))
+        parameters (distinct noise-order)
+        by-array (IdentityHashMap.)]
+    (run! #(.put by-array (.getArray %) %) parameters)
+    {:block block
+     :components components
+     :transformer-parameters (or parameters (current-parameters))
+     :manager manager
+     :initializer default-xavier-initializer
+     :draws (mapv #(vector (.get by-array %) (.getShape %) (.getDataType %)) @draws)
+     :parameters (vec parameters)
+     :noise-order (vec noise-order)}))
+
+(def model-skeletons
+  "Skeletons built by build-skeleton, keyed by the transformer-parameters they were built with\\
+   {transformer-parameters skeleton}"
+  (atom {}))
+
+(defn model-skeleton
+  "Returns the skeleton of the transformer with the given (by default the current) transformer-parameters,
+   building it on first use\\
+   -> skeleton"
+  ([] (model-skeleton (current-parameters)))
+  ([parameters]
+   (or (@model-skeletons parameters)
+       (locking model-skeletons
+         (or (@model-skeletons parameters)
+             ((swap! model-skeletons assoc parameters (build-skeleton parameters)) parameters))))))
+
+(defn clear-model-skeletons!
+  "Closes and forgets all skeletons. Clones of them must no longer be in use"
+  []
+  (locking model-skeletons
+    (run! #(.close (:manager %)) (vals @model-skeletons))
+    (reset! model-skeletons {})))
+
+(defn discarded-draws
+  "The initializer draws that model-from-seeds discards after seeding the engine, before drawing the
+   weights of an individual: those of the transformer with the individual's own transformer-parameters 
+   if any, then those of the current transformer. Both were rebuilt there when with-parameters swapped 
+   the parameters globally, and replaying their draws keeps the weights of every seed as they were.
+   Must be called before seeding the engine, since building a skeleton draws from it\\
+   -> [[Parameter Shape DataType] ...]"
+  [individual-parameters]
+  (concat (when individual-parameters
+            (:draws (model-skeleton individual-parameters)))
+          (:draws (model-skeleton))))
+
+(defn discard-draws!
+  "Draws and closes the given draws (see discarded-draws) from initializer. The engine must be
+   locked and seeded\\
+   -> nil"
+  [^Initializer initializer manager draws]
+  (with-open [m (.newSubManager manager)]
+    (doseq [[_ shape datatype] draws]
+      (.close (.initialize initializer m shape datatype)))))
+
+(defn clone-model
+  "Given an individual created by initialize-individual, the first of its seeds, and its own
+   transformer-parameters if any, stamps out a clone of the current transformer skeleton with fresh
+   parameter storage holding the same weights that model-from-seeds with make-model2 would produce.\\
+   Both seed the engine and discard the same draws (see discarded-draws) before drawing the weights,
+   followed by the seed noise.\\
+   -> individual with {block parameter-store manager mask}"
+  [individual first-seed individual-parameters manager mask]
+  (let [{:keys [block draws parameters noise-order ^Initializer initializer] :as skeleton} (model-skeleton)
+        discarded (discarded-draws individual-parameters)
+        m (.newSubManager manager)
+        values (IdentityHashMap.)
+        engine (Engine/getInstance)]
+    (locking engine
+      (.setRandomSeed engine first-seed)
+      (discard-draws! initializer m discarded)
+      (doseq [[param shape datatype] draws]
+        (.put values param (.initialize initializer m shape datatype))))
+    (doseq [param parameters
+            :when (not (.containsKey values param))]
+      (.put values param (doto (.duplicate (.getArray param)) (.attach m))))
+    (add-seed-noise! (map #(.get values %) noise-order)
+                     (:parameter-seeds individual)
+                     (:stdev individual))
+    (assoc individual
+           :block block
+           :skeleton skeleton
+           :parameter-store (ClonedParameterStore. m values)
+           :manager m
+           :mask mask)))
+
 (defmacro with-parameters
-  "Sets the transformer parameters within the body"
+  "Uses the transformer parameters within the body, on the current thread and on the tasks 
+   it submits (see concurrent/submit). Other threads keep their own. Without parameters, 
+   keeps the current ones"
   [parameters & body]
-  `(let [p# @transformer-parameters]
-     (when ~parameters (set-parameters ~parameters))
-     (try ~@body
-          (finally (set-parameters p#)))))
+  `(binding [*parameters* (or ~parameters (current-parameters))]
+     ~@body))
 
 
+(defn quantize-individual
+  "Given an individual built by model-from-seeds, either cloned or with a :model, returns the individual
+   with its attention, feed forward and linear embedding weights quantized to per-channel int8 
+   (see QuantizedParameterStore). Each forward pass dequantizes the weights it uses, and accumulates in float\\
+   release-float?: whether to close the float copies of the quantized weights, so that only the int8 weights
+   are kept. The block of a model built by make-model2 can then only be run with the quantized store\\
+   -> individual"
+  [individual & {:keys [release-float?]
+                 :or {release-float? true}}]
+  (let [{manager :manager
+         ^Model model :model
+         ps :parameter-store} individual
+        block (or (:block individual) (.getBlock model))
+        quantized (QuantizedParameterStore. manager block ps)]
+    (when release-float?
+      (doseq [^ai.djl.nn.Parameter p (.getQuantizedParameters quantized)]
+        (when-let [^NDArray arr (if (instance? ClonedParameterStore ps)
+                                  (.getArray ^ClonedParameterStore ps p)
+                                  (.getArray p))]
+          (.close arr))))
+    (assoc individual
+           :block block
+           :parameter-store quantized)))
+
+(defn scoped-parameter-store
+  "Given a parameter store and the manager of one forward pass, returns the store to run the pass with.
+   Quantized weights are dequantized onto manager, and closed with it\\
+   -> ParameterStore"
+  [ps ^NDManager manager]
+  (if (instance? QuantizedParameterStore ps)
+    (.forScope ^QuantizedParameterStore ps manager)
+    ps))
+
 (defn model-from-seeds
   "Given a map of seeds and ids, returns an individual with the current
-   default settings"
-  [individual max-seq-length manager mask & {:keys [stdev from-block?]
-                                             :or {stdev 1}}]
+   default settings\\
+   clone?: whether to clone the shared skeleton of the current transformer (see clone-model)
+   instead of building a new model. Cloned individuals have no :model, only a :block and :parameter-store\\
+   quantize?: whether to run the individual with int8 weights (see quantize-individual)"
+  [individual max-seq-length manager mask & {:keys [stdev from-block? clone? quantize?]
+                                             :or {stdev 1
+                                                  clone? true}}]
   (let [{seeds :seeds id :id std :stdev} individual
-        engine (Engine/getInstance)
-        individual (locking engine
-                     (.setRandomSeed engine (first seeds))
-                     (with-parameters (:transformer-parameters individual)
-                       (initialize-individual :nn-factory current-transformer
-                                            :parameter-seeds (rest seeds)
-                                            :id id
-                                            :max-seq-length max-seq-length)))]
-    (-> individual
-        #_(expand-param-seeds :stdev (or std stdev) :from-block? from-block?)
-        (make-model2 manager mask))))
+        engine (Engine/getInstance)]
+    (cond-> (if clone?
+              (clone-model (initialize-individual :nn-factory current-transformer
+                                                  :parameter-seeds (rest seeds)
+                                                  :id id
+                                                  :max-seq-length max-seq-length)
+                           (first seeds)
+                           (:transformer-parameters individual)
+                           manager
+                           mask)
+              (-> (let [discarded (discarded-draws (:transformer-parameters individual))]
+                    (locking engine
+                      (.setRandomSeed engine (first seeds))
+                      (discard-draws! default-xavier-initializer manager discarded)
+                      (initialize-individual :nn-factory current-transformer
+                                             :parameter-seeds (rest seeds)
+                                             :id id
+                                             :max-seq-length max-seq-length)))
+                  #_(expand-param-seeds :stdev (or std stdev) :from-block? from-block?)
+                  (make-model2 manager mask)))
+            quantize? quantize-individual)))
 
 (defn load-model
   "Given an individual, disregard that individual's seeds and instead loads its parameters
@@ -1219,15 +1463,89 @@
           model (model-from-seeds (assoc individual :seeds [1])
                                   max-seq-length
                                   manager
-                                  (ndarray/ndarray manager (ndarray/causal-mask [1 max-seq-length max-seq-length] -2)))]
+                                  (ndarray/ndarray manager (ndarray/causal-mask [1 max-seq-length max-seq-length] -2))
+                                  :clone? false)]
       (->> parameter-file
            (java.io.File.)
            (.toPath)
            (#(java.nio.file.Files/newInputStream % (into-array java.nio.file.OpenOption [])))
            (java.io.DataInputStream.)
            (.loadParameters (.getBlock (:model model)) manager))
+      (invalidate-reverse! (.getBlock (:model model)))
       model)))
 
+;;Node-local registry of built individuals shared read-only by concurrent matches (see acquire-model)
+;;{key {:built (delay {:individual :manager}) :refs n}}, where manager is the base manager the individual
+;;and its mask are built on
+(def shared-models (atom {}))
+
+(defn shared-model-key
+  "The registry key of an individual built by acquire-model\\
+   -> vector"
+  [individual max-seq-length device stdev from-block? quantize?]
+  [(:id individual)
+   (:seeds individual)
+   (:transformer-parameters individual)
+   (current-parameters)
+   max-seq-length
+   (str device)
+   stdev
+   (boolean from-block?)
+   (boolean quantize?)])
+
+(defn acquire-model
+  "Given an individual, returns it built as by model-from-seeds on its own manager, sharing one instance
+   between all callers with the same id, seeds, transformer parameters (its own and the current ones) and settings. The model is built
+   once by the first caller and is read-only: every match runs it through its own as-agent.
+   Each call must be paired with release-model\\
+   -> individual"
+  [individual max-seq-length & {:keys [device stdev from-block? quantize?]}]
+  (let [device (or device (utils/try-gpu))
+        k (shared-model-key individual max-seq-length device stdev from-block? quantize?)
+        build (delay (let [manager (ndarray/new-base-manager device)]
+                       {:manager manager
+                        :individual (model-from-seeds individual
+                                                      max-seq-length
+                                                      manager
+                                                      (ndarray/ndarray manager (ndarray/causal-mask [1 max-seq-length max-seq-length] -2))
+                                                      :stdev stdev
+                                                      :from-block? from-block?
+                                                      :quantize? quantize?)}))
+        entry (get (swap! shared-models
+                          (fn [registry]
+                            (if (contains? registry k)
+                              (update-in registry [k :refs] inc)
+                              (assoc registry k {:built build :refs 1}))))
+                   k)]
+    (assoc (:individual @(:built entry)) ::shared-key k)))
+
+(defn release-model
+  "Releases a reference to an individual returned by acquire-model. The model stays built until 
+   release-shared-models! is called with no references left\\
+   -> individual"
+  [individual]
+  (let [k (::shared-key individual)]
+    (swap! shared-models #(if (contains? % k)
+                            (update-in % [k :refs] dec)
+                            %))
+    individual))
+
+(defn release-shared-models!
+  "Closes and removes every shared model without references, with the base manager it was built on,
+   e.g. at the end of a generation\\
+   all?: close every shared model regardless of its references\\
+   -> number of models closed"
+  [& {:keys [all?]}]
+  (let [[old new] (swap-vals! shared-models
+                              #(into {} (filter (fn [[_ {refs :refs}]] (and (not all?) (pos? refs)))) %))
+        closed (remove (comp (partial contains? new) key) old)]
+    (doseq [[_ {built :built}] closed]
+      (when (realized? built)
+        (let [{:keys [individual ^NDManager manager]} @built]
+          (close-individual individual)
+          (.close manager))))
+    (count closed)))
+
 (defn save-model
   "Saves an individual's model parameters into a file"
   [individual block-size random-seed stdev filename & {:keys [transformer-parameters]}]
@@ -1235,11 +1553,12 @@
   (with-parameters (or transformer-parameters (:transformer-parameters individual))
     (with-open [m (ndarray/new-base-manager)]
       (let [max-seq-length (or (:max-seq-length individual)
-                               (:max-seq-length @transformer-parameters)
+                               (:max-seq-length (current-parameters))
                                100)
             model (model-from-seeds individual max-seq-length m (ndarray/ndarray m (ndarray/causal-mask [1 100 100] -2))
                                     :from-block? true
-                                    :stdev (or stdev (:stdev individual)))]
+                                    :stdev (or stdev (:stdev individual))
+                                    :clone? false)]
         (->> filename
              (java.io.File.)
              (.toPath)
@@ -1249,7 +1568,120 @@
 
 #_(def test (load-model opponent m "src/clojure/poker/Andrew/models/transformer.param" ))
 
+(defn torchscript-file
+  "The path of the TorchScript module exported next to the parameters saved by save-model to filename"
+  [filename]
+  (str filename ".pt"))
 
+(defn network-arrays
+  "Given an individual cloned by clone-model, the weights of its network by name, in the order
+   read by torchscript.py: the state and action embeddings, then for each layer the key, query, value 
+   and result projections, the attention norm, the feed forward layers and the output norm\\
+   -> [[name NDArray] ...]"
+  [individual]
+  (let [{{:keys [embedding core-layer]} :components} (:skeleton individual)
+        ^ClonedParameterStore ps (:parameter-store individual)
+        value (fn [block parameter-name]
+                (let [p (.get (.getParameters ^ai.djl.nn.Block block) ^String parameter-name)]
+                  (or (.getArray ps p) (.getArray p))))
+        linear (fn [prefix block]
+                 [[(str prefix ".weight") (value block "weight")]
+                  [(str prefix ".bias") (value block "bias")]])
+        norm (fn [prefix block]
+               [[(str prefix ".gamma") (value block "gamma")]
+                [(str prefix ".beta") (value block "beta")]])]
+    (concat (map-indexed (fn [i e] [(str "embedding." i ".weight") (value e "weight")])
+                         (.getEmbeddings ^ParallelEmbedding embedding))
+            (mapcat (fn [i ^TransformerDecoderBlock layer]
+                      (let [attention (.getSelfAttentionBlock layer)
+                            prefix (str "layers." i)]
+                        (concat (linear (str prefix ".key") (.getKeyProjection attention))
+                                (linear (str prefix ".query") (.getQueryProjection attention))
+                                (linear (str prefix ".value") (.getValueProjection attention))
+                                (linear (str prefix ".result") (.getResultProjection attention))
+                                (norm (str prefix ".attention_norm") (.getAttentionNorm layer))
+                                (apply concat
+                                       (map-indexed #(linear (str prefix ".ff." %1) %2)
+                                                    (filter #(instance? ai.djl.nn.core.Linear %)
+                                                            (.values (.getChildren (.getPointwiseFeedForwardBlock layer))))))
+                                (norm (str prefix ".output_norm") (.getOutputNorm layer)))))
+                    (range)
+                    (.values (.getChildren ^ai.djl.nn.Block core-layer))))))
+
+(defn export-model
+  "Saves an individual's model parameters with save-model, and exports its network as a TorchScript
+   module at (torchscript-file filename), for load-torchscript.\\
+   DJL cannot trace the Java blocks of the transformer, so the network is rebuilt in PyTorch by
+   torchscript.py from filename.json, a description of the network (the transformer parameters, the 
+   inputs and the output holding the encoded action), and filename.weights, the weights of
+   network-arrays and the positional encoding tables as big-endian floats in the order listed in 
+   filename.json. Only the default relu activation can be exported\\
+   python: python interpreter with torch and numpy\\
+   script: path of torchscript.py\\
+   -> filename of the TorchScript module"
+  [individual block-size random-seed stdev filename & {:keys [transformer-parameters python script]
+                                                       :or {python "python3"
+                                                            script "torchscript.py"}}]
+  (save-model individual block-size random-seed stdev filename :transformer-parameters transformer-parameters)
+  (with-parameters (or transformer-parameters (:transformer-parameters individual))
+    (assert (not (:activation-function (current-parameters))) "Only the default relu activation can be exported")
+    (with-open [m (ndarray/new-base-manager)]
+      (let [{:keys [d-pe max-seq-length] :as parameters} (current-parameters)
+            max-seq-length (or (:max-seq-length individual) max-seq-length 100)
+            clone (model-from-seeds individual max-seq-length m (ndarray/ndarray m (ndarray/causal-mask [1 max-seq-length max-seq-length] -2)))
+            arrays (concat (map (fn [[k ^NDArray arr]] [k (vec (.getShape (.getShape arr))) (.toFloatArray arr)])
+                                (network-arrays clone))
+                           ;;the fixed tables of each SinglePositionEncoding, as built by transformer
+                           (map-indexed (fn [i d]
+                                          [(str "position." i) [max-seq-length d]
+                                           (float-array (flatten (utils/positional-encoding d :num-positions max-seq-length)))])
+                                        d-pe))]
+        (with-open [out (java.io.DataOutputStream.
+                         (java.io.BufferedOutputStream.
+                          (java.io.FileOutputStream. (str filename ".weights"))))]
+          (doseq [[_ _ ^floats values] arrays
+                  v values]
+            (.writeFloat out v)))
+        (spit (str filename ".json")
+              (json/generate-string
+               {:transformer-parameters (select-keys parameters [:d-model :d-ff :num-layers :num-heads :d-pe :sparse :topK])
+                :max-seq-length max-seq-length
+                :inputs [{:name "state" :features onehot/state-length}
+                         {:name "actions" :features onehot/action-length}
+                         {:name "position" :features 4}
+                         {:name "mask"}]
+                :action-output 0
+                :arrays (map (fn [[k shape]] {:name k :shape shape}) arrays)}
+               {:pretty true}))
+        (let [{:keys [exit out err]} (shell/sh python script filename)]
+          (when-not (zero? exit)
+            (throw (ex-info (str "Failed to export " filename " to TorchScript: " err)
+                            {:exit exit :out out :err err}))))
+        (torchscript-file filename)))))
+
+(defn load-torchscript
+  "Given an individual, loads the TorchScript export of its network (see export-model) through the PyTorch engine
+   and returns the individual with the module as its :model. The whole network then runs as a single graph call 
+   per forward, which pays off for opponents such as the hall of fame that are evaluated many times. 
+   as-agent runs it through a Predictor like any other :model. The manager must belong to the PyTorch engine\\
+   -> individual"
+  [individual manager filename & {:keys [max-seq-length]}]
+  (let [max-seq-length (or max-seq-length
+                           (:max-seq-length individual)
+                           (:max-seq-length (:transformer-parameters individual))
+                           100)
+        model (-> (Criteria/builder)
+                  (.setTypes java.util.List java.util.List)
+                  (.optModelPath (.toPath (java.io.File. ^String (torchscript-file filename))))
+                  (.optEngine "PyTorch")
+                  (.optTranslator (TransformerTranslator. manager))
+                  (.build)
+                  (.loadModel))]
+    (assoc individual
+           :model model
+           :manager manager
+           :max-seq-length max-seq-length
+           :mask (ndarray/ndarray manager (ndarray/causal-mask [1 max-seq-length max-seq-length] -2)))))
 
 #_(def opponent
   {:id :bot
@@ -1523,9 +1955,111 @@
         (println (- (count (.getManagedArrays manager)) (count first-arrays)))
         #_(println (into [] (.getManagedArrays manager))))))
 
+(defn predict
+  "Given an individual cloned by clone-model and a list of input NDArrays without a batch
+   dimension, runs the shared block with the individual's parameter store. Equivalent to a 
+   Predictor with TransformerTranslator: the mask becomes additive offsets (see TransformerTranslator/maskOffsets),
+   the inputs are given a batch dimension of 1 and the last token of each output is returned.
+   Intermediate arrays are closed on return\\
+   -> [float-array ...]"
+  [individual inputs]
+  (with-open [m (.newSubManager (:manager individual))]
+    (.attachAll m (into-array NDResource inputs))
+    (let [inputs (cond-> (vec inputs)
+                   (= 4 (count inputs)) (update 3 #(TransformerTranslator/maskOffsets %)))
+          batched (NDList. ^java.util.Collection (map #(.expandDims ^NDArray % 0) inputs))
+          ps (scoped-parameter-store (:parameter-store individual) m)]
+      (into [] (TransformerTranslator/lastTokens
+                (.forward (:block individual)
+                          ps
+                          batched
+                          false))))))
+
+(defn batch-inputs
+  "Given a list of sliced inputs [state actions positions mask] without a batch dimension (see slice-inputs),
+   left-pads them to a common length and stacks them into one batch. Padded tokens have zero features and
+   positions. The 0/1 masks become additive offsets of -100000 for masked keys and 0 otherwise, as
+   SparseAttentionBlock does for 3-D masks, and padded keys get the same offset, so that the last token
+   of every sequence is computed exactly as it would be without the padding.
+   Every input must have the same difference between its number of states and of actions\\
+   -> NDList (B, F1, D1), (B, F2, D2), (B, F, n), (B, 1, F, F)"
+  [inputs ^NDManager manager]
+  (let [length (fn [^NDArray arr] (ndarray/get-axis (.getShape arr) -2))
+        states (map (comp length first) inputs)
+        actions (map (comp length second) inputs)
+        _ (assert (apply = (map - states actions))
+                  "Inputs must all end with the same kind of token to be interleaved in one batch")
+        num-states (apply max states)
+        num-actions (apply max actions)
+        num-tokens (+ num-states num-actions)
+        ;;(n, ...) -> (num-rows, ...) with zeros in front along axis 0
+        pad (fn [^NDArray arr num-rows]
+              (let [^Shape s (.getShape arr)
+                    n (- num-rows (.get s 0))]
+                (if (zero? n)
+                  arr
+                  (.concat (.zeros manager (Shape/update s 0 n) (.getDataType arr)) arr 0))))
+        pad-mask (fn [^NDArray mask]
+                   (let [l (length mask)
+                         n (- num-tokens l)
+                         ;;1 -> 0 for keys to keep, 0 -> -100000 for keys to mask
+                         mask (-> (.reshape mask (long-array [l l]))
+                                  (.toType DataType/FLOAT32 false)
+                                  (.rsub 1)
+                                  (.mul -100000))
+                         padded (-> (.zeros manager (ndarray/shape [n l]))
+                                    (.concat mask 0)
+                                    (#(.concat (.zeros manager (ndarray/shape [num-tokens n])) % 1)))
+                         offsets (.create manager
+                                          (float-array (concat (repeat n -100000) (repeat l 0)))
+                                          (ndarray/shape [1 num-tokens]))]
+                     (.reshape (.add padded offsets)
+                               (long-array [1 num-tokens num-tokens]))))
+        stack #(NDArrays/stack (NDList. ^java.util.Collection %))]
+    (NDList. ^java.util.Collection
+             [(stack (map #(pad (first %) num-states) inputs))
+              (stack (map #(pad (second %) num-actions) inputs))
+              (stack (map #(pad (nth % 2) num-tokens) inputs))
+              (stack (map #(pad-mask (nth % 3)) inputs))])))
+
+(defn predict-batch
+  "Given an individual and a list of sliced inputs (see slice-inputs), runs all of the inputs through
+   the individual's neural net in one forward pass of batch size (count inputs).
+   The inputs are closed on return\\
+   -> [encoded-action ...] in the same order as the inputs"
+  [individual inputs]
+  (let [{manager :manager
+         ^Model model :model
+         ps :parameter-store} individual
+        block (or (:block individual) (.getBlock model))]
+    (with-open [m (.newSubManager manager)]
+      (.attachAll m (into-array NDResource (apply concat inputs)))
+      (let [ps (or (scoped-parameter-store ps m) (ai.djl.training.ParameterStore. m false))
+            ^NDArray output (.head (.forward ^ai.djl.nn.Block block ps (batch-inputs inputs m) false))
+            ^NDArray last-tokens (.get output (ndarray/ndindex "...,-1,:"))]
+        (mapv #(.toFloatArray ^NDArray (.get last-tokens (NDIndex. (long-array [%]))))
+              (range (count inputs)))))))
+
+(defn encode-action
+  "Given an individual and a sliced input as returned by slice-inputs, runs the individual's 
+   neural net and returns the encoded action\\
+   -> float-array"
+  [individual input]
+  (let [{^Model model :model
+         manager :manager} individual]
+    (if (:parameter-store individual)
+      (first (predict individual input))
+      (utils/sfirst
+       (with-open [p (.newPredictor
+                      model
+                      ^TransformerTranslator (TransformerTranslator. manager))]
+         (.batchPredict p [input]))))))
+
 (defn as-agent
   "Given an individual, returns a function that uses the individual's
    neural net to make a decision based on a game-state and game-encoding\\
+   The neural net is either a :model (built by make-model2 or loaded by load-torchscript) or 
+   a :block run with a :parameter-store (see clone-model)\\
    -> IFn"
   [individual]
   (fn [game-state game-encoding]
@@ -1533,21 +2067,111 @@
            actions :actions
            positions :position} game-encoding
           {mask :mask
-           max-seq-length :max-seq-length
-           ^Model model :model
-           manager :manager} individual
+           max-seq-length :max-seq-length} individual
           input (slice-inputs state
                               actions
                               positions
                               mask
                               max-seq-length)
-          encoded-action (utils/sfirst
-                          (with-open [p (.newPredictor
-                                         model
-                                         ^TransformerTranslator (TransformerTranslator. manager))]
-                            (.batchPredict p [input])))]
+          encoded-action (encode-action individual input)]
       (parse-action-encoding encoded-action game-state))))
 
+(defn recording-agent
+  "Given an individual and a volatile vector, returns an agent (see as-agent) that also records
+   a copy of each of the individual's sliced inputs onto the given manager, e.g. for use with
+   quantization-agreement\\
+   -> IFn"
+  [individual record manager]
+  (let [agent (as-agent individual)]
+    (fn [game-state game-encoding]
+      (let [{{state (:id individual)} :state
+             actions :actions
+             positions :position} game-encoding
+            input (slice-inputs state actions positions (:mask individual) (:max-seq-length individual))]
+        (vswap! record conj (mapv (fn [^NDArray arr]
+                                    (doto (.duplicate arr) (.attach manager)))
+                                  input))
+        (agent game-state game-encoding)))))
+
+(defn action-argmax
+  "The most likely action type and bet size bucket of an encoded action\\
+   -> [type-idx bucket-idx]"
+  [encoding]
+  (let [argmax #(first (apply max-key second (map-indexed vector %)))]
+    [(argmax (take 5 encoding))
+     (argmax (drop 5 encoding))]))
+
+(defn quantization-agreement
+  "Given a float individual and its quantized counterpart (see quantize-individual, with 
+   release-float? false if both share a clone), and inputs recorded by recording-agent, 
+   returns the fraction of inputs for which both choose the same action argmax. 
+   Asserts that the agreement is at least threshold\\
+   -> {:agreement :num-inputs}"
+  [individual quantized inputs & {:keys [threshold]
+                                  :or {threshold 0.95}}]
+  (let [dup #(mapv (fn [^NDArray arr] (.duplicate arr)) %)
+        agree (mapv #(= (action-argmax (encode-action individual (dup %)))
+                        (action-argmax (encode-action quantized (dup %))))
+                    inputs)
+        agreement (if (empty? agree)
+                    1.0
+                    (double (/ (count (filter true? agree)) (count agree))))]
+    (assert (>= agreement threshold)
+            (str "Quantized agreement " agreement " is below the threshold " threshold))
+    {:agreement agreement
+     :num-inputs (count agree)}))
+
+(defn stack-population
+  "Given individuals cloned from the same skeleton by model-from-seeds, stacks their weights so that 
+   all of them can be evaluated with one batched forward pass (see population-predict).
+   The stacked weights live on the given manager, or are released with .close\\
+   -> PopulationTransformer"
+  [individuals manager]
+  (let [skeleton (:skeleton (first individuals))
+        {embedding :embedding
+         pos-encoding :pos-encoding
+         core-layer :core-layer} (:components skeleton)]
+    (assert (every? #(identical? skeleton (:skeleton %)) individuals)
+            "Individuals must be cloned from the same skeleton")
+    (assert (every? #(instance? ClonedParameterStore (:parameter-store %)) individuals)
+            "Quantized individuals cannot be stacked")
+    (PopulationTransformer. manager
+                            embedding
+                            pos-encoding
+                            (into [] (.values (.getChildren core-layer)))
+                            (int (:num-heads (:transformer-parameters skeleton)))
+                            (mapv :parameter-store individuals))))
+
+(defn population-predict
+  "Given a stacked population and, for each individual in the same order, a [game-state game-encoding]
+   pair or nil if that individual has no decision to make, runs every individual on its own game 
+   in one batched forward pass\\
+   -> [encoded-action or nil ...] as in as-agent"
+  [^PopulationTransformer population individuals games]
+  (let [inputs (mapv (fn [individual [_ game-encoding :as game]]
+                       (when game
+                         (let [{{state (:id individual)} :state
+                                actions :actions
+                                positions :position} game-encoding]
+                           (slice-inputs state actions positions (:mask individual) (:max-seq-length individual)))))
+                     individuals
+                     games)]
+    (with-open [m (.newSubManager (:manager (first individuals)))]
+      (.attachAll m (into-array NDResource (apply concat inputs)))
+      (mapv #(when % (first %))
+            (.forward population (mapv #(when % (NDList. ^java.util.Collection %)) inputs))))))
+
+(defn population-decide
+  "Given a stacked population and, for each individual, a [game-state game-encoding] pair or nil,
+   returns each individual's action, or nil for individuals without a decision to make.
+   Equivalent to calling each individual's as-agent on its own game\\
+   -> [action or nil ...]"
+  [population individuals games]
+  (mapv (fn [encoded-action [game-state _ :as game]]
+          (when game (parse-action-encoding encoded-action game-state)))
+        (population-predict population individuals games)
+        games))
+
 (defn as-player
   "Given an individual, returns a player with the individual's id\\
    -> player"
@@ -429,11 +429,18 @@
     (mapv #(Math/exp %) (range (Math/log x-min) (Math/log x-max) (Math/log pow)))
     (mapv #(* x-min (Math/pow (/ x-max x-min) (/ % num-buckets))) (range num-buckets))))
 
+(def ^:dynamic *random*
+  "Random number generator that random-weighted draws from when bound, so that a sequence of 
+   weighted choices can be replayed (see ERL/play-match). Unbound, rand is used"
+  nil)
+
 (defn random-weighted 
   "Randomly chooses an element of coll with probabilities weighted by (f element)"
   [f coll]
   (let [p (map f coll)
-        c (rand (reduce + p))]
+        c (if *random*
+            (* (.nextDouble ^Random *random*) (reduce + p))
+            (rand (reduce + p)))]
     (loop [p p
            coll coll
            c c]
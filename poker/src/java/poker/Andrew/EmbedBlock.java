@@ -25,6 +25,7 @@ import ai.djl.nn.Parameter;
 import ai.djl.training.ParameterStore;
 import ai.djl.util.PairList;
 import poker.Embedding;
+import poker.TransposeCache;
 
 import java.util.Collections;
 
@@ -41,6 +42,7 @@ public final class EmbedBlock extends AbstractBlock implements Embedding{
     private int embeddingSize;
 
     private Parameter embedding;
+    private final TransposeCache embeddingTranspose = new TransposeCache();
 
     private EmbedBlock(Builder builder) {
         this.dictionarySize = builder.dictionarySize;
@@ -86,7 +88,13 @@ public final class EmbedBlock extends AbstractBlock implements Embedding{
         (ParameterStore ps, NDList inputs, boolean training, PairList<String, Object> params) {
             NDArray input = inputs.singletonOrThrow();
             NDArray weightArr = ps.getValue(embedding, input.getDevice(), training);
-            return unembed(input, weightArr);
+            return input.getNDArrayInternal().linear(input, embeddingTranspose.get(weightArr), null);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void invalidateReverse() {
+        embeddingTranspose.invalidate();
     }
 
     public static NDList embed(NDArray input, NDArray weight) {
@@ -112,8 +120,7 @@ public final class EmbedBlock extends AbstractBlock implements Embedding{
         NDArray asMatrix = input.reshape(-1, embeddingSize);
         // get embedding table
         NDArray embeddingTableTransposed =
-                parameterStore.getValue(embedding, input.getDevice(), training).transpose();
-        embeddingTableTransposed.attach(input.getManager());
+                embeddingTranspose.get(parameterStore.getValue(embedding, input.getDevice(), training));
         // Create raw logits by taking the scalar product of the tokens and the embedding table
         NDArray logitsFlat = asMatrix.dot(embeddingTableTransposed);
         // turn the logits int negative log probabilities
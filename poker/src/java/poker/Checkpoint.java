@@ -0,0 +1,94 @@
+package poker;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Random;
+
+/* Versioned binary checkpoints of an evolutionary run
+ *
+ * A checkpoint is the magic number, the format version, and one Clojure value, usually a map
+ * of the generation number, population, hall of fame, random number generator, max-actions
+ * and timing (see ERL/checkpoint!), in the encoding of Codec. Version 2 adds the compact
+ * encoding of integer vectors, and version 1 checkpoints are still read.
+ *
+ * write() writes to a temporary file next to the target and moves it into place, so that a
+ * checkpoint is either entirely the previous one or entirely the new one, even if the
+ * process is killed while writing.
+ */
+public class Checkpoint {
+
+    public static final int MAGIC = 0x45524c43; // "ERLC"
+    public static final int VERSION = 2;
+
+    private Checkpoint() {}
+
+    /* Atomically replaces the file at path with a checkpoint of value */
+    public static void write(Path path, Object value) throws IOException {
+        Path dir = path.toAbsolutePath().getParent();
+        Path tmp = Files.createTempFile(dir, path.getFileName().toString(), ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                new Codec.Writer(out).write(value);
+            }
+            try {
+                Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (java.nio.file.AtomicMoveNotSupportedException e) {
+                Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /* Reads the value of the checkpoint at path */
+    public static Object read(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a checkpoint: " + path);
+            }
+            int version = in.readInt();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Unsupported checkpoint version " + version + ": " + path);
+            }
+            return new Codec.Reader(in).read();
+        }
+    }
+
+    /* A copy of a random number generator in its current state, to be checkpointed while
+     * the original goes on generating numbers
+     */
+    public static Random copy(Random random) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+            oos.writeObject(random);
+        }
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return (Random) ois.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /* Whether the file at path starts with the checkpoint magic number */
+    public static boolean isCheckpoint(Path path) {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(path))) {
+            return in.readInt() == MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
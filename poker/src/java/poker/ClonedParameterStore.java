@@ -0,0 +1,44 @@
+package poker;
+
+import ai.djl.Device;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.nn.Parameter;
+import ai.djl.training.ParameterStore;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/* A ParameterStore that serves a clone's own parameter values to a shared block
+ *
+ * Blocks built and initialized once (the model skeleton) can be run for any number of
+ * individuals by forwarding with a ClonedParameterStore holding that individual's arrays.
+ * Parameters without an entry fall back to the block's own (skeleton) values.
+ */
+public class ClonedParameterStore extends ParameterStore {
+
+    private final Map<Parameter, NDArray> values;
+
+    public ClonedParameterStore(NDManager manager, Map<Parameter, NDArray> values) {
+        super(manager, false);
+        this.values = new IdentityHashMap<>(values);
+    }
+
+    /* The array holding the clone's values of the given parameter, or null if it has none */
+    public NDArray getArray(Parameter parameter) {
+        return values.get(parameter);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public NDArray getValue(Parameter parameter, Device device, boolean training) {
+        if (parameter == null) {
+            return null;
+        }
+        NDArray value = values.get(parameter);
+        if (value == null) {
+            return parameter.getArray();
+        }
+        return value;
+    }
+}
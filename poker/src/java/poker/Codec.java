@@ -0,0 +1,371 @@
+package poker;
+
+import clojure.lang.IPersistentMap;
+import clojure.lang.IPersistentSet;
+import clojure.lang.IPersistentVector;
+import clojure.lang.ISeq;
+import clojure.lang.ITransientCollection;
+import clojure.lang.ITransientMap;
+import clojure.lang.Keyword;
+import clojure.lang.PersistentArrayMap;
+import clojure.lang.PersistentHashSet;
+import clojure.lang.PersistentList;
+import clojure.lang.PersistentVector;
+import clojure.lang.RT;
+import clojure.lang.Ratio;
+import clojure.lang.Var;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/* Compact binary encoding of Clojure values, shared by checkpoints and the socket transport
+ *
+ * Values are written with a one-byte tag:
+ *
+ *   nil, booleans, longs, doubles, strings, ratios, vectors, lists, maps and sets
+ *   keywords: the name is written on first use and later uses refer to it by index, so the
+ *             ids repeated in every :error map cost a few bytes each
+ *   vectors of integers, such as the seeds of an individual, as 4 bytes per element
+ *   long and double arrays, written as their length and elements
+ *   java.util.Random and other Serializable objects, as java serialization bytes
+ *
+ * Anything else is written as its printed representation and read back with the reader,
+ * without read-eval.
+ *
+ * Serialized objects and printed representations can run arbitrary code when read, so values
+ * received from other processes are encoded and decoded as plain data with encodeData() and
+ * decodeData(), which refuse them.
+ *
+ * The keyword table lives as long as one Writer or Reader, so a value must be read back with
+ * a fresh Reader if it was written with a fresh Writer, as encode() and decode() do.
+ */
+public final class Codec {
+
+    private static final byte NIL = 0;
+    private static final byte TRUE = 1;
+    private static final byte FALSE = 2;
+    private static final byte LONG = 3;
+    private static final byte DOUBLE = 4;
+    private static final byte STRING = 5;
+    private static final byte KEYWORD = 6;
+    private static final byte KEYWORD_REF = 7;
+    private static final byte VECTOR = 8;
+    private static final byte LIST = 9;
+    private static final byte MAP = 10;
+    private static final byte SET = 11;
+    private static final byte RATIO = 12;
+    private static final byte LONGS = 13;
+    private static final byte DOUBLES = 14;
+    private static final byte SERIALIZED = 15;
+    private static final byte PRINTED = 16;
+    private static final byte INT_VECTOR = 17;
+
+    private Codec() {}
+
+    /* The encoding of value */
+    public static byte[] encode(Object value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            new Writer(out).write(value);
+        }
+        return bytes.toByteArray();
+    }
+
+    /* The value encoded in bytes */
+    public static Object decode(byte[] bytes) throws IOException {
+        return new Reader(new DataInputStream(new ByteArrayInputStream(bytes))).read();
+    }
+
+    /* The encoding of value, which must be plain data: no serialized or printed objects */
+    public static byte[] encodeData(Object value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            new Writer(out, true).write(value);
+        }
+        return bytes.toByteArray();
+    }
+
+    /* The plain data encoded in bytes. Fails on serialized or printed objects */
+    public static Object decodeData(byte[] bytes) throws IOException {
+        return new Reader(new DataInputStream(new ByteArrayInputStream(bytes)), true).read();
+    }
+
+    public static final class Writer {
+        private final DataOutputStream out;
+        private final boolean dataOnly;
+        private final Map<Keyword, Integer> keywords = new HashMap<>();
+
+        public Writer(DataOutputStream out) {
+            this(out, false);
+        }
+
+        /* dataOnly: whether to fail on values that would be serialized or printed */
+        public Writer(DataOutputStream out, boolean dataOnly) {
+            this.out = out;
+            this.dataOnly = dataOnly;
+        }
+
+        public void write(Object o) throws IOException {
+            if (o == null) {
+                out.writeByte(NIL);
+            } else if (o instanceof Boolean) {
+                out.writeByte((Boolean) o ? TRUE : FALSE);
+            } else if (o instanceof Long || o instanceof Integer || o instanceof Short || o instanceof Byte) {
+                out.writeByte(LONG);
+                out.writeLong(((Number) o).longValue());
+            } else if (o instanceof Double || o instanceof Float) {
+                out.writeByte(DOUBLE);
+                out.writeDouble(((Number) o).doubleValue());
+            } else if (o instanceof String) {
+                out.writeByte(STRING);
+                writeLongUTF((String) o);
+            } else if (o instanceof Keyword) {
+                Integer index = keywords.get(o);
+                if (index == null) {
+                    keywords.put((Keyword) o, keywords.size());
+                    out.writeByte(KEYWORD);
+                    out.writeUTF(((Keyword) o).sym.toString());
+                } else {
+                    out.writeByte(KEYWORD_REF);
+                    out.writeInt(index);
+                }
+            } else if (o instanceof Ratio) {
+                out.writeByte(RATIO);
+                out.writeUTF(((Ratio) o).numerator.toString());
+                out.writeUTF(((Ratio) o).denominator.toString());
+            } else if (o instanceof IPersistentMap) {
+                out.writeByte(MAP);
+                out.writeInt(((IPersistentMap) o).count());
+                for (ISeq s = RT.seq(o); s != null; s = s.next()) {
+                    Map.Entry<?, ?> entry = (Map.Entry<?, ?>) s.first();
+                    write(entry.getKey());
+                    write(entry.getValue());
+                }
+            } else if (o instanceof IPersistentSet) {
+                out.writeByte(SET);
+                writeElements(o);
+            } else if (o instanceof IPersistentVector) {
+                if (isIntVector((IPersistentVector) o)) {
+                    IPersistentVector v = (IPersistentVector) o;
+                    out.writeByte(INT_VECTOR);
+                    out.writeInt(v.count());
+                    for (int i = 0; i < v.count(); i++) {
+                        out.writeInt(((Number) v.nth(i)).intValue());
+                    }
+                } else {
+                    out.writeByte(VECTOR);
+                    writeElements(o);
+                }
+            } else if (o instanceof java.util.List || o instanceof ISeq) {
+                out.writeByte(LIST);
+                writeElements(o);
+            } else if (o instanceof long[]) {
+                long[] a = (long[]) o;
+                out.writeByte(LONGS);
+                out.writeInt(a.length);
+                for (long l : a) {
+                    out.writeLong(l);
+                }
+            } else if (o instanceof double[]) {
+                double[] a = (double[]) o;
+                out.writeByte(DOUBLES);
+                out.writeInt(a.length);
+                for (double d : a) {
+                    out.writeDouble(d);
+                }
+            } else if (dataOnly) {
+                throw new IOException("Not plain data: " + o.getClass().getName());
+            } else if (o instanceof Random || (o instanceof Serializable && !(o instanceof clojure.lang.IObj))) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+                    oos.writeObject(o);
+                }
+                out.writeByte(SERIALIZED);
+                out.writeInt(bytes.size());
+                bytes.writeTo(out);
+            } else {
+                out.writeByte(PRINTED);
+                writeLongUTF(RT.printString(o));
+            }
+        }
+
+        /* Whether v is non-empty and only holds longs and ints that fit in an int */
+        private static boolean isIntVector(IPersistentVector v) {
+            if (v.count() == 0) {
+                return false;
+            }
+            for (int i = 0; i < v.count(); i++) {
+                Object e = v.nth(i);
+                if (!(e instanceof Long || e instanceof Integer)) {
+                    return false;
+                }
+                long l = ((Number) e).longValue();
+                if (l < Integer.MIN_VALUE || l > Integer.MAX_VALUE) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void writeElements(Object coll) throws IOException {
+            List<Object> elements = new ArrayList<>();
+            for (ISeq s = RT.seq(coll); s != null; s = s.next()) {
+                elements.add(s.first());
+            }
+            out.writeInt(elements.size());
+            for (Object e : elements) {
+                write(e);
+            }
+        }
+
+        private void writeLongUTF(String s) throws IOException {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    public static final class Reader {
+        private final DataInputStream in;
+        private final boolean dataOnly;
+        private final List<Keyword> keywords = new ArrayList<>();
+
+        public Reader(DataInputStream in) {
+            this(in, false);
+        }
+
+        /* dataOnly: whether to fail on serialized or printed objects */
+        public Reader(DataInputStream in, boolean dataOnly) {
+            this.in = in;
+            this.dataOnly = dataOnly;
+        }
+
+        public Object read() throws IOException {
+            byte tag = in.readByte();
+            switch (tag) {
+                case NIL:
+                    return null;
+                case TRUE:
+                    return Boolean.TRUE;
+                case FALSE:
+                    return Boolean.FALSE;
+                case LONG:
+                    return in.readLong();
+                case DOUBLE:
+                    return in.readDouble();
+                case STRING:
+                    return readLongUTF();
+                case KEYWORD: {
+                    Keyword k = Keyword.intern(in.readUTF());
+                    keywords.add(k);
+                    return k;
+                }
+                case KEYWORD_REF:
+                    return keywords.get(in.readInt());
+                case RATIO:
+                    return new Ratio(new java.math.BigInteger(in.readUTF()), new java.math.BigInteger(in.readUTF()));
+                case MAP: {
+                    int n = in.readInt();
+                    ITransientMap m = PersistentArrayMap.EMPTY.asTransient();
+                    for (int i = 0; i < n; i++) {
+                        Object k = read();
+                        Object v = read();
+                        m = m.assoc(k, v);
+                    }
+                    return m.persistent();
+                }
+                case SET: {
+                    int n = in.readInt();
+                    ITransientCollection s = PersistentHashSet.EMPTY.asTransient();
+                    for (int i = 0; i < n; i++) {
+                        s = s.conj(read());
+                    }
+                    return s.persistent();
+                }
+                case VECTOR: {
+                    int n = in.readInt();
+                    ITransientCollection v = PersistentVector.EMPTY.asTransient();
+                    for (int i = 0; i < n; i++) {
+                        v = v.conj(read());
+                    }
+                    return v.persistent();
+                }
+                case INT_VECTOR: {
+                    int n = in.readInt();
+                    ITransientCollection v = PersistentVector.EMPTY.asTransient();
+                    for (int i = 0; i < n; i++) {
+                        v = v.conj((long) in.readInt());
+                    }
+                    return v.persistent();
+                }
+                case LIST: {
+                    int n = in.readInt();
+                    Object[] elements = new Object[n];
+                    for (int i = 0; i < n; i++) {
+                        elements[i] = read();
+                    }
+                    return PersistentList.create(Arrays.asList(elements));
+                }
+                case LONGS: {
+                    long[] a = new long[in.readInt()];
+                    for (int i = 0; i < a.length; i++) {
+                        a[i] = in.readLong();
+                    }
+                    return a;
+                }
+                case DOUBLES: {
+                    double[] a = new double[in.readInt()];
+                    for (int i = 0; i < a.length; i++) {
+                        a[i] = in.readDouble();
+                    }
+                    return a;
+                }
+                case SERIALIZED: {
+                    if (dataOnly) {
+                        throw new IOException("Refusing to deserialize an object from plain data");
+                    }
+                    byte[] bytes = new byte[in.readInt()];
+                    in.readFully(bytes);
+                    try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                        return ois.readObject();
+                    } catch (ClassNotFoundException e) {
+                        throw new IOException(e);
+                    }
+                }
+                case PRINTED: {
+                    if (dataOnly) {
+                        throw new IOException("Refusing to read a printed object from plain data");
+                    }
+                    String printed = readLongUTF();
+                    Var.pushThreadBindings(RT.map(RT.READEVAL, RT.F));
+                    try {
+                        return RT.readString(printed);
+                    } finally {
+                        Var.popThreadBindings();
+                    }
+                }
+                default:
+                    throw new IOException("Unknown tag " + tag);
+            }
+        }
+
+        private String readLongUTF() throws IOException {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -18,4 +18,9 @@ import ai.djl.nn.Block;
 
 public interface Embedding extends Block{
     public NDList reverse(ParameterStore ps, NDList inputs, boolean training, PairList<String, Object> params);
+
+    /* Discards anything reverse() has cached from the current parameter values
+     * Must be called whenever the parameters are modified in place
+     */
+    public default void invalidateReverse() {}
 }
@@ -0,0 +1,112 @@
+package poker;
+
+/* Dense match results of a population against a set of benchmark individuals
+ *
+ * gains[p][b] is the total net gain of population slot p against benchmark slot b over all
+ * matchups between them, and games[p][b] is the number of matchups played. Heads up play is
+ * zero sum, so benchmark slot b won -gains[p][b] from population slot p.
+ *
+ * Individuals may be both in the population and in the benchmark. benchSlotOfPop[p] is the
+ * benchmark slot of population slot p, or -1, and popSlotOfBench[b] the population slot of
+ * benchmark slot b, or -1. An individual's error against an opponent then adds up its results
+ * in both roles, as merging the per-opponent :error maps did.
+ *
+ * Rows are filled concurrently by record() as matchups complete. Derived values are computed
+ * once all matchups have been recorded.
+ */
+public class FitnessMatrix {
+
+    private final double[][] gains;
+    private final int[][] games;
+    private final int[] benchSlotOfPop;
+    private final int[] popSlotOfBench;
+    private volatile double[][] errors;
+
+    public FitnessMatrix(int[] benchSlotOfPop, int[] popSlotOfBench) {
+        this.benchSlotOfPop = benchSlotOfPop.clone();
+        this.popSlotOfBench = popSlotOfBench.clone();
+        this.gains = new double[benchSlotOfPop.length][popSlotOfBench.length];
+        this.games = new int[benchSlotOfPop.length][popSlotOfBench.length];
+    }
+
+    public int popSize() {return gains.length;}
+
+    public int benchSize() {return popSlotOfBench.length;}
+
+    public int benchSlotOfPop(int p) {return benchSlotOfPop[p];}
+
+    public int popSlotOfBench(int b) {return popSlotOfBench[b];}
+
+    /* Adds the net gain of population slot p in one matchup against benchmark slot b */
+    public void record(int p, int b, double gain) {
+        synchronized (gains[p]) {
+            gains[p][b] += gain;
+            games[p][b]++;
+        }
+        errors = null;
+    }
+
+    /* Total net gain of population slot p against benchmark slot b */
+    public double gain(int p, int b) {return gains[p][b];}
+
+    /* Number of matchups played between population slot p and benchmark slot b */
+    public int games(int p, int b) {return games[p][b];}
+
+    /* Net gain of population slot p against the individual in benchmark slot b, over the
+     * matchups in which p was the population individual and those in which it was the benchmark
+     */
+    public double error(int p, int b) {
+        double error = gains[p][b];
+        int c = benchSlotOfPop[p];
+        int q = popSlotOfBench[b];
+        if (c >= 0 && q >= 0) {
+            error -= gains[q][c];
+        }
+        return error;
+    }
+
+    /* error(p, b) for every population slot p and benchmark slot b, computed once and shared
+     * by all readers until the next record()
+     */
+    public double[][] errors() {
+        double[][] e = errors;
+        if (e == null) {
+            e = new double[popSize()][benchSize()];
+            for (int p = 0; p < e.length; p++) {
+                for (int b = 0; b < e[p].length; b++) {
+                    e[p][b] = error(p, b);
+                }
+            }
+            errors = e;
+        }
+        return e;
+    }
+
+    /* Total net gain of population slot p over all of its matchups, in either role */
+    public double totalError(int p) {
+        double total = 0;
+        for (double gain : gains[p]) {
+            total += gain;
+        }
+        int c = benchSlotOfPop[p];
+        if (c >= 0) {
+            for (double[] row : gains) {
+                total -= row[c];
+            }
+        }
+        return total;
+    }
+
+    /* Total net gain of benchmark slot b over all of its matchups, in either role */
+    public double benchTotalError(int b) {
+        int p = popSlotOfBench[b];
+        if (p >= 0) {
+            return totalError(p);
+        }
+        double total = 0;
+        for (double[] row : gains) {
+            total -= row[b];
+        }
+        return total;
+    }
+}
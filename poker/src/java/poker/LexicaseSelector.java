@@ -0,0 +1,126 @@
+package poker;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+
+/* Epsilon lexicase selection over a primitive matrix of errors
+ *
+ * errors[i][c] is the result of individual i on test case c, higher being better. The matrix
+ * is transposed once to case-major order, so that the errors of the remaining candidates on a
+ * case are read from one contiguous column.
+ *
+ * Each selection shuffles the cases, then keeps the candidates whose error on each case is at
+ * least the best error among the remaining candidates minus the epsilon of that case, the
+ * median absolute deviation of the errors of the remaining candidates from their mean, as
+ * ERL/lexicase-selection computes it. The candidate pool is a BitSet over individual indices.
+ *
+ * Selections are independent and only read the shared matrices, so selectMany() runs them in
+ * parallel. Each selection draws from its own generator, seeded in order from a single seed,
+ * so that the selected indices do not depend on how the selections are scheduled.
+ */
+public class LexicaseSelector {
+
+    private final double[][] cases;
+    private final int popSize;
+
+    public LexicaseSelector(double[][] errors) {
+        this.popSize = errors.length;
+        int numCases = popSize == 0 ? 0 : errors[0].length;
+        this.cases = new double[numCases][popSize];
+        for (int i = 0; i < popSize; i++) {
+            for (int c = 0; c < numCases; c++) {
+                cases[c][i] = errors[i][c];
+            }
+        }
+    }
+
+    public int popSize() {return popSize;}
+
+    public int numCases() {return cases.length;}
+
+    /* Median of the absolute deviations of data from its mean, as ERL/mean-absolute-deviation */
+    public static double meanAbsoluteDeviation(double[] data) {
+        return meanAbsoluteDeviation(data, data.length);
+    }
+
+    /* meanAbsoluteDeviation() of the first n values of data */
+    public static double meanAbsoluteDeviation(double[] data, int n) {
+        if (n == 0) {
+            return 0;
+        }
+        double mean = 0;
+        for (int i = 0; i < n; i++) {
+            mean += data[i];
+        }
+        mean /= n;
+        double[] deviations = new double[n];
+        for (int i = 0; i < n; i++) {
+            deviations[i] = Math.abs(data[i] - mean);
+        }
+        Arrays.sort(deviations);
+        return n % 2 == 0
+                ? (deviations[n / 2] + deviations[n / 2 - 1]) / 2.0
+                : deviations[n / 2];
+    }
+
+    /* Selects the index of one individual */
+    public int select(SplittableRandom random) {
+        BitSet candidates = new BitSet(popSize);
+        candidates.set(0, popSize);
+        int[] order = shuffledCases(random);
+        int remaining = popSize;
+        double[] remainingErrors = new double[popSize];
+        for (int k = 0; k < order.length && remaining > 1; k++) {
+            int c = order[k];
+            double[] errors = cases[c];
+            double best = Double.NEGATIVE_INFINITY;
+            int n = 0;
+            for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+                best = Math.max(best, errors[i]);
+                remainingErrors[n++] = errors[i];
+            }
+            double threshold = best - meanAbsoluteDeviation(remainingErrors, n);
+            for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+                if (errors[i] < threshold) {
+                    candidates.clear(i);
+                    remaining--;
+                }
+            }
+        }
+        int pick = remaining == 1 ? 0 : random.nextInt(remaining);
+        int i = candidates.nextSetBit(0);
+        for (int j = 0; j < pick; j++) {
+            i = candidates.nextSetBit(i + 1);
+        }
+        return i;
+    }
+
+    /* Selects the indices of n individuals in parallel. The result only depends on seed */
+    public int[] selectMany(int n, long seed) {
+        SplittableRandom root = new SplittableRandom(seed);
+        long[] seeds = new long[n];
+        for (int j = 0; j < n; j++) {
+            seeds[j] = root.nextLong();
+        }
+        return IntStream.range(0, n)
+                .parallel()
+                .map(j -> select(new SplittableRandom(seeds[j])))
+                .toArray();
+    }
+
+    private int[] shuffledCases(SplittableRandom random) {
+        int[] order = new int[cases.length];
+        for (int c = 0; c < order.length; c++) {
+            order[c] = c;
+        }
+        for (int c = order.length - 1; c > 0; c--) {
+            int j = random.nextInt(c + 1);
+            int tmp = order[c];
+            order[c] = order[j];
+            order[j] = tmp;
+        }
+        return order;
+    }
+}
@@ -66,6 +66,7 @@ public class LinearEmbedding extends AbstractBlock implements Embedding {
     private long inputFeatures;
     private Shape inputShape;
     private Parameter weight;
+    private final TransposeCache weightTranspose = new TransposeCache();
 
     /* Builds a linear embedding block from an instance of the Builder subclass
      * Modified from Linear to not construct bias parameter
@@ -102,8 +103,9 @@ public class LinearEmbedding extends AbstractBlock implements Embedding {
 
     /* Implementation of Embedding interface
      * Same as forward, but multiplies by the transpose of the weight matrix
-     * Attaches transpose to the input's NDManager to ensure that the transpose
-     * is closed when inference is finished, preventing memory leaks
+     * The contiguous transpose is computed once per weight array and kept on the
+     * weight's NDManager, so it is closed together with the model rather than
+     * being recomputed and attached to the input's NDManager on every call
      */
     /** {@inheritDoc} */
     @Override
@@ -115,9 +117,13 @@ public class LinearEmbedding extends AbstractBlock implements Embedding {
         NDArray input = inputs.singletonOrThrow();
         Device device = input.getDevice();
         NDArray weightArr = parameterStore.getValue(weight, device, training);
-        NDArray weightTranspose = weightArr.transpose();
-        input.getManager().attachAll(weightTranspose);
-        return linear(input,weightTranspose);
+        return linear(input, weightTranspose.get(weightArr));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void invalidateReverse() {
+        weightTranspose.invalidate();
     }
 
     /** {@inheritDoc} */
@@ -0,0 +1,77 @@
+package poker;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/* Matches received messages with the receives expecting them
+ *
+ * Messages are keyed by the rank of their source and their tag, and delivered in order for each
+ * key. deliver() completes the oldest receive expecting the message that has not been
+ * cancelled, or queues the message until expect() asks for it, so that any number of messages
+ * may be outstanding for a key, and messages may arrive before or after they are expected.
+ *
+ * Shared by the socket transport and by the MPI receiver thread (see MPI/receiver).
+ */
+public class Mailbox {
+
+    private final Map<Long, ArrayDeque<Object>> received = new HashMap<>();
+    private final Map<Long, ArrayDeque<CompletableFuture<Object>>> pending = new HashMap<>();
+    private Exception closed;
+
+    private static long key(int source, int tag) {
+        return ((long) source << 32) | (tag & 0xffffffffL);
+    }
+
+    /* A future of the next message from source with tag */
+    public synchronized CompletableFuture<Object> expect(int source, int tag) {
+        long key = key(source, tag);
+        ArrayDeque<Object> messages = received.get(key);
+        if (messages != null && !messages.isEmpty()) {
+            return CompletableFuture.completedFuture(messages.poll());
+        }
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        if (closed != null) {
+            future.completeExceptionally(closed);
+        } else {
+            pending.computeIfAbsent(key, k -> new ArrayDeque<>()).add(future);
+        }
+        return future;
+    }
+
+    /* Completes the oldest receive expecting the message, or queues it */
+    public synchronized void deliver(int source, int tag, Object message) {
+        long key = key(source, tag);
+        ArrayDeque<CompletableFuture<Object>> futures = pending.get(key);
+        while (futures != null && !futures.isEmpty()) {
+            if (futures.poll().complete(message)) {
+                return;
+            }
+        }
+        received.computeIfAbsent(key, k -> new ArrayDeque<>()).add(message);
+    }
+
+    /* Fails every receive still expecting a message from source */
+    public synchronized void fail(int source, Exception e) {
+        for (Map.Entry<Long, ArrayDeque<CompletableFuture<Object>>> entry : pending.entrySet()) {
+            if ((int) (entry.getKey() >> 32) == source) {
+                for (CompletableFuture<Object> future : entry.getValue()) {
+                    future.completeExceptionally(e);
+                }
+                entry.getValue().clear();
+            }
+        }
+    }
+
+    /* Fails every receive still expecting a message, and every later one */
+    public synchronized void close(Exception e) {
+        closed = e;
+        for (ArrayDeque<CompletableFuture<Object>> futures : pending.values()) {
+            for (CompletableFuture<Object> future : futures) {
+                future.completeExceptionally(e);
+            }
+            futures.clear();
+        }
+    }
+}
@@ -61,6 +61,8 @@ public class ParallelEmbedding extends AbstractBlock implements Embedding{
      private int axis;
      private String startOfIndex;
      private String endOfIndex;
+     private NDIndex[] forwardIndices;
+     private NDIndex[] reverseIndices;
 
      public ParallelEmbedding(){
      }
@@ -77,6 +79,8 @@ public class ParallelEmbedding extends AbstractBlock implements Embedding{
      }
 
 
+     public List<Embedding> getEmbeddings(){return this.embeddings;}
+
      public ParallelEmbedding setAxis(int axis){
         this.axis = axis;
         return this;
@@ -104,27 +108,80 @@ public class ParallelEmbedding extends AbstractBlock implements Embedding{
             // }
             // System.out.println("ParallelEmbeddingDone");
 
+            NDList embedded = new NDList(embeddings.size());
+            for (int i=0;i<embeddings.size();i++){
+                embedded.add(embeddings.get(i).forward(parameterStore, new NDList(inputs.get(i)), training, params).singletonOrThrow());
+            }
+
+            if (embeddings.size() == 2 && axis >= 0) {
+                return new NDList(interleavePair(embedded.get(0), embedded.get(1)));
+            }
+
             Shape[] inputShapes = new Shape[inputs.size()];
             for (int i=0;i<inputShapes.length;i++) inputShapes[i] = inputs.get(i).getShape();
-        
-            
+
             Shape outputshape = getOutputShapes(inputShapes)[0];
             NDArray firstInput = inputs.head();
             NDArray output = firstInput.getManager().create(outputshape, firstInput.getDataType());
 
             for (int i=0;i<embeddings.size();i++){
-                String index = startOfIndex + i + endOfIndex;
-                //System.out.println("" + i + " "+ index);
-                //System.out.println(outputshape);
-                //System.out.println(embeddings.get(i).forward(parameterStore, new NDList(inputs.get(i)), training, params).singletonOrThrow());
-                //System.out.println(output);
-                output.set(new NDIndex(index), 
-                    embeddings.get(i).forward(parameterStore, new NDList(inputs.get(i)), training, params).singletonOrThrow());
+                output.set(forwardIndices[i], embedded.get(i));
             }
 
             return new NDList(output);            
     }
 
+    /* Fast path for the two embedding (state/action) case
+     * Interleaves (B, F0, E) and (B, F1, E) into (B, F0+F1, E) with a single stack and reshape
+     * when F0 == F1, splitting off the trailing token of the first input when F0 == F1+1
+     * Any other combination of lengths falls back to the strided set
+     */
+    private NDArray interleavePair(NDArray first, NDArray second) {
+        long f0 = first.getShape().get(axis);
+        long f1 = second.getShape().get(axis);
+        if (f1 == 0 && f0 <= 1) return first;
+        if (f0 == f1) return stackAlongAxis(first, second);
+        if (f0 == f1 + 1) {
+            NDList split = first.split(new long[] {f1}, axis);
+            NDArray interleaved = stackAlongAxis(split.get(0), second);
+            return interleaved.concat(split.get(1), axis);
+        }
+        Shape outputshape = Shape.update(first.getShape(), axis, f0 + f1);
+        NDArray output = first.getManager().create(outputshape, first.getDataType());
+        output.set(forwardIndices[0], first);
+        output.set(forwardIndices[1], second);
+        return output;
+    }
+
+    /* (B, F, E), (B, F, E) -stack> (B, F, 2, E) -reshape> (B, 2F, E) */
+    private NDArray stackAlongAxis(NDArray first, NDArray second) {
+        Shape shape = first.getShape();
+        NDArray stacked = first.stack(second, axis + 1);
+        return stacked.reshape(Shape.update(shape, axis, 2 * shape.get(axis)));
+    }
+
+    /* Inverse of stackAlongAxis
+     * (B, 2F, E) -reshape> (B, F, 2, E) -split> (B, F, E), (B, F, E)
+     */
+    private NDList unstackAlongAxis(NDArray input) {
+        Shape shape = input.getShape();
+        long f = shape.get(axis) / 2;
+        Shape pairs = shape.slice(0, axis).add(f, 2).addAll(shape.slice(axis + 1));
+        NDList split = input.reshape(pairs).split(2, axis + 1);
+        return new NDList(split.get(0).squeeze(axis + 1), split.get(1).squeeze(axis + 1));
+    }
+
+    /* Fast path for reversing the two embedding case
+     * Returns {positions 0::2, positions 1::2} of the input along the axis
+     */
+    private NDList deinterleavePair(NDArray input) {
+        long f = input.getShape().get(axis);
+        if (f % 2 == 0) return unstackAlongAxis(input);
+        NDList split = input.split(new long[] {f - 1}, axis);
+        NDList pair = unstackAlongAxis(split.get(0));
+        return new NDList(pair.get(0).concat(split.get(1), axis), pair.get(1));
+    }
+
 
 
     /** {@inheritDoc} */
@@ -134,14 +191,23 @@ public class ParallelEmbedding extends AbstractBlock implements Embedding{
              * (B, F1, E), (B, F2, E) ...   -unembed> (outputShapes of embeddings)
              * (B, F1, D1), (B, F2, D2) ...  (inputShapes)
             */
+            NDArray full = inputs.singletonOrThrow();
             NDList outputs = new NDList();
+            if (embeddings.size() == 2 && axis >= 0 && full.getShape().get(axis) >= 2) {
+                NDList pair = deinterleavePair(full);
+                for (int i=0; i<2; i++) {
+                    outputs.add(embeddings.get(i).reverse(ps, new NDList(pair.get((i+1)%2)),
+                                                                training,
+                                                                params).singletonOrThrow());
+                }
+                return outputs;
+            }
+
             for (int i=0; i<embeddings.size();i++){
-                NDArray input = inputs.singletonOrThrow()
-                .get(new NDIndex(startOfIndex + ((i+1)%embeddings.size()) + endOfIndex));
+                NDArray input = full.get(reverseIndices[i]);
                 if (input.size()==0) {
                     NDManager manager = input.getManager();
-                    Shape shape = inputs.singletonOrThrow().getShape();
-                    shape = Shape.update(shape, axis, 0);
+                    Shape shape = Shape.update(full.getShape(), axis, 0);
                     input = manager.create(new float[]{}, shape);
                 }
 
@@ -154,14 +220,29 @@ public class ParallelEmbedding extends AbstractBlock implements Embedding{
             
     }
 
+    /** {@inheritDoc} */
+    @Override
+    public void invalidateReverse() {
+        for (Embedding e : embeddings) e.invalidateReverse();
+    }
+
+    /* Precompiles the strided indices used by the general path
+     * forwardIndices[i] = ":, ... , i::n"
+     * reverseIndices[i] = ":, ... , (i+1)%n::n"
+     */
     private void setStartEndIndices(Shape outputshape){
         String startOfIndex = "";// ":, ... ,"
         for (int i=0;i<axis;i++) startOfIndex += ":,";
         String endOfIndex = "::" + embeddings.size();// "i::n"
         this.startOfIndex = startOfIndex;
         this.endOfIndex = endOfIndex;
-        //System.out.println("Start " + startOfIndex);
-        //System.out.println("End " + endOfIndex);
+        int n = embeddings.size();
+        forwardIndices = new NDIndex[n];
+        reverseIndices = new NDIndex[n];
+        for (int i=0;i<n;i++) {
+            forwardIndices[i] = new NDIndex(startOfIndex + i + endOfIndex);
+            reverseIndices[i] = new NDIndex(startOfIndex + ((i+1)%n) + endOfIndex);
+        }
     }
 
     /** {@inheritDoc} */
@@ -0,0 +1,385 @@
+package poker;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDArrays;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.ndarray.types.Shape;
+import ai.djl.nn.Block;
+import ai.djl.nn.Parameter;
+import ai.djl.nn.core.Linear;
+import ai.djl.nn.norm.LayerNorm;
+import ai.djl.nn.transformer.ScaledDotProductAttentionBlock;
+import ai.djl.training.ParameterStore;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/* Inference for a whole population of transformers that share one architecture
+ *
+ * The weights of P individuals cloned from the same skeleton (see ClonedParameterStore) are
+ * stacked into (P, ...) arrays, and one call runs every individual on its own game:
+ * the embedding, attention, feed-forward and unembedding matmuls are batched matmuls over P.
+ *
+ * Mirrors the forward pass of transformer/transformer:
+ *   ParallelEmbedding + PositionalEncoding -> n x TransformerDecoderBlock -> UnembedBlock
+ * Sequences of different lengths are left-padded to the longest one and the padded keys are
+ * masked, so the last token of every individual is at the same position.
+ *
+ * How shapes change:
+ * P = population size, F = padded sequence length, Di = token sizes, E = d_model, N = heads
+ * (P, F, D0), (P, F, D1)  -embed>  (P, F, E)  -layers>  (P, F, E)  -last tokens, unembed>  (P, Di)
+ */
+public class PopulationTransformer implements AutoCloseable {
+
+    /* Default epsilon of LayerNorm.builder(), used by TransformerDecoderBlock */
+    private static final float LAYER_NORM_EPSILON = 1e-5f;
+    /* Offset added to the attention scores of masked and padded keys, as in SparseAttentionBlock */
+    private static final float PADDING_OFFSET = -100000f;
+
+    private final NDManager manager;
+    private final ParameterStore skeletonStore;
+    private final List<Embedding> embeddings;
+    private final PositionalEncoding positionalEncoding;
+    private final List<TransformerDecoderBlock> layers;
+    private final int headCount;
+    private final int populationSize;
+    /* Stacked parameters: weights (P, out, in), vectors (P, 1, size) to broadcast over F */
+    private final Map<Parameter, NDArray> stacked = new IdentityHashMap<>();
+    /* Contiguous (P, in, out) transposes of the stacked weights that are used as right operands */
+    private final Map<Parameter, NDArray> transposed = new IdentityHashMap<>();
+
+    /* Stacks the parameters of each store for the blocks of a skeleton
+     * manager: owns the stacked weights, closed by close()
+     * embedding, positionalEncoding, layers: the components of the skeleton
+     * headCount: number of attention heads of each layer
+     * stores: the parameter stores of the individuals, in population order
+     */
+    public PopulationTransformer(
+            NDManager manager,
+            ParallelEmbedding embedding,
+            PositionalEncoding positionalEncoding,
+            List<TransformerDecoderBlock> layers,
+            int headCount,
+            List<ClonedParameterStore> stores) {
+        if (embedding.getEmbeddings().size() != 2) {
+            throw new IllegalArgumentException(
+                    "Only state/action embeddings are supported. Embeddings: " + embedding.getEmbeddings().size());
+        }
+        this.manager = manager;
+        this.skeletonStore = new ParameterStore(manager, false);
+        this.embeddings = embedding.getEmbeddings();
+        this.positionalEncoding = positionalEncoding;
+        this.layers = layers;
+        this.headCount = headCount;
+        this.populationSize = stores.size();
+
+        for (Embedding e : embeddings) stack(weightOf(e), stores);
+        for (TransformerDecoderBlock layer : layers) {
+            for (Linear projection : projections(layer.getSelfAttentionBlock())) stackLinear(projection, stores);
+            stack(layer.getAttentionNorm().getParameters().get("gamma"), stores);
+            stack(layer.getAttentionNorm().getParameters().get("beta"), stores);
+            for (Block child : layer.getPointwiseFeedForwardBlock().getChildren().values()) {
+                if (child instanceof Linear) stackLinear((Linear) child, stores);
+            }
+            stack(layer.getOutputNorm().getParameters().get("gamma"), stores);
+            stack(layer.getOutputNorm().getParameters().get("beta"), stores);
+        }
+    }
+
+    public int getPopulationSize() {return populationSize;}
+
+    /* Runs every individual on its own inputs
+     * inputs.get(i): the unbatched inputs of individual i as given to as-agent
+     *   state (Fs, D0), actions (Fa, D1), positions (F, k), mask (1, F, F), with Fs = Fa or Fa + 1
+     *   or null if individual i has no decision to make
+     * Returns, for each individual, the last token of each output of the UnembedBlock
+     * (as TransformerTranslator.lastTokens), or null for null inputs
+     */
+    public List<List<float[]>> forward(List<NDList> inputs) {
+        if (inputs.size() != populationSize) {
+            throw new IllegalArgumentException(
+                    "Expected inputs for " + populationSize + " individuals, got " + inputs.size());
+        }
+        try (NDManager scope = manager.newSubManager()) {
+            Batch batch = new Batch(scope, inputs);
+            NDArray x = embed(batch);
+            for (TransformerDecoderBlock layer : layers) {
+                NDArray next = decoderLayer(layer, x, batch.maskOffsets);
+                x.close();
+                x = next;
+            }
+            return unembedLastTokens(batch, x);
+        }
+    }
+
+    /* Host side padding of the individual inputs into batched arrays */
+    private final class Batch {
+        final int P = populationSize;
+        final int F;
+        final int[] lengths;
+        final NDArray states;
+        final NDArray actions;
+        final NDArray positions;
+        final NDArray maskOffsets;
+
+        Batch(NDManager scope, List<NDList> inputs) {
+            lengths = new int[P];
+            int maxLength = 1;
+            long stateSize = weightOf(embeddings.get(0)).getArray().getShape().get(1);
+            long actionSize = weightOf(embeddings.get(1)).getArray().getShape().get(1);
+            int numPositions = positionalEncoding.getNumEncodings();
+            DataType positionType = DataType.INT32;
+            for (int i=0;i<P;i++) {
+                NDList in = inputs.get(i);
+                if (in == null) continue;
+                lengths[i] = Math.toIntExact(in.get(0).getShape().get(0) + in.get(1).getShape().get(0));
+                maxLength = Math.max(maxLength, lengths[i]);
+                positionType = in.get(2).getDataType();
+            }
+            F = maxLength;
+            float[] s = new float[Math.toIntExact(P * F * stateSize)];
+            float[] a = new float[Math.toIntExact(P * F * actionSize)];
+            float[] pos = new float[P * F * numPositions];
+            float[] mask = new float[P * F * F];
+            for (int i=0;i<P;i++) {
+                NDList in = inputs.get(i);
+                int pad = F - lengths[i];
+                for (int r=0;r<F;r++) {
+                    for (int c=0;c<pad;c++) mask[(i*F + r)*F + c] = PADDING_OFFSET;
+                }
+                if (in == null) continue;
+                // state j is token 2j and action j is token 2j + 1, as interleaved by ParallelEmbedding
+                copyTokens(in.get(0).toType(DataType.FLOAT32, false).toFloatArray(), s, i, pad, 0, stateSize);
+                copyTokens(in.get(1).toType(DataType.FLOAT32, false).toFloatArray(), a, i, pad, 1, actionSize);
+                float[] p = in.get(2).toType(DataType.FLOAT32, false).toFloatArray();
+                for (int t=0;t<lengths[i];t++) {
+                    for (int k=0;k<numPositions;k++) {
+                        pos[((i*F) + pad + t)*numPositions + k] = p[t*(p.length/lengths[i]) + k];
+                    }
+                }
+                // the mask has a 1 for each key to keep and a 0 for each key to mask, which become
+                // offsets of 0 and PADDING_OFFSET as for the 3-D masks of SparseAttentionBlock
+                float[] m = in.get(3).toType(DataType.FLOAT32, false).toFloatArray();
+                int n = lengths[i];
+                for (int r=0;r<n;r++) {
+                    for (int c=0;c<n;c++) {
+                        mask[(i*F + pad + r)*F + pad + c] = (1 - m[r*n + c]) * PADDING_OFFSET;
+                    }
+                }
+            }
+            states = scope.create(s, new Shape(P, F, stateSize));
+            actions = scope.create(a, new Shape(P, F, actionSize));
+            try (NDArray p = scope.create(pos, new Shape(P, F, numPositions))) {
+                positions = p.toType(positionType, false);
+            }
+            maskOffsets = scope.create(mask, new Shape(P, 1, F, F));
+        }
+
+        private void copyTokens(float[] tokens, float[] target, int i, int pad, int parity, long size) {
+            int n = Math.toIntExact(tokens.length / size);
+            for (int j=0;j<n;j++) {
+                System.arraycopy(tokens, Math.toIntExact(j*size),
+                                 target, Math.toIntExact(((long) i*F + pad + 2*j + parity)*size),
+                                 Math.toIntExact(size));
+            }
+        }
+
+        /* Position in the padded sequence of the last token with the given parity, or -1 */
+        int lastToken(int i, int parity) {
+            int n = lengths[i];
+            int t = (n - 1) % 2 == parity ? n - 1 : n - 2;
+            return t < 0 ? -1 : F - n + t;
+        }
+    }
+
+    /* Interleaved token embeddings plus positional encodings: (P, F, E) */
+    private NDArray embed(Batch batch) {
+        NDArray stateEmbedding = batch.states.matMul(transposed.get(weightOf(embeddings.get(0))));
+        NDArray actionEmbedding = batch.actions.matMul(transposed.get(weightOf(embeddings.get(1))));
+        NDArray positionEncoding =
+                positionalEncoding.forward(skeletonStore, new NDList(batch.positions), false).singletonOrThrow();
+        NDArray x = stateEmbedding.add(actionEmbedding).addi(positionEncoding);
+        stateEmbedding.close();
+        actionEmbedding.close();
+        positionEncoding.close();
+        return x;
+    }
+
+    /* One TransformerDecoderBlock with dropout disabled */
+    private NDArray decoderLayer(TransformerDecoderBlock layer, NDArray x, NDArray maskOffsets) {
+        NDArray attention = attention(layer.getSelfAttentionBlock(), x, maskOffsets);
+        NDArray normalized = layerNorm(layer.getAttentionNorm(), attention.addi(x));
+        NDArray hidden = normalized;
+        for (Block child : layer.getPointwiseFeedForwardBlock().getChildren().values()) {
+            NDArray next = child instanceof Linear
+                    ? linear((Linear) child, hidden)
+                    : child.forward(skeletonStore, new NDList(hidden), false).singletonOrThrow();
+            if (hidden != normalized) hidden.close();
+            hidden = next;
+        }
+        // TransformerDecoderBlock adds the block input, not the normalized attention, as the second residual
+        NDArray output = layerNorm(layer.getOutputNorm(), hidden.addi(x));
+        attention.close();
+        normalized.close();
+        hidden.close();
+        return output;
+    }
+
+    /* Multi-head self attention of SparseAttentionBlock or ScaledDotProductAttentionBlock */
+    private NDArray attention(Block block, NDArray x, NDArray maskOffsets) {
+        Linear[] projections = projections(block);
+        long P = x.getShape().get(0);
+        long F = x.getShape().get(1);
+        long E = x.getShape().get(2);
+        long N = headCount;
+        long H = E / N;
+        NDArray keys = heads(linear(projections[0], x), P, F, N, H);
+        NDArray queries = heads(linear(projections[1], x), P, F, N, H);
+        NDArray values = heads(linear(projections[2], x), P, F, N, H);
+        NDArray scores = queries.matMul(keys.transpose(0, 1, 3, 2))
+                .muli(1f / (float) Math.sqrt(H))
+                .addi(maskOffsets);
+        NDArray probabilities = block instanceof SparseAttentionBlock
+                ? ((SparseAttentionBlock) block).getSparseMax()
+                        .forward(skeletonStore, new NDList(scores), false).singletonOrThrow()
+                : scores.softmax(3);
+        NDArray result = probabilities.matMul(values).transpose(0, 2, 1, 3).reshape(P, F, E);
+        NDArray projected = linear(projections[3], result);
+        keys.close();
+        queries.close();
+        values.close();
+        scores.close();
+        probabilities.close();
+        result.close();
+        return projected;
+    }
+
+    /* (P, F, E) -> (P, N, F, H) */
+    private static NDArray heads(NDArray projection, long P, long F, long N, long H) {
+        NDArray heads = projection.reshape(P, F, N, H).transpose(0, 2, 1, 3);
+        projection.close();
+        return heads;
+    }
+
+    /* Last tokens of each output of UnembedBlock(ParallelEmbedding)
+     * Output i is the reverse of embedding i, applied to the tokens of the other embedding
+     */
+    private List<List<float[]>> unembedLastTokens(Batch batch, NDArray x) {
+        int P = populationSize;
+        long E = x.getShape().get(2);
+        List<float[][]> outputs = new ArrayList<>();
+        try (NDArray flat = x.reshape(P * batch.F, E)) {
+            for (int i=0;i<embeddings.size();i++) {
+                int parity = (i + 1) % embeddings.size();
+                long[] rows = new long[P];
+                for (int p=0;p<P;p++) rows[p] = (long) p*batch.F + Math.max(0, batch.lastToken(p, parity));
+                try (NDArray index = x.getManager().create(rows);
+                     NDArray last = flat.get(index).reshape(P, 1, E);
+                     NDArray logits = last.matMul(stacked.get(weightOf(embeddings.get(i))))) {
+                    long D = logits.getShape().get(2);
+                    float[] values = logits.toFloatArray();
+                    float[][] perIndividual = new float[P][];
+                    for (int p=0;p<P;p++) {
+                        perIndividual[p] = batch.lastToken(p, parity) < 0
+                                ? new float[]{}
+                                : java.util.Arrays.copyOfRange(values, Math.toIntExact(p*D), Math.toIntExact((p+1)*D));
+                    }
+                    outputs.add(perIndividual);
+                }
+            }
+        }
+        List<List<float[]>> results = new ArrayList<>(P);
+        for (int p=0;p<P;p++) {
+            if (batch.lengths[p] == 0) {
+                results.add(null);
+                continue;
+            }
+            List<float[]> result = new ArrayList<>();
+            for (float[][] output : outputs) result.add(output[p]);
+            results.add(result);
+        }
+        return results;
+    }
+
+    /* Batched Linear: (P, F, in) x (P, in, out) + (P, 1, out) */
+    private NDArray linear(Linear block, NDArray input) {
+        NDArray output = input.matMul(transposed.get(block.getParameters().get("weight")));
+        Parameter bias = block.getParameters().get("bias");
+        if (bias != null) {
+            output.addi(stacked.get(bias));
+        }
+        return output;
+    }
+
+    /* Batched LayerNorm over the last axis with per individual gamma and beta */
+    private NDArray layerNorm(LayerNorm block, NDArray input) {
+        NDArray gamma = stacked.get(block.getParameters().get("gamma"));
+        NDArray beta = stacked.get(block.getParameters().get("beta"));
+        try (NDArray mean = input.mean(new int[] {-1}, true);
+             NDArray centered = input.sub(mean);
+             NDArray squared = centered.square();
+             NDArray variance = squared.mean(new int[] {-1}, true);
+             NDArray deviation = variance.add(LAYER_NORM_EPSILON).sqrt()) {
+            return centered.div(deviation).muli(gamma).addi(beta);
+        }
+    }
+
+    private static Parameter weightOf(Block block) {
+        return block.getParameters().get("weight");
+    }
+
+    private static Linear[] projections(Block attention) {
+        if (attention instanceof SparseAttentionBlock) {
+            SparseAttentionBlock block = (SparseAttentionBlock) attention;
+            return new Linear[] {block.getKeyProjection(), block.getQueryProjection(),
+                                 block.getValueProjection(), block.getResultProjection()};
+        } else if (attention instanceof ScaledDotProductAttentionBlock) {
+            ScaledDotProductAttentionBlock block = (ScaledDotProductAttentionBlock) attention;
+            return new Linear[] {block.getKeyProjection(), block.getQueryProjection(),
+                                 block.getValueProjection(), block.getResultProjection()};
+        }
+        throw new IllegalArgumentException("Unsupported attention block: " + attention.getClass().getSimpleName());
+    }
+
+    private void stackLinear(Linear block, List<ClonedParameterStore> stores) {
+        stack(weightOf(block), stores);
+        Parameter bias = block.getParameters().get("bias");
+        if (bias != null) stack(bias, stores);
+    }
+
+    private void stack(Parameter parameter, List<ClonedParameterStore> stores) {
+        if (stacked.containsKey(parameter)) return;
+        NDList arrays = new NDList(stores.size());
+        for (ClonedParameterStore store : stores) {
+            NDArray array = store.getArray(parameter);
+            arrays.add(array == null ? parameter.getArray() : array);
+        }
+        NDArray stack = NDArrays.stack(arrays, 0);
+        stack.attach(manager);
+        if (stack.getShape().dimension() == 2) {
+            // (P, size) -> (P, 1, size)
+            NDArray expanded = stack.expandDims(1);
+            stack.close();
+            stack = expanded;
+        } else {
+            try (NDArray view = stack.transpose(0, 2, 1);
+                 NDArray flat = view.flatten()) {
+                transposed.put(parameter, flat.reshape(view.getShape()));
+            }
+        }
+        stacked.put(parameter, stack);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void close() {
+        for (NDArray array : stacked.values()) array.close();
+        for (NDArray array : transposed.values()) array.close();
+        stacked.clear();
+        transposed.clear();
+    }
+}
@@ -35,6 +35,13 @@ public class PositionalEncoding extends AbstractBlock{
     /* Overall has the signature (B, F, numEncodings) -> (B, F, ΣembeddingSizes)*/
     private List<Integer> embeddingSizes;
     private List<Block> embeddings;
+    /* Fused lookup precompiled in initializeChildBlocks when every child is a SinglePositionEncoding
+     * fusedTable: (ΣNi, ΣEi) block diagonal table with the ith table at rows rowOffsets[i] and columns ΣE<i
+     * rowOffsets: (numEncodings) added to the positions so that encoding i indexes into its own rows
+     */
+    private NDArray fusedTable;
+    private NDArray rowOffsets;
+    private NDIndex encodingIndex;
 
     public PositionalEncoding(){}
 
@@ -61,6 +68,44 @@ public class PositionalEncoding extends AbstractBlock{
         for (Block child : embeddings) {
             child.initialize(manager, dataType, new Shape[] {inputShapes[0].slice(0,1)});
         }
+        fuseTables();
+    }
+
+    /* Builds the block diagonal table and row offsets used by the fused forward pass
+     * Summing the looked up rows over the encoding axis then concatenates the encodings,
+     * since each row is zero outside of the columns of its own encoding
+     */
+    private void fuseTables() {
+        for (Block child : embeddings) {
+            if (!(child instanceof SinglePositionEncoding)) return;
+        }
+        int numEncodings = embeddings.size();
+        NDArray first = ((SinglePositionEncoding) embeddings.get(0)).getTable();
+        NDManager tableManager = first.getManager();
+        long totalRows = 0;
+        long totalColumns = 0;
+        int[] offsets = new int[numEncodings];
+        for (int i=0;i<numEncodings;i++){
+            Shape shape = ((SinglePositionEncoding) embeddings.get(i)).getTable().getShape();
+            offsets[i] = Math.toIntExact(totalRows);
+            totalRows += shape.get(0);
+            totalColumns += shape.get(1);
+        }
+        NDArray table = tableManager.zeros(new Shape(totalRows, totalColumns), first.getDataType());
+        long column = 0;
+        for (int i=0;i<numEncodings;i++){
+            NDArray PETable = ((SinglePositionEncoding) embeddings.get(i)).getTable();
+            Shape shape = PETable.getShape();
+            table.set(new NDIndex("{}:{},{}:{}",
+                                  offsets[i], offsets[i] + shape.get(0),
+                                  column, column + shape.get(1)),
+                      PETable);
+            column += shape.get(1);
+        }
+        table.setRequiresGradient(false);
+        this.fusedTable = table;
+        this.rowOffsets = tableManager.create(offsets);
+        this.encodingIndex = new NDIndex("..., :{}", numEncodings);
     }
     
     /** {@inheritDoc} */
@@ -80,6 +125,26 @@ public class PositionalEncoding extends AbstractBlock{
  
         int numEncodings = this.embeddingSizes.size();
         NDArray input = inputs.singletonOrThrow();
+
+        if (fusedTable != null && !fusedTable.isReleased()) {
+            /* (B, F, n) -offset> (B, F, n) -lookup> (B, F, n, E) -sum> (B, F, E) */
+            if (input.getShape().get(input.getShape().dimension()-1) != numEncodings) {
+                input = input.get(encodingIndex);
+            }
+            /* rowOffsets is shared by every clone of the block, so a converted copy stays local */
+            boolean converted = rowOffsets.getDataType() != input.getDataType();
+            NDArray offsets = converted ? rowOffsets.toType(input.getDataType(), true) : rowOffsets;
+            NDArray rows = input.add(offsets);
+            NDArray lookup = SinglePositionEncoding.embedding(rows, fusedTable).singletonOrThrow();
+            NDArray output = lookup.sum(new int[] {-2});
+            if (converted) {
+                offsets.close();
+            }
+            rows.close();
+            lookup.close();
+            return new NDList(output);
+        }
+
         NDArray[] inputArrays = new NDArray[numEncodings];
 
         String startOfIndex = "";// ":, ... ,"
@@ -0,0 +1,157 @@
+package poker;
+
+import ai.djl.Device;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.nn.Block;
+import ai.djl.nn.Parameter;
+import ai.djl.nn.transformer.PointwiseFeedForwardBlock;
+import ai.djl.nn.transformer.ScaledDotProductAttentionBlock;
+import ai.djl.training.ParameterStore;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/* A ParameterStore holding per-channel int8 copies of an individual's weight matrices
+ *
+ * The weights of LinearEmbedding blocks, of the attention projections and of the pointwise
+ * feed forward layers are stored as int8 together with one float scale per output channel
+ * (row of the weight matrix), a quarter of the memory of the float weights. Biases, layer
+ * norms and every other parameter are served unchanged from the source store.
+ *
+ * DJL has no int8 matrix multiplication, so quantized weights are dequantized to float
+ * before use and accumulation happens in float. Dequantized weights only live for one
+ * forward pass: use forScope(manager) to obtain a store whose dequantized arrays live on,
+ * and are closed with, that manager. Agreement with the float model can be checked with
+ * transformer/quantization-agreement.
+ */
+public class QuantizedParameterStore extends ParameterStore {
+
+    private static final float INT8_MAX = 127f;
+
+    private final ParameterStore source;
+    private final Map<Parameter, NDArray> weights = new IdentityHashMap<>();
+    private final Map<Parameter, NDArray> scales = new IdentityHashMap<>();
+
+    /* Quantizes the weights of the given block as served by source onto manager
+     * source may be null, in which case the block's own parameter values are used
+     */
+    public QuantizedParameterStore(NDManager manager, Block block, ParameterStore source) {
+        super(manager, false);
+        this.source = source;
+        for (Parameter parameter : quantizableParameters(block)) {
+            NDArray value = sourceValue(parameter);
+            if (value == null || value.getShape().dimension() != 2) {
+                continue;
+            }
+            try (NDManager scope = manager.newSubManager()) {
+                NDArray w = value.toType(DataType.FLOAT32, true);
+                w.attach(scope);
+                NDArray scale = w.abs().max(new int[] {1}, true).div(INT8_MAX);
+                // all-zero rows would otherwise divide by zero
+                scale = scale.add(scale.eq(0).toType(DataType.FLOAT32, false));
+                NDArray q = w.div(scale).round().toType(DataType.INT8, false);
+                q.attach(manager);
+                scale.attach(manager);
+                weights.put(parameter, q);
+                scales.put(parameter, scale);
+            }
+        }
+    }
+
+    /* The parameters whose weights are quantized: the direct weights of LinearEmbedding blocks
+     * and every weight in the subtree of an attention or pointwise feed forward block
+     */
+    public static List<Parameter> quantizableParameters(Block block) {
+        List<Parameter> parameters = new ArrayList<>();
+        collect(block, false, parameters);
+        return parameters;
+    }
+
+    private static void collect(Block block, boolean quantizable, List<Parameter> parameters) {
+        boolean subtree = block instanceof SparseAttentionBlock
+                || block instanceof ScaledDotProductAttentionBlock
+                || block instanceof PointwiseFeedForwardBlock;
+        if (quantizable || subtree || block instanceof LinearEmbedding) {
+            for (Parameter parameter : block.getDirectParameters().values()) {
+                if (parameter.getType() == Parameter.Type.WEIGHT) {
+                    parameters.add(parameter);
+                }
+            }
+        }
+        for (Block child : block.getChildren().values()) {
+            collect(child, quantizable || subtree, parameters);
+        }
+    }
+
+    private NDArray sourceValue(Parameter parameter) {
+        if (source instanceof ClonedParameterStore) {
+            NDArray value = ((ClonedParameterStore) source).getArray(parameter);
+            return value == null ? parameter.getArray() : value;
+        }
+        return parameter.getArray();
+    }
+
+    /* Whether the given parameter is stored as int8 */
+    public boolean isQuantized(Parameter parameter) {
+        return weights.containsKey(parameter);
+    }
+
+    /* The quantized parameters */
+    public List<Parameter> getQuantizedParameters() {
+        return new ArrayList<>(weights.keySet());
+    }
+
+    /* Dequantizes the weights of the given parameter onto manager */
+    public NDArray dequantize(Parameter parameter, NDManager manager) {
+        NDArray q = weights.get(parameter);
+        if (q == null) {
+            return null;
+        }
+        NDArray w = q.toType(DataType.FLOAT32, true).muli(scales.get(parameter));
+        w.attach(manager);
+        w.setRequiresGradient(false);
+        return w;
+    }
+
+    /* A store for one forward pass: each quantized weight is dequantized once onto manager
+     * on first use, and closed together with manager
+     */
+    public ParameterStore forScope(NDManager manager) {
+        QuantizedParameterStore outer = this;
+        return new ParameterStore(manager, false) {
+            private final Map<Parameter, NDArray> dequantized = new IdentityHashMap<>();
+
+            @Override
+            public NDArray getValue(Parameter parameter, Device device, boolean training) {
+                if (!outer.isQuantized(parameter)) {
+                    return outer.getValue(parameter, device, training);
+                }
+                synchronized (dequantized) {
+                    return dequantized.computeIfAbsent(parameter, p -> outer.dequantize(p, manager));
+                }
+            }
+        };
+    }
+
+    /** {@inheritDoc}
+     * Quantized weights are only served by the stores of forScope, which own their dequantized copies
+     */
+    @Override
+    public NDArray getValue(Parameter parameter, Device device, boolean training) {
+        if (parameter == null) {
+            return null;
+        }
+        if (weights.containsKey(parameter)) {
+            throw new IllegalStateException(
+                    "Quantized weights are dequantized per forward pass. Use forScope: " + parameter.getName());
+        }
+        if (source != null) {
+            return source.getValue(parameter, device, training);
+        }
+        return parameter.getArray();
+    }
+}
@@ -0,0 +1,65 @@
+package poker;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/* Size-bounded cache of matchup results
+ *
+ * Keys are Clojure values describing everything that determines a matchup (see
+ * ERL/matchup-key), and so compare by value. Once the cache holds capacity entries, adding
+ * an entry evicts the least recently used one.
+ *
+ * All methods are synchronized, so that a single cache can be shared by every thread of a
+ * process.
+ */
+public class ResultCache {
+
+    private final int capacity;
+    private final LinkedHashMap<Object, Object> entries;
+    private long hits;
+    private long misses;
+
+    public ResultCache(int capacity) {
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<Object, Object>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object, Object> eldest) {
+                return size() > ResultCache.this.capacity;
+            }
+        };
+    }
+
+    public int capacity() {return capacity;}
+
+    /* The cached result for key, or null */
+    public synchronized Object get(Object key) {
+        Object value = entries.get(key);
+        if (value == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return value;
+    }
+
+    public synchronized void put(Object key, Object value) {
+        entries.put(key, value);
+    }
+
+    public synchronized int size() {return entries.size();}
+
+    public synchronized long hits() {return hits;}
+
+    public synchronized long misses() {return misses;}
+
+    /* The cached entries as [key value] pairs, least recently used first */
+    public synchronized List<Object[]> entries() {
+        List<Object[]> list = new ArrayList<>(entries.size());
+        for (Map.Entry<Object, Object> entry : entries.entrySet()) {
+            list.add(new Object[] {entry.getKey(), entry.getValue()});
+        }
+        return list;
+    }
+}
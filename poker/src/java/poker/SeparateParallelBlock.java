@@ -51,8 +51,22 @@ public class SeparateParallelBlock extends AbstractBlock {
     private static final byte VERSION = 2;
 
     private Function<List<NDList>, NDList> function;
+    private Function<List<Shape[]>, Shape[]> shapeFunction;
     private List<Integer> numInputs;
 
+    /**
+     * Sets a shape-only counterpart of the combining function, used by {@link #getOutputShapes}
+     * so that shape inference does not allocate dummy NDArrays. It must map the output shapes of
+     * each branch to the shapes that the combining function would produce.
+     *
+     * @param shapeFunction the function from the output shapes of each branch to the output shapes
+     * @return this block
+     */
+    public SeparateParallelBlock setShapeFunction(Function<List<Shape[]>, Shape[]> shapeFunction){
+        this.shapeFunction = shapeFunction;
+        return this;
+    }
+
     public SeparateParallelBlock setNumInputs(List<Integer> inputs){
         this.numInputs = inputs;
         return this;
@@ -226,16 +240,25 @@ public class SeparateParallelBlock extends AbstractBlock {
     public Shape[] getOutputShapes(Shape[] inputShapes) {
         Preconditions.checkArgument(!children.isEmpty(), "The parallel block is empty");
 
+        List<Shape[]> childShapes = new ArrayList<Shape[]>();
+        int j=0;
+        for (int i=0;i<children.size();i++){
+            Shape[] input = new Shape[(int) numInputs.get(i)];
+            for (int k=0;k<numInputs.get(i);k++){
+                input[k] = inputShapes[k+j];
+            }
+            j+=numInputs.get(i);
+            childShapes.add(children.values().get(i).getOutputShapes(input));
+        }
+
+        if (shapeFunction != null) {
+            return shapeFunction.apply(childShapes);
+        }
+
+        // Fallback: apply the combining function to dummy arrays of the branch output shapes
         try (NDManager manager = NDManager.newBaseManager()) {
             List<NDList> inputs = new ArrayList<NDList>();
-            int j=0;
-            for (int i=0;i<children.size();i++){
-                Shape[] input = new Shape[(int) numInputs.get(i)];
-                for (int k=0;k<numInputs.get(i);k++){
-                    input[k] = inputShapes[k+j];
-                }
-                j+=numInputs.get(i);
-                Shape[] shapes = children.values().get(i).getOutputShapes(input);
+            for (Shape[] shapes : childShapes) {
                 NDList output = new NDList(shapes.length);
                 for (Shape shape : shapes) {
                     output.add(manager.create(shape));
@@ -35,6 +35,9 @@ public class SinglePositionEncoding extends AbstractBlock{
         freezeParameters(true);
     }
 
+    /* The (numEmbeddings, embeddingSize) table of position encodings */
+    public NDArray getTable(){return this.PETable;}
+
     /** {@inheritDoc} */
     @Override
     protected NDList forwardInternal(ParameterStore parameterStore,
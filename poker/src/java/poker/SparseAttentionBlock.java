@@ -150,6 +150,24 @@ public final class SparseAttentionBlock extends AbstractBlock {
         return resultProjection;
     }
 
+    /**
+     * Number of attention heads.
+     *
+     * @return Number of attention heads.
+     */
+    public int getHeadCount() {
+        return headCount;
+    }
+
+    /**
+     * The sparse softmax applied to the attention scores.
+     *
+     * @return The sparse softmax applied to the attention scores.
+     */
+    public Block getSparseMax() {
+        return sparseMax;
+    }
+
     /** {@inheritDoc} */
     @Override
     public Shape[] getOutputShapes(Shape[] inputShapes) {
@@ -255,7 +273,7 @@ public final class SparseAttentionBlock extends AbstractBlock {
         // Normalize the scores with 1/sqrt(H)
         NDArray normalizedAttentionScores =
                 attentionScores.mul(attentionScores.getManager().create(1f / (float) Math.sqrt(H)));
-        // Apply masking if requested, mask has shape (B, T, F)
+        // Apply masking if requested, mask has shape (B, T, F) or (1, T, F)
         if (attentionMask != null) {
             NDArray maskOffset;
 
@@ -265,8 +283,9 @@ public final class SparseAttentionBlock extends AbstractBlock {
             // can be done once and reused - hence we check for the number of dimensions if we
             // have to do this locally or whether it was done for us.
             if (attentionMask.getShape().dimension() != 4) {
-                // expand mask to be used on all heads at once
-                NDArray expandedMask = attentionMask.reshape(B, 1, T, F);
+                // expand mask to be used on all heads at once. A mask with a batch size of 1
+                // is broadcast over the whole batch
+                NDArray expandedMask = attentionMask.reshape(-1, 1, T, F);
                 // we turn the mask from ints into floats and turn all 1s into 0s and all
                 // 0s int o a value of -10000. Adding this to the scores will push all unwanted
                 // values towards -inf and keep the unmasked values unchanged
@@ -93,7 +93,8 @@ public class SparseMax extends AbstractBlock {
         int lastDimSize = (int) input.size(input.getShape().dimension() - 1);
 
         // maskTopK should be: the topK in input is 0 and other is -10000
-        topK = Math.min(topK, lastDimSize);
+        // kept local so that a short sequence does not shrink topK for later calls
+        int topK = Math.min(this.topK, lastDimSize);
 
         NDArray maskTopK;
         NDArray[] topKIndices = IntStream.range(0, topK)
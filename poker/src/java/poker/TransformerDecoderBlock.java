@@ -110,6 +110,18 @@ public class TransformerDecoderBlock extends AbstractBlock {
                 this(embeddingSize, headCount, hiddenSize, dropoutProbability, false, 3, activationFunction);
             }
 
+    /** The self attention block, either a SparseAttentionBlock or a ScaledDotProductAttentionBlock */
+    public Block getSelfAttentionBlock() {return selfAttentionBlock;}
+
+    /** Normalization after the attention residual */
+    public LayerNorm getAttentionNorm() {return attentionNorm;}
+
+    /** Pointwise feed forward network after the attention normalization */
+    public PointwiseFeedForwardBlock getPointwiseFeedForwardBlock() {return pointWisefullyConnected;}
+
+    /** Normalization after the feed forward residual */
+    public LayerNorm getOutputNorm() {return outputNorm;}
+
     /** {@inheritDoc} */
     @Override
     public Shape[] getOutputShapes(Shape[] inputShapes) {
@@ -125,6 +137,23 @@ public class TransformerDecoderBlock extends AbstractBlock {
         outputNorm.initialize(manager, dataType, new Shape[]{inputShapes[0]});
     }
 
+    /* ScaledDotProductAttentionBlock reshapes a 3-D mask to the batch size of the embedding,
+     * so a (1, F, F) mask shared by the whole batch is broadcast to (B, F, F) first.
+     * 4-D masks are additive offsets and broadcast by themselves
+     */
+    private NDList broadcastMask(NDList inputs) {
+        if (inputs.size() < 2 || selfAttentionBlock instanceof SparseAttentionBlock) {
+            return inputs;
+        }
+        NDArray mask = inputs.get(1);
+        Shape shape = mask.getShape();
+        long batchSize = inputs.head().getShape().get(0);
+        if (shape.dimension() != 3 || shape.get(0) == batchSize) {
+            return inputs;
+        }
+        return new NDList(inputs.head(), mask.broadcast(new Shape(batchSize, shape.get(1), shape.get(2))));
+    }
+
     //Still need to include possible attention on encoder output
     /** {@inheritDoc} */
     @Override
@@ -132,47 +161,37 @@ public class TransformerDecoderBlock extends AbstractBlock {
             ParameterStore ps, NDList inputs, boolean training, PairList<String, Object> params) {
 
         NDArray embedding = inputs.head();
-        // perform attention lookup
-        Shape shape = embedding.getShape();
-        
-        NDList attentionOutput = selfAttentionBlock.forward(ps, inputs, training);
-        // add dropout to attention Output
-        NDList attentionOutputAfterDropout =
-                selfAttentionDropout.forward(ps, attentionOutput, training);
-        // add input as residual
-        NDArray withResidual = attentionOutputAfterDropout.singletonOrThrow().add(embedding);
-        // apply normalization
-        NDList normalized = attentionNorm.forward(ps, new NDList(withResidual), training);
-        // apply pointwise projection
-        NDList afterFullyConnected = pointWisefullyConnected.forward(ps, normalized, training);
-        // apply dropout to fully connected output
-        NDList afterFullyConnectedDropout =
-                fullyConnectedDropout.forward(ps, afterFullyConnected, training);
-        // add residual again
-        NDList outputWithResidual =
-                new NDList(afterFullyConnectedDropout.singletonOrThrow().add(embedding));
-        // normalize result
-        NDList outputWithNorm = outputNorm.forward(ps, new NDList(outputWithResidual), training);
-
-        attentionOutput.close();
-        attentionOutputAfterDropout.close();
-        withResidual.close();
-        normalized.close();
-        afterFullyConnected.close();
-        afterFullyConnectedDropout.close();
-        outputWithResidual.close();
-        attentionOutput.close();
-
-        attentionOutput.detach();
-        attentionOutputAfterDropout.detach();
-        withResidual.detach();
-        normalized.detach();
-        afterFullyConnected.detach();
-        afterFullyConnectedDropout.detach();
-        outputWithResidual.detach();
-
-        // add mask back to result
-        outputWithNorm.add(inputs.get(1));
-        return outputWithNorm;
+        NDManager parent = embedding.getManager();
+        // Every intermediate is allocated in this scope and freed in bulk on return.
+        // Only the normalized output is handed back to the caller's manager.
+        // Buffers are not recycled between calls: DJL allocates the result of every op itself,
+        // so the scope bounds the native memory of a layer rather than reusing it
+        try (NDManager scope = parent.newSubManager()) {
+            scope.tempAttachAll(inputs);
+            // perform attention lookup
+            NDList attentionOutput = selfAttentionBlock.forward(ps, broadcastMask(inputs), training);
+            // add dropout to attention Output
+            NDList attentionOutputAfterDropout =
+                    selfAttentionDropout.forward(ps, attentionOutput, training);
+            // add input as residual
+            NDArray withResidual = attentionOutputAfterDropout.singletonOrThrow().add(embedding);
+            // apply normalization
+            NDList normalized = attentionNorm.forward(ps, new NDList(withResidual), training);
+            // apply pointwise projection
+            NDList afterFullyConnected = pointWisefullyConnected.forward(ps, normalized, training);
+            // apply dropout to fully connected output
+            NDList afterFullyConnectedDropout =
+                    fullyConnectedDropout.forward(ps, afterFullyConnected, training);
+            // add residual again
+            NDList outputWithResidual =
+                    new NDList(afterFullyConnectedDropout.singletonOrThrow().add(embedding));
+            // normalize result
+            NDList outputWithNorm = outputNorm.forward(ps, outputWithResidual, training);
+            outputWithNorm.attach(parent);
+
+            // add mask back to result
+            outputWithNorm.add(inputs.get(1));
+            return outputWithNorm;
+        }
     }
 }
\ No newline at end of file
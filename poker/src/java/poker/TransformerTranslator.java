@@ -2,6 +2,7 @@ package poker;
 import ai.djl.ndarray.*;
 import ai.djl.ndarray.index.NDIndex;
 import ai.djl.translate.*;
+import ai.djl.ndarray.types.DataType;
 import ai.djl.ndarray.types.Shape;
 
 import java.util.ArrayList;
@@ -9,9 +10,16 @@ import java.util.List;
 import java.lang.Number;
 /* A translator to convert between Lists (IPersistentVectors) of float arrays and NDLists
  * for neural net inference
+ *
+ * Inputs are [state actions positions mask] without a batch dimension. The 0/1 mask is turned into
+ * additive offsets before batching, since the batch dimension makes it 4-D and attention blocks
+ * add 4-D masks to their scores as they are (see maskOffsets)
 */
 
 public class TransformerTranslator implements Translator<List<NDArray>, List<float[]>> {
+    private static final NDIndex LAST_TOKEN = new NDIndex("...,-1,:");
+    /* Offset added to the attention scores of masked keys, as in SparseAttentionBlock */
+    private static final float MASK_OFFSET = -100000f;
     private NDManager externalManager;
 
     public TransformerTranslator(NDManager manager){this.externalManager = manager;}
@@ -22,20 +30,37 @@ public class TransformerTranslator implements Translator<List<NDArray>, List<flo
         NDList inputs = new NDList();
         manager.attachAll(input.toArray(new NDArray[]{}));
         inputs.addAll(input);
+        if (inputs.size() == 4) {
+            inputs.set(3, maskOffsets(inputs.get(3)));
+        }
         return inputs;
     }
 
+    /* A 0/1 attention mask as additive offsets of the same shape:
+     * 0 for keys to keep and -100000 for keys to mask
+     */
+    public static NDArray maskOffsets(NDArray mask){
+        return mask.toType(DataType.FLOAT32, false).neg().addi(1).muli(MASK_OFFSET);
+    }
+
     @Override 
     public List<float[]> processOutput(TranslatorContext ctx, NDList output){
-        List<float[]> outList = new ArrayList<float[]>();
         try(NDManager submanager = ctx.getNDManager().newSubManager()){
             submanager.attachAll(output);
-            for (int i=0;i<output.size();i++){
-                if ((int) output.get(i).size()==0){
-                    outList.add(new float[]{});
-                } else {
-                    outList.add(output.get(i).get(new NDIndex("...,-1,:")).toFloatArray());
-                }
+            return lastTokens(output);
+        }
+    }
+
+    /* Returns the last token of each output, or an empty array for empty outputs
+     * Shared with callers that forward through a block directly instead of through a Predictor
+     */
+    public static List<float[]> lastTokens(NDList output){
+        List<float[]> outList = new ArrayList<float[]>();
+        for (int i=0;i<output.size();i++){
+            if ((int) output.get(i).size()==0){
+                outList.add(new float[]{});
+            } else {
+                outList.add(output.get(i).get(LAST_TOKEN).toFloatArray());
             }
         }
         return outList;
@@ -0,0 +1,170 @@
+package poker;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+
+/* Socket transport between a master process and its worker processes
+ *
+ * A pure-JVM replacement for the part of MPI used by the master-slave loop (see MPI/dispatch! and
+ * MPI/slave). The master, rank 0, listens on a port and waits for the size - 1 workers to connect
+ * and introduce themselves by rank. Workers only ever talk to the master, so the connections
+ * form a star.
+ *
+ * As with MPI, messages are addressed by the rank of their source or destination and an integer
+ * tag, and are delivered in order for each source and tag. isend() encodes the message as plain
+ * data with Codec and writes it on the calling thread. irecv() returns a future that completes with the
+ * next message from the source with the tag, and can be cancelled like an MPI request. A reader
+ * thread per connection decodes incoming messages and delivers them to the Mailbox.
+ *
+ * A message is framed as its length, its tag, and its encoding.
+ *
+ * Workers are not authenticated beyond their rank, so the master only listens on the address
+ * it is given, and messages are decoded as plain data (see Codec.decodeData), so that a peer
+ * cannot make the receiver deserialize objects or evaluate code.
+ */
+public class Transport implements AutoCloseable {
+
+    private final int rank;
+    private final int size;
+    private final ServerSocketChannel server;
+    private final SocketChannel[] channels;
+    private final Mailbox mailbox = new Mailbox();
+    private volatile boolean closed;
+
+    private Transport(int rank, int size, ServerSocketChannel server, SocketChannel[] channels) {
+        this.rank = rank;
+        this.size = size;
+        this.server = server;
+        this.channels = channels;
+        for (int source = 0; source < size; source++) {
+            if (channels[source] != null) {
+                int s = source;
+                Thread reader = new Thread(() -> readLoop(s), "transport-reader-" + s);
+                reader.setDaemon(true);
+                reader.start();
+            }
+        }
+    }
+
+    /* The master end of the transport: listens on host:port until all size - 1 workers have connected */
+    public static Transport master(String host, int port, int size) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(host, port));
+        SocketChannel[] channels = new SocketChannel[size];
+        for (int connected = 1; connected < size; connected++) {
+            SocketChannel channel = server.accept();
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            ByteBuffer hello = ByteBuffer.allocate(4);
+            readFully(channel, hello);
+            int worker = hello.getInt(0);
+            if (worker <= 0 || worker >= size || channels[worker] != null) {
+                channel.close();
+                throw new IOException("Unexpected worker rank " + worker);
+            }
+            channels[worker] = channel;
+        }
+        return new Transport(0, size, server, channels);
+    }
+
+    /* The worker end of the transport: connects to the master at host:port, retrying for up to
+     * timeoutMs while the master is starting up
+     */
+    public static Transport worker(String host, int port, int rank, int size, long timeoutMs) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (true) {
+            try {
+                SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                ByteBuffer hello = ByteBuffer.allocate(4).putInt(0, rank);
+                while (hello.hasRemaining()) {
+                    channel.write(hello);
+                }
+                SocketChannel[] channels = new SocketChannel[size];
+                channels[0] = channel;
+                return new Transport(rank, size, null, channels);
+            } catch (ConnectException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    public int rank() {return rank;}
+
+    public int size() {return size;}
+
+    /* Sends message to dest with tag. The returned future is already complete */
+    public CompletableFuture<Object> isend(int dest, int tag, Object message) throws IOException {
+        byte[] payload = Codec.encodeData(message);
+        ByteBuffer frame = ByteBuffer.allocate(8 + payload.length);
+        frame.putInt(payload.length).putInt(tag).put(payload).flip();
+        SocketChannel channel = channels[dest];
+        if (channel == null) {
+            throw new IOException("No connection from rank " + rank + " to rank " + dest);
+        }
+        synchronized (channel) {
+            while (frame.hasRemaining()) {
+                channel.write(frame);
+            }
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /* A future of the next message from source with tag */
+    public CompletableFuture<Object> irecv(int source, int tag) {
+        return mailbox.expect(source, tag);
+    }
+
+    private void readLoop(int source) {
+        SocketChannel channel = channels[source];
+        ByteBuffer header = ByteBuffer.allocate(8);
+        try {
+            while (true) {
+                header.clear();
+                readFully(channel, header);
+                int length = header.getInt(0);
+                int tag = header.getInt(4);
+                if (length < 0) {
+                    throw new IOException("Invalid message length " + length + " from rank " + source);
+                }
+                ByteBuffer payload = ByteBuffer.allocate(length);
+                readFully(channel, payload);
+                mailbox.deliver(source, tag, Codec.decodeData(payload.array()));
+            }
+        } catch (IOException e) {
+            mailbox.fail(source, closed ? new IOException("Transport closed") : e);
+        }
+    }
+
+    private static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Connection closed");
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        mailbox.close(new IOException("Transport closed"));
+        for (SocketChannel channel : channels) {
+            if (channel != null) {
+                channel.close();
+            }
+        }
+        if (server != null) {
+            server.close();
+        }
+    }
+}
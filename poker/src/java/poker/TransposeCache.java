@@ -0,0 +1,64 @@
+package poker;
+
+import ai.djl.ndarray.NDArray;
+
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/* Lazily computed, contiguous transposes of weight matrices for weight-tied unembedding
+ *
+ * Entries are keyed by the identity of the source weight NDArray, so that a block whose
+ * parameters are served by more than one ParameterStore keeps one transpose per store.
+ * Each transpose lives on the same NDManager as its source weight and is therefore closed
+ * together with the model.
+ *
+ * Parameters are modified in place (addi/set) when noise is applied, so the owner of the
+ * cache must call invalidate() whenever the values of the source weights change.
+ */
+public class TransposeCache {
+
+    private final Map<NDArray, NDArray> transposes = new IdentityHashMap<>();
+
+    /* Returns the transpose of a 2-D weight matrix, computing and storing a contiguous
+     * copy on the first call for that weight
+     */
+    public synchronized NDArray get(NDArray weight) {
+        NDArray transpose = transposes.get(weight);
+        if (transpose == null || transpose.isReleased()) {
+            purge();
+            try (NDArray view = weight.transpose();
+                 NDArray flat = view.flatten()) {
+                transpose = flat.reshape(view.getShape());
+            }
+            transpose.setRequiresGradient(false);
+            transposes.put(weight, transpose);
+        }
+        return transpose;
+    }
+
+    /* Closes and forgets every cached transpose
+     * Must be called after the source weights are modified in place
+     */
+    public synchronized void invalidate() {
+        for (NDArray transpose : transposes.values()) {
+            if (!transpose.isReleased()) {
+                transpose.close();
+            }
+        }
+        transposes.clear();
+    }
+
+    /* Drops entries whose source weight or transpose has already been closed,
+     * e.g. because the model that owned them was closed
+     */
+    private void purge() {
+        Iterator<Map.Entry<NDArray, NDArray>> it = transposes.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<NDArray, NDArray> entry = it.next();
+            if (entry.getKey().isReleased() || entry.getValue().isReleased()) {
+                it.remove();
+            }
+        }
+    }
+}
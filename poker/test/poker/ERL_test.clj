@@ -0,0 +1,83 @@
+(ns poker.ERL-test
+  (:require [clojure.test :refer :all]
+            [poker.ERL :as ERL])
+  (:import poker.Codec
+           poker.Checkpoint
+           java.util.Random))
+
+(def population
+  [{:id :p0 :seeds [1 -2 3] :stdev 0.005 :error {:p1 -1.5 :p2 2.25}}
+   {:id :p1 :seeds [4 (long 1e12)] :stdev 0.01 :error {:p0 1.5}}])
+
+(deftest codec-round-trip
+  (testing "Values come back equal from encode and decode"
+    (let [value {:generation 3
+                 :pop population
+                 :hof #{{:id :p2 :seeds [7]}}
+                 :ratio 1/3
+                 :flags [true false nil "text"]
+                 :max-actions ##Inf
+                 :list '(1 2 3)}]
+      (is (= value (Codec/decode (Codec/encode value)))))))
+
+(deftest checkpoint-round-trip
+  (testing "A checkpoint taken by checkpoint! is read back as taken, random number generator included"
+    (let [file (java.io.File/createTempFile "checkpoint" ".bin")
+          filename (.getPath file)
+          random (Random. 42)
+          hof (ERL/indexed-hof [#{{:id :p2 :seeds [7] :error {:p0 1.0}}}])]
+      (try
+        (ERL/checkpoint! filename {:generation 3
+                                   :pop population
+                                   :hof hof
+                                   :random random
+                                   :max-actions 250.0
+                                   :time-ms 1000})
+        (let [expected (.nextLong random)
+              _ (await ERL/checkpoint-writer)
+              restored (ERL/read-checkpoint filename)]
+          (is (= 3 (:generation restored)))
+          (is (= population (:pop restored)))
+          (is (= hof (:hof restored)))
+          (is (= 250.0 (:max-actions restored)))
+          (is (= expected (.nextLong ^Random (:random restored)))))
+        (finally (.delete file)))))
+  (testing "A checkpoint that cannot be written leaves the writer able to write the next one"
+    (let [file (java.io.File/createTempFile "checkpoint" ".bin")]
+      (try
+        (ERL/checkpoint! (.getPath (java.io.File. file "missing")) {:generation 1 :pop population})
+        (ERL/checkpoint! (.getPath file) {:generation 2 :pop population})
+        (await ERL/checkpoint-writer)
+        (is (nil? (agent-error ERL/checkpoint-writer)))
+        (is (= 2 (:generation (ERL/read-checkpoint (.getPath file)))))
+        (finally (.delete file))))))
+
+(deftest resume-hof-journal
+  (testing "Resuming from a checkpoint drops the journal entries written after it"
+    (let [file (java.io.File/createTempFile "hof" ".edn")
+          filename (.getPath file)
+          checkpointed (ERL/indexed-hof [#{{:id :p2 :seeds [7]}}])
+          interrupted #{{:id :p3 :seeds [7 8]}}
+          resumed #{{:id :p4 :seeds [7 9]}}]
+      (try
+        (-> (ERL/journal-hof checkpointed filename :rewrite? true)
+            (ERL/add-generation interrupted)
+            ERL/close-hof)
+        (let [hof (-> (ERL/journal-hof checkpointed filename :rewrite? true)
+                      (ERL/add-generation resumed)
+                      ERL/close-hof)]
+          (is (= hof (ERL/load-hof filename)))
+          (is (= 2 (count (:generations (ERL/load-hof filename))))))
+        (finally (.delete file))))))
+
+(deftest seeded-selection
+  (testing "Selections drawing from a seeded generator are reproducible"
+    (let [pop (for [i (range 20)]
+                {:id (keyword (str "p" i)) :seeds [i] :error {:q0 (mod i 3) :q1 (mod i 5)}})
+          bench [{:id :q0} {:id :q1}]
+          hof (ERL/indexed-hof (partition 4 pop))
+          draw (fn [seed]
+                 (let [random (Random. seed)]
+                   [(mapv :id (repeatedly 10 #(ERL/lexicase-selection pop :benchmark-pop bench :random random)))
+                    (mapv :id (ERL/get-benchmark 6 pop hof 0.5 :random random))]))]
+      (is (= (draw 7) (draw 7))))))
@@ -0,0 +1,93 @@
+(ns poker.MPI-test
+  (:require [clojure.test :refer :all]
+            [poker.MPI :as MPI])
+  (:import poker.Codec
+           java.io.IOException
+           java.util.concurrent.ExecutionException))
+
+(defn round-trip
+  "Encodes each batch of tasks for the epoch it is paired with, as the master would for one slave,
+   and decodes it as that slave would, keeping the individual tables of both sides\\
+   -> [{:definitions :tasks} ...] the individuals defined by each batch and the tasks decoded from it"
+  [batches]
+  (loop [[[epoch tasks] & more] batches
+         master nil
+         slave nil
+         decoded []]
+    (if epoch
+      (let [[master batch] (MPI/encode-batch master epoch tasks)
+            [slave tasks] (MPI/decode-batch slave batch)]
+        (recur more master slave (conj decoded {:definitions (:individuals batch)
+                                                :tasks tasks})))
+      decoded)))
+
+(defn child
+  [{:keys [id seeds stdev]} seed]
+  {:id (keyword (str (name id) "-" seed)) :seeds (conj seeds seed) :stdev stdev})
+
+(deftest batch-round-trip
+  (let [a {:id :a :seeds [1 2] :stdev 0.005}
+        b {:id :b :seeds [3] :stdev 0.01}
+        c {:id :c :seeds [4 5 6] :stdev 0.005}
+        a1 (child a 7)
+        b1 (child b 8)
+        a2 (child a 9)
+        match #(hash-map :players [%1 %2] :max-actions 100 :deck-seed 5)
+        group #(hash-map :players [%1] :opponents %2 :max-actions 100 :deck-seed 5 :symmetrical? true)
+        batches [[1 [(match a b) (match b c)]]
+                 [1 [(group a [b c])]]
+                 [2 [(match a1 b) (group b1 [c])]]
+                 [3 [(match b1 c)]]
+                 [4 [(match a2 b1)]]]
+        decoded (round-trip batches)]
+    (testing "Every task is decoded as it was sent"
+      (is (= (mapv second batches) (mapv :tasks decoded))))
+    (testing "Individuals are only defined the first time a slave needs them"
+      (is (= [[:a :b :c] [] [(:id a1) (:id b1)] [] [(:id a2)]]
+             (mapv #(mapv :id (:definitions %)) decoded))))
+    (testing "Children of known individuals are sent as their parent and one seed"
+      (is (= [{:id (:id a1) :parent :a :seed 7 :stdev 0.005}
+              {:id (:id b1) :parent :b :seed 8 :stdev 0.01}]
+             (:definitions (nth decoded 2)))))
+    (testing "A child whose parent was pruned from the table is sent with all of its seeds"
+      (is (= [{:id (:id a2) :seeds [1 2 9] :stdev 0.005}]
+             (:definitions (nth decoded 4)))))))
+
+(defn free-port
+  []
+  (with-open [socket (java.net.ServerSocket. 0)]
+    (.getLocalPort socket)))
+
+(defn receive
+  "The next message from source with tag, or ::timeout"
+  [comm source tag]
+  (deref (MPI/receive-message comm source tag) 5000 ::timeout))
+
+(deftest transport
+  (let [port (free-port)
+        master (future (MPI/open-transport :rank 0 :size 3 :port port))
+        workers (mapv #(MPI/open-transport :rank % :size 3 :port port :timeout-ms 10000) [1 2])
+        master (deref master 10000 nil)]
+    (try
+      (testing "Messages arrive in order for each source and tag, whether they are expected before or after arriving"
+        (let [early (mapv (fn [_] (MPI/receive-message master 1 7)) (range 3))]
+          (doseq [i (range 3)]
+            (MPI/send-message (workers 0) {:index i :seeds [1 2]} 0 7)
+            (MPI/send-message (workers 0) {:other i} 0 8))
+          (MPI/send-message (workers 1) [:rank 2] 0 7)
+          (is (= [0 1 2] (mapv #(:index (deref % 5000 nil)) early)))
+          (is (= [{:other 0} {:other 1} {:other 2}] (repeatedly 3 #(receive master 1 8))))
+          (is (= [:rank 2] (receive master 2 7)))
+          (MPI/send-message master {:tasks [{:deck-seed 3}]} 2 7)
+          (is (= {:tasks [{:deck-seed 3}]} (receive (workers 1) 0 7)))))
+      (testing "Only plain data is sent and received"
+        (is (thrown? IOException (MPI/send-message (workers 0) (java.util.Random. 1) 0 7)))
+        (is (thrown? IOException (Codec/decodeData (Codec/encode (java.util.Random. 1)))))
+        (is (thrown? IOException (Codec/decodeData (Codec/encode (Object.))))))
+      (testing "Receives still expecting a message fail once the transport is closed, and so do later ones"
+        (let [pending (MPI/receive-message master 2 9)]
+          (.close master)
+          (is (thrown? ExecutionException (deref pending 5000 nil)))
+          (is (thrown? ExecutionException (receive master 1 9)))))
+      (finally
+        (run! #(.close ^java.io.Closeable %) (conj workers master))))))
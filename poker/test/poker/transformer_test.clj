@@ -0,0 +1,115 @@
+(ns poker.transformer-test
+  (:require [clojure.test :refer :all]
+            [poker.transformer :as transformer]
+            [poker.onehot :as onehot]
+            [poker.ndarray :as ndarray])
+  (:import ai.djl.ndarray.types.Shape
+           ai.djl.ndarray.NDList))
+
+(defn random-sliced-input
+  "A random [state actions positions mask] input without a batch dimension, as returned by
+   transformer/slice-inputs, with num-states states and one fewer actions"
+  [manager ^java.util.Random rng num-states]
+  (let [num-tokens (dec (* 2 num-states))
+        rand-matrix (fn [rows cols f] (vec (repeatedly rows #(vec (repeatedly cols f)))))]
+    [(ndarray/ndarray manager (rand-matrix num-states onehot/state-length #(.nextFloat rng)))
+     (if (= 1 num-states)
+       (.create manager (Shape. (long-array [0 onehot/action-length])))
+       (ndarray/ndarray manager (rand-matrix (dec num-states) onehot/action-length #(.nextFloat rng))))
+     (ndarray/ndarray manager int-array (rand-matrix num-tokens 4 #(.nextInt rng num-tokens)))
+     (ndarray/ndarray manager (ndarray/causal-mask [1 num-tokens num-tokens] -2))]))
+
+(def small-parameters
+  {:d-model 16
+   :d-ff 32
+   :num-layers 2
+   :num-heads 2
+   :d-pe [4 4 4 4]
+   :max-seq-length 16})
+
+(defn close?
+  "Whether two lists of float arrays are equal up to tolerance"
+  [as bs]
+  (and (= (count as) (count bs))
+       (every? true? (map (fn [a b]
+                            (and (= (count a) (count b))
+                                 (every? #(< (Math/abs (double %)) 1e-4) (map - a b))))
+                          as
+                          bs))))
+
+(deftest batch-inference
+  (testing "Batched inference with padding"
+    (transformer/with-parameters small-parameters
+      (with-open [manager (ndarray/new-base-manager)]
+        (let [mask (ndarray/ndarray manager (ndarray/causal-mask [1 16 16] -2))
+              individual (transformer/model-from-seeds {:id :a :seeds [5]} 16 manager mask)
+              ;;at least one action, so that every input has a last action token
+              lengths (let [rng (java.util.Random. 1)] (vec (repeatedly 64 #(+ 2 (.nextInt rng 5)))))
+              ;;fresh copies of the same 64 inputs, since predict and predict-batch close their inputs
+              inputs #(let [rng (java.util.Random. 2)]
+                        (mapv (partial random-sliced-input manager rng) lengths))
+              single (mapv #(first (transformer/predict individual %)) (inputs))
+              batched (transformer/predict-batch individual (inputs))]
+          (is (= 64 (count batched))
+              "One output per input")
+          (is (close? single batched)
+              "Left-padded, masked inputs of B=64 should give the same last-token outputs as predict on each unpadded input"))))))
+
+(defn parameter-values
+  "The weights of every parameter of an individual built by model-from-seeds, by parameter name"
+  [individual]
+  (let [ps (:parameter-store individual)]
+    (into {}
+          (map (fn [[k p]]
+                 [k (vec (.toFloatArray (if ps (.getValue ps p nil false) (.getArray p))))]))
+          (transformer/get-parameters (or (:block individual) (.getBlock (:model individual)))
+                                      :as-array? false))))
+
+(deftest clone-matches-make-model
+  (testing "Cloned and built models of the same seeds"
+    (transformer/with-parameters small-parameters
+      (with-open [manager (ndarray/new-base-manager)]
+        (let [mask (ndarray/ndarray manager (ndarray/causal-mask [1 16 16] -2))
+              build #(transformer/model-from-seeds %1 16 manager mask :clone? %2)]
+          (doseq [individual [{:id :a :seeds [7]}
+                              {:id :b :seeds [7] :transformer-parameters (assoc small-parameters :d-ff 16)}]]
+            (is (= (parameter-values (build individual true))
+                   (parameter-values (build individual false)))
+                "A clone should have the same weights as the model built by make-model2")))))))
+
+(deftest population-inference
+  (testing "Population-batched inference of inputs of different lengths"
+    (transformer/with-parameters small-parameters
+      (with-open [manager (ndarray/new-base-manager)]
+        (let [mask (ndarray/ndarray manager (ndarray/causal-mask [1 16 16] -2))
+              individuals (mapv #(transformer/model-from-seeds {:id (keyword (str "p" %)) :seeds [% (+ 10 %)] :stdev 0.01}
+                                                               16 manager mask)
+                                (range 5))
+              ;;number of states of each individual's input, nil for an individual without a decision
+              lengths [1 3 nil 6 4]
+              ;;fresh copies of the same inputs, since predict closes its inputs
+              inputs #(let [rng (java.util.Random. 5)]
+                        (mapv (fn [n] (when n (random-sliced-input manager rng n))) lengths))
+              single (mapv #(when %2 (transformer/predict %1 %2)) individuals (inputs))
+              batched (with-open [population (transformer/stack-population individuals manager)]
+                        (vec (.forward population (mapv #(when % (NDList. ^java.util.Collection %)) (inputs)))))]
+          (is (nil? (batched 2))
+              "An individual without inputs has no outputs")
+          (is (every? true? (map #(or (nil? %1) (close? %1 %2)) single batched))
+              "Each individual should get the same last tokens as from predict on its own unpadded input"))))))
+
+(deftest quantized-agreement
+  (testing "Int8 weights choose the same actions as float weights"
+    (transformer/with-parameters small-parameters
+      (with-open [manager (ndarray/new-base-manager)]
+        (let [mask (ndarray/ndarray manager (ndarray/causal-mask [1 16 16] -2))
+              individual (transformer/model-from-seeds {:id :a :seeds [3]} 16 manager mask)
+              quantized (transformer/model-from-seeds {:id :a :seeds [3]} 16 manager mask :quantize? true)
+              rng (java.util.Random. 3)
+              inputs (mapv #(random-sliced-input manager rng %)
+                           (repeatedly 32 #(inc (.nextInt rng 6))))
+              {:keys [agreement num-inputs]} (transformer/quantization-agreement individual quantized inputs
+                                                                                 :threshold 0.9)]
+          (is (= 32 num-inputs))
+          (is (>= agreement 0.9)
+              "Quantization should rarely change the most likely action"))))))
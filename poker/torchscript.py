@@ -0,0 +1,165 @@
+"""Rebuilds the network of an individual exported by transformer/export-model in PyTorch
+and saves it as a TorchScript module, where transformer/load-torchscript looks for it.
+
+Usage: python torchscript.py <filename>
+Reads <filename>.json and <filename>.weights, and writes <filename>.pt
+
+Mirrors the forward pass of transformer/transformer with dropout disabled:
+  ParallelEmbedding + PositionalEncoding -> n x TransformerDecoderBlock -> UnembedBlock
+The module is scripted rather than traced, so that it accepts any sequence length.
+"""
+import array
+import json
+import math
+import sys
+from typing import Tuple
+
+import torch
+import torch.nn.functional as F
+from torch import Tensor, nn
+
+# Offset added to the attention scores of masked keys, as in SparseAttentionBlock
+MASK_OFFSET = -100000.0
+# Offset of the scores outside the top k of SparseMax
+TOP_K_OFFSET = -10000.0
+# Default epsilon of LayerNorm.builder()
+LAYER_NORM_EPSILON = 1e-5
+
+
+class DecoderLayer(nn.Module):
+    """TransformerDecoderBlock with a SparseAttentionBlock (top_k > 0) or a ScaledDotProductAttentionBlock"""
+
+    def __init__(self, d_model: int, d_ff: int, num_heads: int, top_k: int):
+        super().__init__()
+        self.num_heads = num_heads
+        self.top_k = top_k
+        self.key = nn.Linear(d_model, d_model)
+        self.query = nn.Linear(d_model, d_model)
+        self.value = nn.Linear(d_model, d_model)
+        self.result = nn.Linear(d_model, d_model)
+        self.attention_norm = nn.LayerNorm(d_model, eps=LAYER_NORM_EPSILON)
+        self.ff0 = nn.Linear(d_model, d_ff)
+        self.ff1 = nn.Linear(d_ff, d_model)
+        self.output_norm = nn.LayerNorm(d_model, eps=LAYER_NORM_EPSILON)
+
+    def heads(self, x: Tensor) -> Tensor:
+        # (B, F, E) -> (B, N, F, H)
+        return x.reshape(x.size(0), x.size(1), self.num_heads, -1).transpose(1, 2)
+
+    def forward(self, x: Tensor, offsets: Tensor) -> Tensor:
+        keys = self.heads(self.key(x))
+        queries = self.heads(self.query(x))
+        values = self.heads(self.value(x))
+        scores = queries.matmul(keys.transpose(2, 3)) / math.sqrt(keys.size(3)) + offsets
+        if self.top_k > 0:
+            top = scores.topk(min(self.top_k, scores.size(3)), dim=3).indices
+            scores = scores + torch.full_like(scores, TOP_K_OFFSET).scatter(3, top, 0.0)
+        attention = scores.softmax(3).matmul(values).transpose(1, 2).reshape(x.size())
+        normalized = self.attention_norm(self.result(attention) + x)
+        # TransformerDecoderBlock adds the block input, not the normalized attention, as the second residual
+        return self.output_norm(self.ff1(torch.relu(self.ff0(normalized))) + x)
+
+
+class Transformer(nn.Module):
+    """Takes the inputs of as-agent with a batch dimension: state (B, Fs, D0), actions (B, Fa, D1),
+    positions (B, F, n) and a 0/1 mask (B, F, F) or additive offsets (B, 1, F, F), and returns the
+    outputs of UnembedBlock: the state embedding reversed on the action tokens and the action
+    embedding reversed on the state tokens
+    """
+
+    def __init__(self, description):
+        super().__init__()
+        parameters = description["transformer-parameters"]
+        d_model = parameters["d-model"]
+        d_pe = parameters["d-pe"]
+        num_positions = description["max-seq-length"]
+        top_k = parameters.get("topK", 0) if parameters.get("sparse") else 0
+        inputs = description["inputs"]
+        self.state_weight = nn.Parameter(torch.zeros(d_model, inputs[0]["features"]))
+        self.action_weight = nn.Parameter(torch.zeros(d_model, inputs[1]["features"]))
+        # The tables of each position level in one block diagonal table, looked up at
+        # position + level * num_positions and summed, as the fused PositionalEncoding
+        self.register_buffer("positions", torch.zeros(len(d_pe) * num_positions, d_model))
+        self.register_buffer("row_offsets", torch.arange(len(d_pe)) * num_positions)
+        self.num_positions = num_positions
+        self.num_levels = len(d_pe)
+        self.layers = nn.ModuleList(
+            [DecoderLayer(d_model, parameters["d-ff"], parameters["num-heads"], top_k)
+             for _ in range(parameters["num-layers"])])
+
+    def arrays(self):
+        """Where each exported array is copied to, by name"""
+        targets = {"embedding.0.weight": self.state_weight,
+                   "embedding.1.weight": self.action_weight}
+        names = {"key": "key", "query": "query", "value": "value", "result": "result",
+                 "ff.0": "ff0", "ff.1": "ff1"}
+        norm = {"gamma": "weight", "beta": "bias"}
+        for i, layer in enumerate(self.layers):
+            for exported, name in names.items():
+                module = getattr(layer, name)
+                targets["layers.%d.%s.weight" % (i, exported)] = module.weight
+                targets["layers.%d.%s.bias" % (i, exported)] = module.bias
+            for name in ["attention_norm", "output_norm"]:
+                for exported, attribute in norm.items():
+                    targets["layers.%d.%s.%s" % (i, name, exported)] = getattr(getattr(layer, name), attribute)
+        return targets
+
+    def load(self, description, weights):
+        targets = self.arrays()
+        offset = 0
+        column = 0
+        with torch.no_grad():
+            for entry in description["arrays"]:
+                name, shape = entry["name"], entry["shape"]
+                size = math.prod(shape)
+                values = torch.tensor(weights[offset:offset + size], dtype=torch.float32).reshape(shape)
+                offset += size
+                if name.startswith("position."):
+                    level = int(name.split(".")[1])
+                    rows = level * self.num_positions
+                    self.positions[rows:rows + shape[0], column:column + shape[1]] = values
+                    column += shape[1]
+                else:
+                    targets.pop(name).copy_(values)
+        if offset != len(weights) or targets:
+            raise ValueError("Exported arrays do not match the network. Missing: %s" % sorted(targets))
+
+    def forward(self, state: Tensor, actions: Tensor, position: Tensor, mask: Tensor) -> Tuple[Tensor, Tensor]:
+        states = F.linear(state.float(), self.state_weight)
+        moves = F.linear(actions.float(), self.action_weight)
+        # state j is token 2j and action j is token 2j + 1, as interleaved by ParallelEmbedding
+        x = torch.zeros(states.size(0), states.size(1) + moves.size(1), states.size(2), dtype=states.dtype)
+        x[:, 0::2] = states
+        x[:, 1::2] = moves
+        rows = position[..., :self.num_levels].long() + self.row_offsets
+        x = x + F.embedding(rows, self.positions).sum(-2)
+        if mask.dim() == 4:
+            offsets = mask.float()
+        else:
+            offsets = ((1 - mask.float()) * MASK_OFFSET).unsqueeze(1)
+        for layer in self.layers:
+            x = layer(x, offsets)
+        return x[:, 1::2].matmul(self.state_weight), x[:, 0::2].matmul(self.action_weight)
+
+
+def read_weights(filename):
+    weights = array.array("f")
+    with open(filename, "rb") as f:
+        weights.frombytes(f.read())
+    if sys.byteorder == "little":
+        # written with DataOutputStream.writeFloat
+        weights.byteswap()
+    return weights
+
+
+def export(filename):
+    with open(filename + ".json") as f:
+        description = json.load(f)
+    model = Transformer(description)
+    model.load(description, read_weights(filename + ".weights"))
+    model.eval()
+    torch.jit.script(model).save(filename + ".pt")
+
+
+if __name__ == "__main__":
+    export(sys.argv[1])